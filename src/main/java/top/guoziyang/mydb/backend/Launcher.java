@@ -7,6 +7,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.DataManagerImpl;
 import top.guoziyang.mydb.backend.server.Server;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -31,11 +32,18 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("mmap", false, "-mmap");
+        options.addOption("checkpointInterval", true, "-checkpointInterval 30000 (ms)");
+        options.addOption("checkpointDirtyPages", true, "-checkpointDirtyPages 1024");
+        options.addOption("lockTimeout", true, "-lockTimeout 50000 (ms)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("mmap"),
+                parseLong(cmd.getOptionValue("checkpointInterval"), DataManagerImpl.DEFAULT_CHECKPOINT_INTERVAL),
+                (int)parseLong(cmd.getOptionValue("checkpointDirtyPages"), DataManagerImpl.DEFAULT_CHECKPOINT_DIRTY_PAGES),
+                parseLong(cmd.getOptionValue("lockTimeout"), VersionManagerImpl.DEFAULT_LOCK_TIMEOUT));
             return;
         }
         if(cmd.hasOption("create")) {
@@ -56,14 +64,23 @@ public class Launcher {
     }
 
     // 开启数据库文件
-    private static void openDB(String path, long mem) {
-        TransactionManager tm = TransactionManager.open(path);      // 打开tm
-        DataManager dm = DataManager.open(path, mem, tm);           // 打开dm
+    private static void openDB(String path, long mem, boolean mmap, long checkpointInterval, int checkpointDirtyPages, long lockTimeout) {
+        TransactionManager tm = TransactionManager.open(path, mmap);  // 打开tm
+        DataManager dm = DataManager.open(path, mem, tm, mmap);     // 打开dm
+        dm.setCheckpointPolicy(checkpointInterval, checkpointDirtyPages);
         VersionManager vm = new VersionManagerImpl(tm, dm);         // 打开vm
+        vm.setLockTimeout(lockTimeout);
         TableManager tbm = TableManager.open(path, vm, dm);         // 打开tbm
         new Server(port, tbm).start();                              // 打开sql服务器
     }
 
+    private static long parseLong(String str, long defaultValue) {
+        if(str == null || "".equals(str)) {
+            return defaultValue;
+        }
+        return Long.parseLong(str);
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
@@ -1,9 +1,16 @@
 package top.guoziyang.mydb.backend.common;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import top.guoziyang.mydb.common.Error;
 
@@ -16,116 +23,359 @@ import top.guoziyang.mydb.common.Error;
  * 定义了两个抽象方法：
  *      releaseForCache(T obj):当资源被驱逐时的写回行为
  *      getForCache(long key):当资源不在缓存时的获取行为
+ *
+ * 并发控制：
+ *      使用 ConcurrentHashMap 代替全局锁，所有对单个 key 的状态修改都在 compute() 中完成，
+ *      compute() 只锁住 key 所在的哈希桶，不同 key 之间互不阻塞（相当于锁分段）。
+ *      正在从数据源获取的资源用一个 CompletableFuture 表示，同一 key 的并发缺失只会有一个线程真正去加载，
+ *      其余线程直接在这个 future 上等待，不再 sleep 轮询。
+ *      驱逐时在 compute() 中移除缓存项，并在 releasing 中登记一个写回 future，写回（releaseForCache）在 compute() 之外进行，
+ *      不会长时间占住哈希桶锁、阻塞同一个桶中的其他 key；写回完成之前同一 key 的 get() 在这个 future 上等待，不会从数据源读到旧数据。
+ *
+ * 驻留模式（resident）：
+ *      默认情况下资源的引用计数归零就会被驱逐；驻留模式下引用计数归零的资源继续留在缓存中，
+ *      只有在缓存满了的时候，才按照 2Q（Johnson & Shasha）策略挑选一个没有被引用的资源驱逐，资源分布在三个队列中：
+ *          A1in：新加载的资源，按加载顺序 FIFO 排列，期间再次访问不改变位置（一次操作内的多次访问只算一次）；
+ *          A1out：从 A1in 驱逐的资源的 key（只有 key，不占资源），FIFO，最多 kout 个；
+ *          Am：加载时 key 还在 A1out 中的资源，即离开缓存后不久又被访问的热点资源，按释放顺序 LRU 排列。
+ *      A1in 超过 kin 个时驱逐它的队头（并把 key 放进 A1out），否则驱逐 Am 中最久没有使用的资源，
+ *      这样一次全表扫描只会冲掉 A1in，而不会把 Am 中的热点资源挤出缓存。
+ *      kin、kout 分别取缓存大小的 1/4 和 1/2。
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                     // key：缓存资源的标签（pgno或者UID），value：实际缓存的数据
-    private HashMap<Long, Integer> references;          // key：缓存资源的标签，value：资源的引用个数
-    private HashMap<Long, Boolean> getting;             // key：缓存资源的标签，value：是否有线程正在从数据源中获取该资源
 
-    private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;
+    /**
+     * 缓存项：资源的加载结果 + 引用计数
+     * refs 只在 ConcurrentHashMap.compute() 中修改，由哈希桶锁保护；挑选驱逐对象时在锁外读取，驱逐前在 compute() 中重新检查
+     */
+    private static class CacheEntry<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        volatile int refs = 1;
+        boolean hot;                                    // 是否属于 Am 队列
+    }
+
+    private final ConcurrentHashMap<Long, CacheEntry<T>> cache;  // key：缓存资源的标签（pgno或者UID），value：缓存项
+    private final ConcurrentHashMap<Long, CompletableFuture<Void>> releasing;   // 已被驱逐、正在写回的资源，写回完成时完成
+
+    private final int maxResource;                      // 缓存的最大缓存资源数
+    private final AtomicInteger count;                  // 缓存中元素的个数
+
+    private final boolean resident;                     // 引用计数归零后是否继续驻留在缓存中
+    private final int kin;                              // A1in 的目标大小
+    private final int kout;                             // A1out 的最大大小
+    private final LinkedHashSet<Long> a1in;             // 驻留模式下，A1in 中的资源（包括正在被引用的），按加载顺序排列
+    private final LinkedHashSet<Long> a1out;            // 驻留模式下，最近从 A1in 驱逐的 key，按驱逐顺序排列
+    private final LinkedHashSet<Long> am;               // 驻留模式下，Am 中没有被引用的资源，按释放顺序排列
+    private final Lock policyLock;
+
+    public AbstractCache(int maxResource) {
+        this(maxResource, false);
+    }
+
+    /**
+     * @param maxResource 缓存的最大缓存资源数，0表示不限制
+     * @param resident 是否开启驻留模式，开启时 maxResource 必须大于0
+     */
+    public AbstractCache(int maxResource, boolean resident) {
+        this.maxResource = maxResource;
+        this.cache = new ConcurrentHashMap<>();
+        this.releasing = new ConcurrentHashMap<>();
+        this.count = new AtomicInteger(0);
+        this.resident = resident && maxResource > 0;
+        this.kin = Math.max(1, maxResource / 4);
+        this.kout = Math.max(1, maxResource / 2);
+        this.a1in = new LinkedHashSet<>();
+        this.a1out = new LinkedHashSet<>();
+        this.am = new LinkedHashSet<>();
+        this.policyLock = new ReentrantLock();
+    }
 
     /**
      * 获取资源
      * @param key 目标缓存资源的页面号pgno（pageCache）或者 UID（DataItem）
      * @return 目标资源实体
-     * 获取资源时，首先进入一个死循环，来无限尝试从缓存里获取。
-     * 首先就需要检查这个时候是否有其他线程正在从数据源获取这个资源，如果有，就过会再来看看，
-     * 当然如果资源在缓存中，就可以直接获取并返回了，记得要给资源的引用数 +1。
-     * 否则，如果缓存没满的话，就在 getting 中注册一下，该线程准备从数据源获取资源了。
+     * 在 compute() 中原子地完成：资源已在缓存（或正在被加载）则引用数 +1；否则在缓存未满时登记一个新的缓存项，由当前线程负责加载。
+     * 等待其他线程加载的资源时，直接阻塞在加载 future 上；如果那次加载失败，则重新尝试。
+     * 资源刚被驱逐、还在写回时，先等待写回完成再重新尝试。
      */
     protected T get(long key) throws Exception {
-        // 无限循环尝试从缓存中获取资源
         while(true) {
-            lock.lock();
-            // 判断是否有线程在数据源中获取key资源
-            if(getting.containsKey(key)) {
-                // key资源正在被某个线程在数据源中获取，所以肯定不在缓存中
-                lock.unlock();
-                // 等待1s后再重新循环判断
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
+            boolean[] loader = new boolean[1];
+            boolean[] full = new boolean[1];
+            List<CompletableFuture<Void>> writing = new ArrayList<>(1);
+            CacheEntry<T> entry = cache.compute(key, (k, e) -> {
+                if(e != null) {
+                    if(resident && e.refs == 0 && e.hot) {
+                        // Am 中的资源重新被引用，从可驱逐队列中移除，释放时再放到队尾
+                        unlinkHot(k);
+                    }
+                    e.refs++;                           // 对该资源的引用计数加一
+                    return e;
                 }
+                CompletableFuture<Void> w = releasing.get(k);
+                if(w != null) {
+                    writing.add(w);
+                    return null;
+                }
+                // 资源没在缓存中，也没有其他线程正在获取，那么此线程尝试从数据源中获取该资源
+                if(!reserve()) {
+                    full[0] = true;
+                    return null;
+                }
+                loader[0] = true;
+                CacheEntry<T> created = new CacheEntry<>();
+                if(resident) {
+                    created.hot = admit(k);
+                }
+                return created;
+            });
+            if(!writing.isEmpty()) {
+                writing.get(0).join();
                 continue;
             }
+            if(full[0]) {
+                // 缓存满了，驻留模式下先尝试驱逐一个没有被引用的资源，否则抛出缓存已满异常
+                if(evictOne()) {
+                    continue;
+                }
+                throw Error.CacheFullException;
+            }
 
-            // key资源已经在缓存中，直接返回
-            if(cache.containsKey(key)) {
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);   // 对该资源的引用计数加一
-                lock.unlock();
-                return obj;
+            if(loader[0]) {
+                return load(key, entry);
             }
 
-            // 资源没在缓存中，也没有其他线程正在获取，那么此线程尝试从数据源中获取该资源
-            if(maxResource > 0 && count == maxResource) {
-                // 设置缓存个数为0 或者 缓存满了，抛出缓存已满异常
-                lock.unlock();
-                throw Error.CacheFullException;
+            try {
+                return entry.future.join();
+            } catch(CompletionException e) {
+                // 其他线程加载失败，该缓存项已经被移除，重新尝试
+                continue;
             }
-            // 缓存数+1
-            count++;
-            getting.put(key, true);     // 在getting中注册以下key，表示key资源此时有某个线程正在从数据源中获取
-            lock.unlock();
-            // 跳出循环，去完成从数据源获取key资源的操作
-            break;
         }
+    }
 
-        // 从数据源中获取资源，直接调用抽象方法 getForCache() 即可，获取完成或者发生异常记得从 getting 中删除 key资源标记
-        T obj = null;
+    /**
+     * 为新的缓存项占用一个名额，缓存个数为0表示不限制
+     * @return 缓存已满时返回false
+     */
+    private boolean reserve() {
+        while(true) {
+            int c = count.get();
+            if(maxResource > 0 && c >= maxResource) {
+                return false;
+            }
+            if(count.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 从数据源中获取资源，直接调用抽象方法 getForCache() 即可；发生异常时移除缓存项并唤醒等待者
+     */
+    private T load(long key, CacheEntry<T> entry) throws Exception {
+        T obj;
         try {
-            obj = getForCache(key);     // obj是一个Page类型的数据页
+            obj = getForCache(key);
         } catch(Exception e) {
-            lock.lock();
-            count--;
-            getting.remove(key);
-            lock.unlock();
+            if(resident && !entry.hot) {
+                policyLock.lock();
+                a1in.remove(key);
+                policyLock.unlock();
+            }
+            cache.remove(key, entry);
+            count.decrementAndGet();
+            entry.future.completeExceptionally(e);
             throw e;
         }
-
-        // 获取完成记得讲资源放进缓存中，并且在getting中移除key资源标记
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);    // 将key资源和对应的资源实体obj放进缓存中
-        references.put(key, 1); // key资源的引用计数初始化为1
-        lock.unlock();
-
+        entry.future.complete(obj);
         return obj;
     }
 
-    public AbstractCache(int maxResource) {
-        this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
-    }
-
     /**
      * 释放一个缓存
      * 但是必须满足key缓存的引用计数为0，才将维护的cache缓存Map中移除key即可释放缓存
      * 再调用releaseForCache()方法，完成当缓存资源被驱逐时的写回行为，如果页面是脏页面就会进行回源操作
+     * 移除在 compute() 中完成，写回在 compute() 之外完成，写回结束之前同一 key 的 get() 等待在 releasing 中登记的 future 上
      * @param key 缓存页面
      */
     protected void release(long key) {
-        lock.lock();
+        List<CacheEntry<T>> evicted = new ArrayList<>(1);
+        cache.compute(key, (k, e) -> {
+            if(e == null) {
+                return null;
+            }
+            e.refs--;
+            if(e.refs > 0) {
+                return e;
+            }
+            if(resident) {
+                // 驻留模式下不驱逐，Am 中的资源放到 LRU 队尾，A1in 中的资源位置不变
+                if(e.hot) {
+                    linkHot(k);
+                }
+                return e;
+            }
+            releasing.put(k, new CompletableFuture<>());
+            evicted.add(e);
+            return null;
+        });
+        if(!evicted.isEmpty()) {
+            writeBack(key, evicted.get(0));
+        }
+    }
+
+    /**
+     * 按照 2Q 策略驱逐一个没有被引用的驻留资源
+     * @return 没有可以驱逐的资源时返回false
+     */
+    private boolean evictOne() {
+        if(!resident) {
+            return false;
+        }
+        while(true) {
+            Long victim = pickVictim();
+            if(victim == null) {
+                return false;
+            }
+            List<CacheEntry<T>> evicted = new ArrayList<>(1);
+            cache.computeIfPresent(victim, (k, e) -> {
+                if(e.refs > 0) {
+                    // 在选中之后又被其他线程引用了，换一个
+                    return e;
+                }
+                unlinkEvicted(k, e.hot);
+                releasing.put(k, new CompletableFuture<>());
+                evicted.add(e);
+                return null;
+            });
+            if(!evicted.isEmpty()) {
+                writeBack(victim, evicted.get(0));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 在 compute() 之外写回已经移除的缓存项，完成后释放名额，并唤醒等待这个 key 的 get()
+     */
+    private void writeBack(long key, CacheEntry<T> e) {
+        try {
+            releaseForCache(e.future.join());   // 当缓存资源被驱逐时的写回行为
+        } finally {
+            count.decrementAndGet();
+            releasing.remove(key).complete(null);
+        }
+    }
+
+    /**
+     * 新加载的资源进入哪个队列：key 还在 A1out 中则进入 Am，否则进入 A1in
+     * @return 是否进入 Am
+     */
+    private boolean admit(long key) {
+        policyLock.lock();
+        try {
+            if(a1out.remove(key)) {
+                return true;
+            }
+            a1in.add(key);
+            return false;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    private void linkHot(long key) {
+        policyLock.lock();
+        try {
+            am.add(key);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    private void unlinkHot(long key) {
+        policyLock.lock();
+        try {
+            am.remove(key);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * 资源被驱逐，从所在的队列中移除；从 A1in 驱逐的资源把 key 记入 A1out
+     */
+    private void unlinkEvicted(long key, boolean isHot) {
+        policyLock.lock();
+        try {
+            if(isHot) {
+                am.remove(key);
+                return;
+            }
+            a1in.remove(key);
+            a1out.add(key);
+            if(a1out.size() > kout) {
+                Iterator<Long> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * 挑选一个驱逐对象：A1in 超过 kin 个时选它最早加载的、没有被引用的资源，否则选 Am 中最久没有使用的资源，
+     * 选中的那个队列没有可以驱逐的资源时，再看另一个队列
+     */
+    private Long pickVictim() {
+        policyLock.lock();
         try {
-            int ref = references.get(key)-1;
-            if(ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);   // 当缓存资源被驱逐时的写回行为
-                references.remove(key);
-                cache.remove(key);
-                count --;
-            } else {
-                references.put(key, ref);
+            Long key = null;
+            if(a1in.size() > kin) {
+                key = firstIdle(a1in);
+            }
+            if(key == null && !am.isEmpty()) {
+                key = am.iterator().next();
             }
+            if(key == null) {
+                key = firstIdle(a1in);
+            }
+            return key;
         } finally {
-            lock.unlock();
+            policyLock.unlock();
+        }
+    }
+
+    private Long firstIdle(LinkedHashSet<Long> queue) {
+        for(Long key : queue) {
+            CacheEntry<T> e = cache.get(key);
+            if(e != null && e.refs == 0) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 遍历所有已经加载完成的缓存资源，不改变引用计数
+     * @param action 对每个资源执行的操作
+     */
+    protected void forEachCached(Consumer<T> action) {
+        for(CacheEntry<T> e : cache.values()) {
+            if(e.future.isDone() && !e.future.isCompletedExceptionally()) {
+                action.accept(e.future.join());
+            }
+        }
+    }
+
+    /**
+     * 等待调用时已经从缓存中移除、还在写回的资源写回完成
+     */
+    protected void awaitReleasing() {
+        for(CompletableFuture<Void> w : releasing.values()) {
+            w.join();
         }
     }
 
@@ -133,17 +383,23 @@ public abstract class AbstractCache<T> {
      * 关闭缓存器，写回所有资源，其实就是将所有缓存释放掉
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);   // 调用释放缓存方法
-                references.remove(key);
-                cache.remove(key);
+        for(Long key : cache.keySet()) {
+            CacheEntry<T> e = cache.remove(key);
+            if(e == null) {
+                continue;
             }
+            if(e.future.isDone() && !e.future.isCompletedExceptionally()) {
+                releaseForCache(e.future.join());   // 调用释放缓存方法
+            }
+            count.decrementAndGet();
+        }
+        policyLock.lock();
+        try {
+            a1in.clear();
+            a1out.clear();
+            am.clear();
         } finally {
-            lock.unlock();
+            policyLock.unlock();
         }
     }
 
@@ -0,0 +1,135 @@
+package top.guoziyang.mydb.backend.common;
+
+/**
+ * long -> long 的哈希表，开放寻址 + 线性探测，键和值都不装箱
+ * 不是线程安全的，由调用者加锁
+ * 删除时把后面同一探测序列上的元素前移，不留删除标记
+ */
+public class LongLongMap {
+
+    private static final long EMPTY = 0;                // 空槽位的键，键 0 单独保存
+
+    private long[] keys;
+    private long[] values;
+    private int size;                                   // 不包括键 0
+    private boolean hasZero;
+    private long zeroValue;
+
+    public LongLongMap() {
+        this(16);
+    }
+
+    /**
+     * @param capacity 初始容量，会向上取整到 2 的幂
+     */
+    public LongLongMap(int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity, 4) - 1) << 1;
+        keys = new long[n];
+        values = new long[n];
+    }
+
+    public int size() {
+        return size + (hasZero ? 1 : 0);
+    }
+
+    public boolean containsKey(long key) {
+        if(key == EMPTY) {
+            return hasZero;
+        }
+        return keys[find(key)] == key;
+    }
+
+    /**
+     * @return 键不存在时返回 defaultValue
+     */
+    public long get(long key, long defaultValue) {
+        if(key == EMPTY) {
+            return hasZero ? zeroValue : defaultValue;
+        }
+        int i = find(key);
+        return keys[i] == key ? values[i] : defaultValue;
+    }
+
+    public void put(long key, long value) {
+        if(key == EMPTY) {
+            hasZero = true;
+            zeroValue = value;
+            return;
+        }
+        int i = find(key);
+        if(keys[i] == key) {
+            values[i] = value;
+            return;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if(++ size > keys.length * 3 / 4) {
+            resize(keys.length << 1);
+        }
+    }
+
+    /**
+     * @return 键不存在时返回 defaultValue，否则返回被删除的值
+     */
+    public long remove(long key, long defaultValue) {
+        if(key == EMPTY) {
+            if(!hasZero) {
+                return defaultValue;
+            }
+            hasZero = false;
+            return zeroValue;
+        }
+        int i = find(key);
+        if(keys[i] != key) {
+            return defaultValue;
+        }
+        long value = values[i];
+        int mask = keys.length - 1;
+        // 后面的元素如果探测起点不在 (i, j] 之间，就前移到 i
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            if(keys[j] == EMPTY) {
+                break;
+            }
+            int home = slot(keys[j]);
+            if(i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size --;
+        return value;
+    }
+
+    // 键所在的槽位，键不存在时返回它应该插入的空槽位
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key);
+        while(keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & (keys.length - 1);
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        for(int i = 0; i < oldKeys.length; i ++) {
+            if(oldKeys[i] != EMPTY) {
+                int j = find(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
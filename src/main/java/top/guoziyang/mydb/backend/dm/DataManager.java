@@ -11,23 +11,36 @@ import top.guoziyang.mydb.backend.tm.TransactionManager;
  * 默认提供两个静态功能：
  *      create(String path, long mem, TransactionManager tm)： x新建数据管理模块 和 打开数据管理器
  *      open(String path, long mem, TransactionManager tm)：
+ * 带 mmap 参数的版本使用内存映射文件作为页面存储
  */
 public interface DataManager {
     DataItem read(long uid) throws Exception;                   // 读取数据
     long insert(long xid, byte[] data) throws Exception;        // 插入数据
+    void free(long uid) throws Exception;                       // 回收数据
+    int compact() throws Exception;                             // 压缩有数据被回收的页面，返回回收的字节数
     void close();                                               // 关闭数据管理器
+    void setCheckpointPolicy(long intervalMillis, int dirtyPageThreshold);  // 设置检查点间隔和触发检查点的脏页面数
 
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);             // 新建页面缓存
+        return create(path, mem, tm, false);
+    }
+
+    public static DataManager create(String path, long mem, TransactionManager tm, boolean mmap) {
+        PageCache pc = PageCache.create(path, mem, mmap);       // 新建页面缓存
         Logger lg = Logger.create(path);                        // 新建日志
 
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);   // 新建数据管理器
         dm.initPageOne();                                       // 初始化校验页面1
+        dm.startCheckpointer();                                 // 启动检查点线程
         return dm;
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);               // 打开页面缓存
+        return open(path, mem, tm, false);
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mmap) {
+        PageCache pc = PageCache.open(path, mem, mmap);         // 打开页面缓存
         Logger lg = Logger.open(path);                          // 打开日志
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);   // 打开数据管理器
         if(!dm.loadCheckPageOne()) {
@@ -37,6 +50,7 @@ public interface DataManager {
         dm.fillPageIndex();                                     // 重新填写页面索引
         PageOne.setVcOpen(dm.pageOne);                          // 重新填写 校验页面1
         dm.pc.flushPage(dm.pageOne);                            // 将校验页面1 强行写入数据源
+        dm.startCheckpointer();                                 // 启动检查点线程
 
         return dm;
     }
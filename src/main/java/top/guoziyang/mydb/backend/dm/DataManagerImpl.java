@@ -1,6 +1,18 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import top.guoziyang.mydb.backend.common.AbstractCache;
+import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItemImpl;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
@@ -11,6 +23,7 @@ import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageIndex;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageInfo;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Types;
 import top.guoziyang.mydb.common.Error;
@@ -37,21 +50,51 @@ import top.guoziyang.mydb.common.Error;
  *      6、为DataItemImpl.release()提供的释放DataItem缓存方法：releaseDataItem(DataItem di)
  *      7、初始化页面索引：fillPageIndex()
  *      8、关闭DM
+ *      9、检查点：后台线程定期（或者脏页面数达到阈值时）把所有脏页面按页号顺序写回并 force 一次，
+ *         然后在页面1中记录检查点时的日志位置，崩溃恢复时只需要从这个位置开始重做。
+ *         所有页面修改（insert 和 DataItem 的 before~after）都持有 checkpointLock 的读锁，
+ *         检查点只在拷贝脏页面、记录日志位置的一瞬间持有写锁，保证拷贝到的页面包含且只包含该日志位置之前的修改。
+ *         检查点完成后回收不再需要的日志段：重做只需要检查点之后的日志，但撤销需要仍然活跃的事务的全部日志，
+ *         所以回收位置取检查点位置和活跃事务第一条日志位置中较小的一个。
+ *      10、垃圾回收：free(long uid) 将 DataItem 标记为被回收，并记下它所在的页面；
+ *         compact() 对这些页面做页面压缩，把页面末尾被回收的空间还给 pageIndex。
+ *         调用者保证压缩时已经没有人持有被回收的 UID（见 tbm.Vacuum），否则同一个 UID 可能指向新插入的数据。
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 30 * 1000;     // 默认检查点间隔 30s
+    public static final int DEFAULT_CHECKPOINT_DIRTY_PAGES = 1024;          // 默认脏页面数达到 1024 时提前做检查点
+    private static final long CHECKPOINT_POLL_INTERVAL = 100;              // 检查点线程的检查周期 100ms
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
 
+    private ReadWriteLock checkpointLock;               // 页面修改持有读锁，检查点持有写锁
+    private Set<Integer> dirtyPages;                    // 上一次检查点之后被修改过的页面
+    private volatile long checkpointInterval;
+    private volatile int checkpointDirtyPages;
+    private volatile long lastCheckpoint;
+    private ScheduledExecutorService checkpointer;
+    private Map<Long, Long> firstLsn;                   // 事务写第一条日志之前的日志末尾位置，回收日志段时使用
+    private Map<Long, Long> lastLsn;                    // 事务最后一条日志的位置，串起事务的日志链，检查点时写入日志
+    private Set<Integer> freedPages;                    // 有 DataItem 被回收、还没有压缩的页面
+
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.dirtyPages = ConcurrentHashMap.newKeySet();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.lastLsn = new ConcurrentHashMap<>();
+        this.freedPages = ConcurrentHashMap.newKeySet();
+        this.checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        this.checkpointDirtyPages = DEFAULT_CHECKPOINT_DIRTY_PAGES;
     }
 
     /**
@@ -87,6 +130,15 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             throw Error.DataTooLargeException;
         }
 
+        checkpointLock.readLock().lock();
+        try {
+            return internInsert(xid, raw);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    private long internInsert(long xid, byte[] raw) throws Exception {
         PageInfo pi = null;
         // 在 pageIndex 中获取一个足以存储插入内容的页面的页号，最多尝试五次
         for(int i = 0; i < 5; i ++) {
@@ -111,11 +163,12 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             // 获取插入页号
             pg = pc.getPage(pi.pgno);
             // 写入插入日志
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+            byte[] log = Recover.insertLog(xid, prevLsn(xid), pg, raw);
+            log(xid, log);
 
             // 完成页面数据插入，返回在此页面中的插入位置偏移量
             short offset = PageX.insert(pg, raw);
+            dirtyPages.add(pi.pgno);
 
             // 释放此页面缓存
             pg.release();
@@ -132,11 +185,77 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
+    /**
+     * 回收一个 DataItem：由超级事务将它标记为被回收，之后 read() 不会再返回它
+     * @param uid DataItem 的 UID
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        DataItem di = super.get(uid);
+        try {
+            di.before();
+            SubArray raw = di.getRaw();
+            DataItem.setDataItemRawFreed(raw.raw, raw.start);
+            di.after(TransactionManagerImpl.SUPER_XID);
+            freedPages.add(di.page().getPageNumber());
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 压缩所有有 DataItem 被回收的页面，回收页面末尾被回收的空间
+     * 页面需要从 pageIndex 中取出，正在被插入的页面留到下一次压缩
+     * @return 回收的字节数
+     */
+    @Override
+    public int compact() throws Exception {
+        int reclaimed = 0;
+        for(int pgno : freedPages) {
+            PageInfo pi = pIndex.take(pgno);
+            if(pi == null) {
+                continue;
+            }
+            freedPages.remove(pgno);
+            Page pg = null;
+            checkpointLock.readLock().lock();
+            try {
+                pg = pc.getPage(pgno);
+                short fso = PageX.getCompactedFSO(pg);
+                int freed = PageCache.PAGE_SIZE - PageX.getFreeSpace(pg) - fso;
+                if(freed > 0) {
+                    // 先写日志再修改页面
+                    logger.log(Recover.compactLog(pgno, fso));
+                    PageX.compact(pg, fso);
+                    dirtyPages.add(pgno);
+                    reclaimed += freed;
+                }
+            } finally {
+                checkpointLock.readLock().unlock();
+                if(pg != null) {
+                    pIndex.add(pgno, PageX.getFreeSpace(pg));
+                    pg.release();
+                } else {
+                    pIndex.add(pgno, pi.freeSpace);
+                }
+            }
+        }
+        return reclaimed;
+    }
+
     /**
      * 关闭DM
      */
     @Override
     public void close() {
+        if(checkpointer != null) {
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
         super.close();
         logger.close();
 
@@ -147,8 +266,127 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     // 为xid生成update日志，DataItemImpl.after() 依赖的方法
     public void logDataItem(long xid, DataItem di) {
-        byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        byte[] log = Recover.updateLog(xid, prevLsn(xid), di);
+        log(xid, log);
+        dirtyPages.add(di.page().getPageNumber());
+    }
+
+    // 事务上一条日志的位置，超级事务不需要撤销，不串日志链
+    private long prevLsn(long xid) {
+        if(xid == TransactionManagerImpl.SUPER_XID) {
+            return 0;
+        }
+        return lastLsn.getOrDefault(xid, 0L);
+    }
+
+    // 写入一条日志，并记录事务的第一条和最后一条日志位置
+    private void log(long xid, byte[] log) {
+        if(xid == TransactionManagerImpl.SUPER_XID) {
+            logger.log(log);
+            return;
+        }
+        if(!firstLsn.containsKey(xid)) {
+            firstLsn.putIfAbsent(xid, logger.tail());
+        }
+        lastLsn.put(xid, logger.log(log));
+    }
+
+    // DataItemImpl.before() 依赖的方法，修改期间不允许检查点拷贝页面
+    public void enterModify() {
+        checkpointLock.readLock().lock();
+    }
+
+    // DataItemImpl.after() 和 unBefore() 依赖的方法
+    public void exitModify() {
+        checkpointLock.readLock().unlock();
+    }
+
+    @Override
+    public void setCheckpointPolicy(long intervalMillis, int dirtyPageThreshold) {
+        this.checkpointInterval = intervalMillis;
+        this.checkpointDirtyPages = dirtyPageThreshold;
+    }
+
+    // 启动后台检查点线程
+    void startCheckpointer() {
+        lastCheckpoint = System.currentTimeMillis();
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpointIfNeeded,
+            CHECKPOINT_POLL_INTERVAL, CHECKPOINT_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkpointIfNeeded() {
+        if(dirtyPages.isEmpty()) {
+            return;
+        }
+        if(dirtyPages.size() >= checkpointDirtyPages
+            || System.currentTimeMillis() - lastCheckpoint >= checkpointInterval) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * 做一次检查点：
+     * 先清理已经结束的事务，再在写锁内记录日志末尾位置、拷贝所有脏页面和活跃事务表，然后在锁外写入检查点日志（活跃事务表），
+     * 按页号顺序写回脏页面、force 一次，最后把检查点位置写入页面1并 force，回收不再需要的日志段。
+     */
+    public void checkpoint() {
+        long lsn;
+        int pageNumber;
+        List<Page> pages;
+        Map<Long, Long> transactions;
+        dropFinished();
+        checkpointLock.writeLock().lock();
+        try {
+            lsn = logger.tail();
+            pageNumber = pc.getPageNumber();
+            pages = pc.copyDirtyPages();
+            dirtyPages.clear();
+            transactions = new HashMap<>(lastLsn);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+        // 检查点日志必须在页面1指向检查点位置之前持久化，恢复时从检查点位置往后一定能找到它
+        logger.log(Recover.checkpointLog(transactions));
+        pc.flushPages(pages);
+        PageOne.setCheckpoint(pageOne, lsn, pageNumber);
+        pc.flushPage(pageOne);
+        lastCheckpoint = System.currentTimeMillis();
+        logger.recycle(recyclePosition(lsn));
+    }
+
+    /**
+     * 清理已经结束的事务，恢复时只撤销仍然活跃的事务，检查点日志中不需要记录它们
+     * 否则两次检查点之间写过日志的事务都会留在活跃事务表中，事务很多时检查点日志会超过日志的写缓冲区
+     */
+    private void dropFinished() {
+        for(Long xid : firstLsn.keySet()) {
+            if(!tm.isActive(xid)) {
+                firstLsn.remove(xid);
+                lastLsn.remove(xid);
+            }
+        }
+    }
+
+    /**
+     * 可以回收的日志位置：检查点位置和仍然活跃的事务的第一条日志位置中较小的一个
+     * 顺便清理已经结束的事务
+     */
+    private long recyclePosition(long lsn) {
+        long position = lsn;
+        for(Map.Entry<Long, Long> e : firstLsn.entrySet()) {
+            if(!tm.isActive(e.getKey())) {
+                firstLsn.remove(e.getKey());
+                lastLsn.remove(e.getKey());
+            } else if(e.getValue() < position) {
+                position = e.getValue();
+            }
+        }
+        return position;
     }
 
     // 释放DataItem缓存，DataItemImpl.release() 依赖的方法，其实就是释放DataItem所在页的缓存
@@ -0,0 +1,174 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 恢复时的并行重做
+ * 按页号把日志分给固定数量的线程（pgno % 线程数），同一页面的日志总是由同一个线程按日志顺序重做，
+ * 不同页面的修改互不相关，可以同时进行。
+ *
+ * 扫描线程把日志拷贝进所属线程的批次缓冲区，攒满一批再交给线程；
+ * 线程把一批日志按页号排序分组（同一页面内保持原来的顺序），每个页面只 getPage / release 一次，
+ * 同一时刻每个线程最多持有一个页面。
+ * 每个线程的批次缓冲区数量固定、循环使用，重做跟不上扫描时扫描线程会等待空闲的缓冲区。
+ *
+ * 线程数为 1 时不创建线程，直接在扫描线程中逐条重做。
+ */
+class ParallelRedo {
+
+    private static final int BATCH_SIZE = 1 << 18;             // 一批日志的缓冲区大小，至少能放下一条最大的日志
+    private static final int BATCH_RECORDS = 4096;              // 一批日志的最大条数
+    private static final int BATCHES_PER_WORKER = 4;            // 每个线程循环使用的批次数
+
+    private static class Batch {
+        final byte[] data = new byte[BATCH_SIZE];
+        final int[] offsets = new int[BATCH_RECORDS];
+        final int[] lengths = new int[BATCH_RECORDS];
+        final long[] order = new long[BATCH_RECORDS];         // 高 32 位页号，低 32 位序号，排序后同一页面的日志相邻且保持原来的顺序
+        int count;
+        int used;
+
+        boolean fits(int length) {
+            return count < BATCH_RECORDS && used + length <= data.length;
+        }
+    }
+
+    private final PageCache pc;
+    private final ExecutorService[] workers;
+    private final List<BlockingQueue<Batch>> free;
+    private final Batch[] current;
+
+    ParallelRedo(PageCache pc, int threads) {
+        this.pc = pc;
+        if(threads <= 1) {
+            this.workers = null;
+            this.free = null;
+            this.current = null;
+            return;
+        }
+        this.workers = new ExecutorService[threads];
+        this.free = new ArrayList<>(threads);
+        this.current = new Batch[threads];
+        for(int i = 0; i < threads; i ++) {
+            workers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "redo");
+                t.setDaemon(true);
+                return t;
+            });
+            BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(BATCHES_PER_WORKER);
+            for(int j = 1; j < BATCHES_PER_WORKER; j ++) {
+                queue.add(new Batch());
+            }
+            free.add(queue);
+            current[i] = new Batch();
+        }
+    }
+
+    /**
+     * 重做一条修改 pgno 页的日志，日志内容会被拷贝，调用返回后 buf 可以被覆盖
+     */
+    void redo(int pgno, byte[] buf, int off, int len) {
+        if(workers == null) {
+            Page pg = getPage(pgno);
+            try {
+                Recover.redo(pg, buf, off, len);
+            } finally {
+                pg.release();
+            }
+            return;
+        }
+        int w = (int)(Integer.toUnsignedLong(pgno) % workers.length);
+        Batch batch = current[w];
+        if(!batch.fits(len)) {
+            submit(w);
+            batch = current[w];
+        }
+        System.arraycopy(buf, off, batch.data, batch.used, len);
+        batch.offsets[batch.count] = batch.used;
+        batch.lengths[batch.count] = len;
+        batch.order[batch.count] = ((long)pgno << 32) | batch.count;
+        batch.count ++;
+        batch.used += len;
+    }
+
+    /**
+     * 提交所有没有攒满的批次，等待所有重做完成
+     */
+    void finish() {
+        if(workers == null) {
+            return;
+        }
+        for(int w = 0; w < workers.length; w ++) {
+            if(current[w].count > 0) {
+                submit(w);
+            }
+            workers[w].shutdown();
+        }
+        try {
+            for(ExecutorService worker : workers) {
+                while(!worker.awaitTermination(1, TimeUnit.SECONDS));
+            }
+        } catch(InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 把当前批次交给线程，换一个空闲的批次继续攒
+    private void submit(int w) {
+        Batch batch = current[w];
+        BlockingQueue<Batch> queue = free.get(w);
+        workers[w].execute(() -> {
+            apply(batch);
+            batch.count = 0;
+            batch.used = 0;
+            queue.add(batch);
+        });
+        try {
+            current[w] = queue.take();
+        } catch(InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void apply(Batch batch) {
+        Arrays.sort(batch.order, 0, batch.count);
+        Page pg = null;
+        try {
+            for(int i = 0; i < batch.count; i ++) {
+                int pgno = (int)(batch.order[i] >>> 32);
+                int idx = (int)batch.order[i];
+                if(pg == null || pg.getPageNumber() != pgno) {
+                    if(pg != null) {
+                        pg.release();
+                    }
+                    pg = getPage(pgno);
+                }
+                Recover.redo(pg, batch.data, batch.offsets[idx], batch.lengths[idx]);
+            }
+        } finally {
+            if(pg != null) {
+                pg.release();
+            }
+        }
+    }
+
+    private Page getPage(int pgno) {
+        try {
+            return pc.getPage(pgno);
+        } catch(Exception e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+}
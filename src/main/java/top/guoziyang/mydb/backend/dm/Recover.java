@@ -1,285 +1,435 @@
 package top.guoziyang.mydb.backend.dm;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 
 import com.google.common.primitives.Bytes;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.LogReader;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
 
 /**
- * recover 例程主要也是两步：重做所有已完成事务 redo，撤销所有未完成事务undo：
- * 两个日志格式：
+ * recover 例程参考 ARIES，分为分析、重做、撤销三个阶段，只扫描一遍检查点之后的日志：
+ * 五种日志格式：
  *      updateLog:
- *      [LogType] [XID] [UID] [OldRaw] [NewRaw]
+ *      [LogType] [XID] [PrevLSN] [UID] [OldRaw] [NewRaw]
  *      insertLog:
+ *      [LogType] [XID] [PrevLSN] [Pgno] [Offset] [Raw]
+ *      compensationLog（CLR，撤销一条日志时写入，记录撤销所做的修改，本身不会被撤销）:
+ *      [LogType] [XID] [PrevLSN] [UndoNextLSN] [Pgno] [Offset] [Raw]
+ *      checkpointLog（检查点时的活跃事务表）:
+ *      [LogType] [Count] [XID LastLSN] * Count
+ *      compactLog（页面压缩，由超级事务写入，只需要重做）:
+ *      [LogType] [XID] [PrevLSN] [Pgno] [FSO]
+ * PrevLSN 是同一事务上一条日志的位置，把一个事务的所有日志串成一条反向链表，0 表示没有上一条；
+ * UndoNextLSN 是这条 CLR 撤销的日志的 PrevLSN，也就是下一条需要撤销的日志。
+ *
+ * 从旧版本迁移过来的日志开头还有旧格式的插入和更新日志（类型 0 和 1），除了没有 PrevLSN 之外与新格式相同：
+ *      [LogType] [XID] [UID] [OldRaw] [NewRaw]
  *      [LogType] [XID] [Pgno] [Offset] [Raw]
+ * 旧日志之后还没有做过检查点时，恢复会从头扫描到它们：重做与新格式相同；撤销时没有 PrevLSN，
+ * 分析阶段顺序扫描时为需要撤销的事务记下它的上一条旧格式日志（legacyPrev），相当于旧版本的反向扫描撤销，
+ * 撤销写入的 CLR 照常指向它，再次崩溃时也能接着撤销。
+ *
+ *      1、分析 + 重做：从检查点位置开始顺序扫描一遍，建立活跃事务表（事务 -> 最后一条日志的位置）
+ *         和脏页面表（页面 -> 检查点之后第一条修改它的日志的位置），同时按日志顺序重做所有修改（包括 CLR），
+ *         检查点之前的修改已经写回数据文件，不需要重做；
+ *         重做按页号分给多个线程并行执行（见 ParallelRedo），同一页面的日志由同一个线程按日志顺序重做，
+ *         不同页面之间的重做没有先后关系；
+ *      2、撤销：活跃事务表中在事务管理器里仍然是活跃状态的事务需要撤销，
+ *         从它们的最后一条日志开始，按日志位置从后往前沿着 PrevLSN 链撤销，每撤销一条先写一条 CLR，
+ *         遇到 CLR 直接跳到它的 UndoNextLSN，撤销到链表头之后将事务标记为 abort。
+ *         恢复过程中再次崩溃时，已经撤销过的日志有对应的 CLR，下次恢复会重做 CLR 并从 UndoNextLSN 继续，不会重复撤销。
  */
 public class Recover {
 
-    private static final byte LOG_TYPE_INSERT = 0;
-    private static final byte LOG_TYPE_UPDATE = 1;
-
-    private static final int REDO = 0;
-    private static final int UNDO = 1;
+    // 类型 0 和 1 是没有 PrevLSN 的旧格式日志
+    private static final byte LOG_TYPE_LEGACY_INSERT = 0;
+    private static final byte LOG_TYPE_LEGACY_UPDATE = 1;
+    private static final byte LOG_TYPE_INSERT = 2;
+    private static final byte LOG_TYPE_UPDATE = 3;
+    private static final byte LOG_TYPE_COMPENSATION = 4;
+    static final byte LOG_TYPE_CHECKPOINT = 5;
+    private static final byte LOG_TYPE_COMPACT = 6;
 
+    /**
+     * 解析出的日志都指向 LogReader 缓冲区中的一段，不拷贝数据，
+     * 扫描时复用同一个对象，只在读取下一条日志之前有效
+     */
     static class InsertLogInfo {
         long xid;
         int pgno;
         short offset;
-        byte[] raw;
+        byte[] buf;
+        int rawStart;
+        int rawLength;
     }
 
     static class UpdateLogInfo {
         long xid;
         int pgno;
         short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+        byte[] buf;
+        int oldStart;
+        int newStart;
+        int rawLength;
+    }
+
+    static class CompensationLogInfo {
+        long xid;
+        long undoNext;
+        int pgno;
+        short offset;
+        byte[] buf;
+        int rawStart;
+        int rawLength;
     }
 
+    public static final int DEFAULT_REDO_THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+        recover(tm, lg, pc, DEFAULT_REDO_THREADS);
+    }
+
+    /**
+     * @param redoThreads 重做使用的线程数，为 1 时在当前线程中逐条重做
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, int redoThreads) {
         System.out.println("Recovering...");
 
-        lg.rewind();
-        int maxPgno = 0;
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
-            }
-            if(pgno > maxPgno) {
-                maxPgno = pgno;
-            }
+        // 读取检查点
+        Page one = null;
+        try {
+            one = pc.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
         }
-        if(maxPgno == 0) {
-            maxPgno = 1;
+        long checkpointLsn = PageOne.getCheckpointLsn(one);
+        int checkpointPages = PageOne.getCheckpointPageNumber(one);
+        one.release();
+        if(checkpointLsn != 0) {
+            System.out.println("Checkpoint at " + checkpointLsn + ".");
+        }
+
+        LogReader reader = lg.reader();
+        Map<Long, Long> activeTransactions = new HashMap<>();
+        Map<Integer, Long> dirtyPages = new HashMap<>();
+        Map<Long, Long> legacyPrev = new HashMap<>();
+        ParallelRedo redo = new ParallelRedo(pc, redoThreads);
+        analyzeAndRedo(tm, reader, redo, checkpointLsn, activeTransactions, dirtyPages, legacyPrev);
+        redo.finish();
+        System.out.println("Redo " + dirtyPages.size() + " pages over.");
+
+        int maxPgno = Math.max(1, checkpointPages);
+        for(int pgno : dirtyPages.keySet()) {
+            maxPgno = Math.max(maxPgno, pgno);
         }
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
-
-        undoTranscations(tm, lg, pc);
+        undoTranscations(tm, lg, reader, pc, activeTransactions, legacyPrev);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
     /**
-     * 重做事务
-     * @param tm 事务管理器
-     * @param lg 日志
-     * @param pc 页面缓存
+     * 分析 + 重做：从检查点开始扫描一遍日志，重做交给 ParallelRedo 按页号分发
+     * @param activeTransactions 活跃事务表，事务 -> 最后一条日志的位置
+     * @param dirtyPages 脏页面表，页面 -> 检查点之后第一条修改它的日志的位置
+     * @param legacyPrev 需要撤销的事务的旧格式日志 -> 同一事务上一条日志的位置
      */
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind(); // 日志文件指针指向第一条记录
-        // 无限循环遍历日志，进行重做操作
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                // 如果是一条插入日志，则进行doInsertLog的重做操作
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    // 此事务在数据库崩溃的时候必须是非活跃状态，也就是已提交状态才能进行重做
-                    doInsertLog(pc, log, REDO);
+    private static void analyzeAndRedo(TransactionManager tm, LogReader reader, ParallelRedo redo, long checkpointLsn,
+                                       Map<Long, Long> activeTransactions, Map<Integer, Long> dirtyPages,
+                                       Map<Long, Long> legacyPrev) {
+        if(checkpointLsn == 0) {
+            reader.rewind();
+        } else {
+            reader.seek(checkpointLsn);
+        }
+        while(reader.next()) {
+            byte[] buf = reader.data();
+            int off = reader.offset();
+            int len = reader.length();
+            long lsn = reader.lsn();
+            byte type = buf[off + OF_TYPE];
+            if(type == LOG_TYPE_CHECKPOINT) {
+                // 检查点时的活跃事务表，检查点位置之后已经出现过的事务以扫描到的为准
+                int count = Parser.parseInt(buf, off + OF_CKPT_COUNT);
+                for(int i = 0; i < count; i ++) {
+                    int entry = off + OF_CKPT_ENTRIES + i * 16;
+                    activeTransactions.putIfAbsent(Parser.parseLong(buf, entry), Parser.parseLong(buf, entry + 8));
                 }
-            } else {
-                // 如果是一条更新日志，则进行doUpdateLog的重做操作
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    // 此事务在数据库崩溃的时候必须是非活跃状态，也就是已提交状态才能进行重做
-                    doUpdateLog(pc, log, REDO);
+                continue;
+            }
+            if(type < LOG_TYPE_LEGACY_INSERT || type > LOG_TYPE_COMPACT) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            int pgno = parsePgno(buf, off);
+            redo.redo(pgno, buf, off, len);
+            long xid = Parser.parseLong(buf, off + OF_XID);
+            if(xid != TransactionManagerImpl.SUPER_XID) {
+                if(isLegacy(type) && tm.isActive(xid)) {
+                    // 旧格式的日志没有 PrevLSN，顺序扫描时记下同一事务的上一条日志
+                    legacyPrev.put(lsn, activeTransactions.getOrDefault(xid, 0L));
                 }
+                activeTransactions.put(xid, lsn);
             }
+            dirtyPages.putIfAbsent(pgno, lsn);
+        }
+    }
+
+    /**
+     * 在页面上重做一条插入、更新、补偿或者压缩日志
+     * @param pg 日志修改的页面，调用者负责获取和释放
+     */
+    static void redo(Page pg, byte[] buf, int off, int len) {
+        int gap = prevGap(buf[off + OF_TYPE]);
+        switch(buf[off + OF_TYPE]) {
+            case LOG_TYPE_LEGACY_INSERT:
+            case LOG_TYPE_INSERT:
+                PageX.recoverInsert(pg, buf, off + OF_INSERT_RAW - gap, len - OF_INSERT_RAW + gap,
+                    Parser.parseShort(buf, off + OF_INSERT_OFFSET - gap));
+                break;
+            case LOG_TYPE_LEGACY_UPDATE:
+            case LOG_TYPE_UPDATE:
+                int rawLength = (len - OF_UPDATE_RAW + gap) / 2;
+                short offset = (short)(Parser.parseLong(buf, off + OF_UPDATE_UID - gap) & ((1L << 16) - 1));
+                PageX.recoverUpdate(pg, buf, off + OF_UPDATE_RAW - gap + rawLength, rawLength, offset);
+                break;
+            case LOG_TYPE_COMPENSATION:
+                PageX.recoverUpdate(pg, buf, off + OF_CLR_RAW, len - OF_CLR_RAW, Parser.parseShort(buf, off + OF_CLR_OFFSET));
+                break;
+            case LOG_TYPE_COMPACT:
+                PageX.compact(pg, Parser.parseShort(buf, off + OF_COMPACT_FSO));
+                break;
+        }
+    }
+
+    private static boolean isLegacy(byte type) {
+        return type == LOG_TYPE_LEGACY_INSERT || type == LOG_TYPE_LEGACY_UPDATE;
+    }
+
+    // 旧格式的日志没有 PrevLSN，XID 之后的字段都比新格式靠前 8 字节
+    private static int prevGap(byte type) {
+        return isLegacy(type) ? 8 : 0;
+    }
+
+    // 日志修改的页号
+    private static int parsePgno(byte[] buf, int off) {
+        int gap = prevGap(buf[off + OF_TYPE]);
+        switch(buf[off + OF_TYPE]) {
+            case LOG_TYPE_LEGACY_INSERT:
+            case LOG_TYPE_INSERT:
+                return Parser.parseInt(buf, off + OF_INSERT_PGNO - gap);
+            case LOG_TYPE_LEGACY_UPDATE:
+            case LOG_TYPE_UPDATE:
+                return (int)(Parser.parseLong(buf, off + OF_UPDATE_UID - gap) >>> 32);
+            case LOG_TYPE_COMPACT:
+                return Parser.parseInt(buf, off + OF_COMPACT_PGNO);
+            default:
+                return Parser.parseInt(buf, off + OF_CLR_PGNO);
         }
     }
 
     /**
      * 撤销事务
+     * 所有需要撤销的事务的日志放在一个按位置排序的大顶堆中，每次撤销位置最大的一条，
+     * 沿着 PrevLSN 反向链表回溯，不需要再扫描日志；旧格式的日志从 legacyPrev 中找到上一条
      * @param tm 事务
-     * @param lg 日志
+     * @param lg 日志，用来写入 CLR
+     * @param reader 日志读取器
      * @param pc 页面缓存
+     * @param activeTransactions 活跃事务表
+     * @param legacyPrev 旧格式日志 -> 同一事务上一条日志的位置
      */
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        // 日志缓存，key：事务ID，value：日志DATA内容的List；方便后面一次性撤销操作
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();     // 日志文件指针指向第一条记录
-        // 无限循环遍历日志，进行撤销操作
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);     // 解析为InsertLog格式
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    // 事务处于为提交状态，才能进行撤销
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);             // 使用一个日志缓存Map记录此事务需要撤销的日志数据
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
+    private static void undoTranscations(TransactionManager tm, Logger lg, LogReader reader, PageCache pc,
+                                         Map<Long, Long> activeTransactions, Map<Long, Long> legacyPrev) {
+        // [LSN, XID]
+        PriorityQueue<long[]> toUndo = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+        for(Entry<Long, Long> e : activeTransactions.entrySet()) {
+            if(tm.isActive(e.getKey())) {
+                // 事务处于未提交状态，才需要撤销
+                toUndo.add(new long[] {e.getValue(), e.getKey()});
             }
         }
 
-        // 对所有active log进行倒序undo，遍历logCache即可
-        for(Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            // 获得一个事务的所有日志List
-            List<byte[]> logs = entry.getValue();
-            // 倒序进行撤销操作
-            for (int i = logs.size()-1; i >= 0; i--) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
+        UpdateLogInfo ui = new UpdateLogInfo();
+        InsertLogInfo ii = new InsertLogInfo();
+        CompensationLogInfo ci = new CompensationLogInfo();
+        while(!toUndo.isEmpty()) {
+            long[] next = toUndo.poll();
+            long xid = next[1];
+            reader.seek(next[0]);
+            if(!reader.next()) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            byte[] buf = reader.data();
+            int off = reader.offset();
+            int len = reader.length();
+            byte type = buf[off + OF_TYPE];
+            long undoNext;
+            byte[] clr;
+            if(type == LOG_TYPE_COMPENSATION) {
+                // 这条日志之前的部分已经撤销过了
+                parseCompensationLog(buf, off, len, ci);
+                undoNext = ci.undoNext;
+                clr = null;
+            } else {
+                // 旧格式的日志没有 PrevLSN，上一条日志在分析阶段记下了
+                undoNext = isLegacy(type) ? legacyPrev.get(next[0]) : Parser.parseLong(buf, off + OF_PREV);
+                switch(type) {
+                    case LOG_TYPE_LEGACY_INSERT:
+                    case LOG_TYPE_INSERT:
+                        // 撤销插入：将插入的 DataItem 标记为无效
+                        parseInsertLog(buf, off, len, ii);
+                        byte[] raw = Arrays.copyOfRange(ii.buf, ii.rawStart, ii.rawStart + ii.rawLength);
+                        DataItem.setDataItemRawInvalid(raw);
+                        clr = compensationLog(xid, activeTransactions.get(xid), undoNext, ii.pgno, ii.offset, raw, 0, raw.length);
+                        break;
+                    case LOG_TYPE_LEGACY_UPDATE:
+                    case LOG_TYPE_UPDATE:
+                        // 撤销更新：写回旧数据
+                        parseUpdateLog(buf, off, len, ui);
+                        clr = compensationLog(xid, activeTransactions.get(xid), undoNext, ui.pgno, ui.offset, ui.buf, ui.oldStart, ui.rawLength);
+                        break;
+                    default:
+                        Panic.panic(Error.BadLogFileException);
+                        return;
                 }
             }
-            // 将此事务标记为 abort状态
-            tm.abort(entry.getKey());
+            if(clr != null) {
+                // 先写 CLR 再修改页面
+                activeTransactions.put(xid, lg.log(clr));
+                parseCompensationLog(clr, 0, clr.length, ci);
+                doCompensationLog(pc, ci);
+            }
+            if(undoNext != 0) {
+                toUndo.add(new long[] {undoNext, xid});
+            } else {
+                // 将此事务标记为 abort状态
+                tm.abort(xid);
+            }
         }
     }
 
-    /**
-     * 判断是否是插入日志
-     * insertLog:
-     *      [LogType] [XID] [Pgno] [Offset] [Raw]
-     * 直接读取日志的第一位状态即可
-     * @param log 日志
-     */
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
-    }
+    private static final int OF_TYPE = 0;                       // 日志类型偏移位置
+    private static final int OF_XID = OF_TYPE+1;                // 日志的事务ID偏移位置
+    private static final int OF_PREV = OF_XID+8;                // 同一事务上一条日志位置的偏移位置
 
     /**
      * updateLog:
-     * [LogType] [XID] [UID] [OldRaw] [NewRaw]
-     *   1字节    8字节 8字节  8字节
+     * [LogType] [XID] [PrevLSN] [UID] [OldRaw] [NewRaw]
+     *   1字节    8字节   8字节   8字节
      */
-    private static final int OF_TYPE = 0;                       // 日志类型偏移位置
-    private static final int OF_XID = OF_TYPE+1;                // 日志的事务ID偏移位置
-    private static final int OF_UPDATE_UID = OF_XID+8;          // 日志旧数据的偏移位置
+    private static final int OF_UPDATE_UID = OF_PREV+8;         // 日志旧数据的偏移位置
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;   // 日志更新内容的偏移位置
 
     /**
      * 更新日志
      * @param xid 事务ID
+     * @param prevLsn 同一事务上一条日志的位置
      * @param di 抽象数据
      * @return
      */
-    public static byte[] updateLog(long xid, DataItem di) {
+    public static byte[] updateLog(long xid, long prevLsn, DataItem di) {
         byte[] logType = {LOG_TYPE_UPDATE};
         byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] prevRaw = Parser.long2Byte(prevLsn);
         byte[] uidRaw = Parser.long2Byte(di.getUid());
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
         byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        return Bytes.concat(logType, xidRaw, prevRaw, uidRaw, oldRaw, newRaw);
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
-        UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+    private static void parseUpdateLog(byte[] buf, int off, int len, UpdateLogInfo li) {
+        int gap = prevGap(buf[off + OF_TYPE]);
+        li.xid = Parser.parseLong(buf, off + OF_XID);
+        long uid = Parser.parseLong(buf, off + OF_UPDATE_UID - gap);
         li.offset = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW+length, OF_UPDATE_RAW+length*2);
-        return li;
-    }
-
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if(flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
-        } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
-        }
-        Page pg = null;
-        try {
-            pg = pc.getPage(pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        try {
-            PageX.recoverUpdate(pg, raw, offset);
-        } finally {
-            pg.release();
-        }
+        li.buf = buf;
+        li.rawLength = (len - OF_UPDATE_RAW + gap) / 2;
+        li.oldStart = off + OF_UPDATE_RAW - gap;
+        li.newStart = li.oldStart + li.rawLength;
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
-    private static final int OF_INSERT_PGNO = OF_XID+8;
+    // [LogType] [XID] [PrevLSN] [Pgno] [Offset] [Raw]
+    private static final int OF_INSERT_PGNO = OF_PREV+8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
 
     /**
      * 插入日志
      * @param xid
+     * @param prevLsn 同一事务上一条日志的位置
      * @param pg
      * @param raw
      * @return
      */
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+    public static byte[] insertLog(long xid, long prevLsn, Page pg, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] prevRaw = Parser.long2Byte(prevLsn);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
         byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        return Bytes.concat(logTypeRaw, xidRaw, prevRaw, pgnoRaw, offsetRaw, raw);
+    }
+
+    private static void parseInsertLog(byte[] buf, int off, int len, InsertLogInfo li) {
+        int gap = prevGap(buf[off + OF_TYPE]);
+        li.xid = Parser.parseLong(buf, off + OF_XID);
+        li.pgno = Parser.parseInt(buf, off + OF_INSERT_PGNO - gap);
+        li.offset = Parser.parseShort(buf, off + OF_INSERT_OFFSET - gap);
+        li.buf = buf;
+        li.rawStart = off + OF_INSERT_RAW - gap;
+        li.rawLength = len - OF_INSERT_RAW + gap;
+    }
+
+
+    // [LogType] [XID] [PrevLSN] [UndoNextLSN] [Pgno] [Offset] [Raw]
+    private static final int OF_CLR_UNDO_NEXT = OF_PREV+8;
+    private static final int OF_CLR_PGNO = OF_CLR_UNDO_NEXT+8;
+    private static final int OF_CLR_OFFSET = OF_CLR_PGNO+4;
+    private static final int OF_CLR_RAW = OF_CLR_OFFSET+2;
+
+    /**
+     * 补偿日志：撤销一条日志时，把撤销所做的修改（将 raw 写到 pgno 页的 offset 处）记录下来
+     * @param undoNext 被撤销的日志的 PrevLSN
+     */
+    private static byte[] compensationLog(long xid, long prevLsn, long undoNext, int pgno, short offset, byte[] buf, int start, int length) {
+        byte[] logTypeRaw = {LOG_TYPE_COMPENSATION};
+        return Bytes.concat(logTypeRaw, Parser.long2Byte(xid), Parser.long2Byte(prevLsn), Parser.long2Byte(undoNext),
+            Parser.int2Byte(pgno), Parser.short2Byte(offset), Arrays.copyOfRange(buf, start, start + length));
     }
 
-    private static InsertLogInfo parseInsertLog(byte[] log) {
-        InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
-        return li;
+    private static void parseCompensationLog(byte[] buf, int off, int len, CompensationLogInfo li) {
+        li.xid = Parser.parseLong(buf, off + OF_XID);
+        li.undoNext = Parser.parseLong(buf, off + OF_CLR_UNDO_NEXT);
+        li.pgno = Parser.parseInt(buf, off + OF_CLR_PGNO);
+        li.offset = Parser.parseShort(buf, off + OF_CLR_OFFSET);
+        li.buf = buf;
+        li.rawStart = off + OF_CLR_RAW;
+        li.rawLength = len - OF_CLR_RAW;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
-        InsertLogInfo li = parseInsertLog(log);
+    private static void doCompensationLog(PageCache pc, CompensationLogInfo li) {
         Page pg = null;
         try {
             pg = pc.getPage(li.pgno);
@@ -287,12 +437,43 @@ public class Recover {
             Panic.panic(e);
         }
         try {
-            if(flag == UNDO) {
-                DataItem.setDataItemRawInvalid(li.raw);
-            }
-            PageX.recoverInsert(pg, li.raw, li.offset);
+            PageX.recoverUpdate(pg, li.buf, li.rawStart, li.rawLength, li.offset);
         } finally {
             pg.release();
         }
     }
+
+    // [LogType] [XID] [PrevLSN] [Pgno] [FSO]
+    private static final int OF_COMPACT_PGNO = OF_PREV+8;
+    private static final int OF_COMPACT_FSO = OF_COMPACT_PGNO+4;
+
+    /**
+     * 压缩日志：页面 pgno 的 FSO 退回到 fso，由超级事务写入，不会被撤销
+     */
+    public static byte[] compactLog(int pgno, short fso) {
+        byte[] logTypeRaw = {LOG_TYPE_COMPACT};
+        return Bytes.concat(logTypeRaw, Parser.long2Byte(TransactionManagerImpl.SUPER_XID), Parser.long2Byte(0),
+            Parser.int2Byte(pgno), Parser.short2Byte(fso));
+    }
+
+    // [LogType] [Count] [XID LastLSN] * Count
+    static final int OF_CKPT_COUNT = OF_TYPE+1;
+    private static final int OF_CKPT_ENTRIES = OF_CKPT_COUNT+4;
+
+    /**
+     * 检查点日志，记录检查点时每个事务最后一条日志的位置
+     * @param lastLsn 事务 -> 最后一条日志的位置
+     */
+    public static byte[] checkpointLog(Map<Long, Long> lastLsn) {
+        byte[] raw = new byte[OF_CKPT_ENTRIES + lastLsn.size() * 16];
+        raw[OF_TYPE] = LOG_TYPE_CHECKPOINT;
+        System.arraycopy(Parser.int2Byte(lastLsn.size()), 0, raw, OF_CKPT_COUNT, 4);
+        int pos = OF_CKPT_ENTRIES;
+        for(Entry<Long, Long> e : lastLsn.entrySet()) {
+            System.arraycopy(Parser.long2Byte(e.getKey()), 0, raw, pos, 8);
+            System.arraycopy(Parser.long2Byte(e.getValue()), 0, raw, pos + 8, 8);
+            pos += 16;
+        }
+        return raw;
+    }
 }
@@ -55,6 +55,26 @@ public interface DataItem {
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
-        raw[DataItemImpl.OF_VALID] = (byte)1;
+        setDataItemRawInvalid(raw, 0);
+    }
+
+    // 将 raw 中从 start 开始的 DataItem 标记为无效
+    public static void setDataItemRawInvalid(byte[] raw, int start) {
+        raw[start + DataItemImpl.OF_VALID] = (byte)1;
+    }
+
+    // 将 raw 中从 start 开始的 DataItem 标记为被垃圾回收
+    public static void setDataItemRawFreed(byte[] raw, int start) {
+        raw[start + DataItemImpl.OF_VALID] = DataItemImpl.FLAG_FREED;
+    }
+
+    // raw 中从 start 开始的 DataItem 是否被垃圾回收
+    public static boolean isDataItemRawFreed(byte[] raw, int start) {
+        return raw[start + DataItemImpl.OF_VALID] == DataItemImpl.FLAG_FREED;
+    }
+
+    // raw 中从 start 开始的 DataItem 的总长度
+    public static int getDataItemRawLength(byte[] raw, int start) {
+        return Parser.parseShort(raw, start + DataItemImpl.OF_SIZE) + DataItemImpl.OF_DATA;
     }
 }
@@ -12,7 +12,7 @@ import top.guoziyang.mydb.backend.dm.page.Page;
  * dataItem 是 页面中指定数据的打包结构，也是具体操作数据的结构
  * dataItem 结构如下：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节，0为合法，1为非法
+ * ValidFlag 1字节，0为合法，1为非法，2为被垃圾回收（非法，空间可以被页面压缩回收）
  * DataSize  2字节，标识Data的长度
  */
 public class DataItemImpl implements DataItem {
@@ -22,6 +22,8 @@ public class DataItemImpl implements DataItem {
     static final int OF_SIZE = 1;
     static final int OF_DATA = 3;
 
+    static final byte FLAG_FREED = 2;
+
     private SubArray raw;           // 子区间数据，共享内存
     private byte[] oldRaw;          // 暂存需要修改的数据内容
     private Lock rLock;             // 读锁
@@ -64,10 +66,11 @@ public class DataItemImpl implements DataItem {
 
     /**
      * 修改数据之前的操作
-     * 包含了加写锁，设置脏页面，暂存需要修改的数据内容到oldRaw
+     * 包含了阻止检查点，加写锁，设置脏页面，暂存需要修改的数据内容到oldRaw
      */
     @Override
     public void before() {
+        dm.enterModify();
         wLock.lock();
         pg.setDirty(true);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
@@ -81,6 +84,7 @@ public class DataItemImpl implements DataItem {
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
         wLock.unlock();
+        dm.exitModify();
     }
 
     /**
@@ -92,6 +96,7 @@ public class DataItemImpl implements DataItem {
     public void after(long xid) {
         dm.logDataItem(xid, this);
         wLock.unlock();
+        dm.exitModify();
     }
 
     /**
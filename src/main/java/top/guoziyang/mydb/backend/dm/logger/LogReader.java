@@ -0,0 +1,164 @@
+package top.guoziyang.mydb.backend.dm.logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * 顺序读取日志的迭代器，恢复时使用
+ * 每次从段文件中读入一大块到复用的缓冲区，next() 读到的记录直接指向缓冲区中的一段，不拷贝也不分配对象：
+ *      data() 返回缓冲区，offset() 和 length() 标识当前记录 Data 的位置；
+ *      记录的内容只在下一次调用 next() 之前有效，需要保留时由调用者自己拷贝。
+ * 读取器不加锁，读取期间日志段不能被回收。
+ */
+public class LogReader {
+
+    private static final int BUFFER_SIZE = 1 << 20;     // 读缓冲区的大小，单条记录不会超过它
+
+    private LoggerImpl lg;
+    private byte[] buf;
+    private ByteBuffer view;
+    private CRC32C crc;
+
+    private long bufLsn;                                // 缓冲区第一个字节对应的 LSN
+    private int bufLen;                                 // 缓冲区中有效的字节数
+    private long limit;                                 // 读取的上界
+
+    private long position;                              // 下一条记录的位置
+    private long recordLsn;                             // 当前记录的起始位置
+    private int offset;                                 // 当前记录 Data 在缓冲区中的偏移
+    private int length;                                 // 当前记录 Data 的长度
+
+    LogReader(LoggerImpl lg, long limit) {
+        this.lg = lg;
+        this.limit = limit;
+        this.buf = new byte[BUFFER_SIZE];
+        this.view = ByteBuffer.wrap(buf);
+        this.crc = new CRC32C();
+        rewind();
+    }
+
+    /**
+     * 修改读取的上界，缓冲区中上界之后的内容可能已经被改写，一并丢弃
+     */
+    void limit(long limit) {
+        if(this.limit != limit) {
+            this.limit = limit;
+            bufLen = 0;
+        }
+    }
+
+    /**
+     * 将读取位置指向第一条记录
+     */
+    public void rewind() {
+        position = lg.firstRecord();
+    }
+
+    /**
+     * 将读取位置指向 position 处的日志，position必须是 Logger.tail() 曾经返回过的值
+     */
+    public void seek(long position) {
+        this.position = position;
+    }
+
+    /**
+     * 读取下一条记录，跳过段尾的 Padding 和 Footer
+     * @return 没有下一条完整的记录时返回 false，读取位置不变
+     */
+    public boolean next() {
+        long pos = position;
+        while(true) {
+            long end = lg.footerStart(pos);
+            if(end - pos < LoggerImpl.OF_DATA) {
+                // 本段剩下的空间放不下一条记录，直接跳到下一段
+                pos = lg.firstRecord(lg.segmentOf(pos) + 1);
+                continue;
+            }
+            if(pos + LoggerImpl.OF_DATA > limit || !fill(pos, LoggerImpl.OF_DATA)) {
+                return false;
+            }
+            int o = (int)(pos - bufLsn);
+            int size = Parser.parseInt(buf, o + LoggerImpl.OF_SIZE);
+            if(size == LoggerImpl.PADDING) {
+                pos = lg.firstRecord(lg.segmentOf(pos) + 1);
+                continue;
+            }
+            if(size < 0 || pos + LoggerImpl.OF_DATA + size > Math.min(limit, end)
+                || !fill(pos, LoggerImpl.OF_DATA + size)) {
+                return false;
+            }
+            o = (int)(pos - bufLsn);
+            // 校验 单条日志的 checksum
+            if(LoggerImpl.checksum(crc, lg.segmentOf(pos), buf, o, size) != Parser.parseInt(buf, o + LoggerImpl.OF_CHECKSUM)) {
+                return false;
+            }
+            recordLsn = pos;
+            offset = o + LoggerImpl.OF_DATA;
+            length = size;
+            position = pos + LoggerImpl.OF_DATA + size;
+            return true;
+        }
+    }
+
+    /**
+     * 保证缓冲区中包含 [pos, pos+n) 的内容，不在缓冲区中时从 pos 开始读入一整块，读入的内容不会跨段
+     * 往回读的时候（撤销时沿着事务的日志链回溯），读入以 pos 为中点的一块，之后更早的记录也能命中缓冲区
+     * @return 段不存在或者文件长度不够时返回 false
+     */
+    private boolean fill(long pos, int n) {
+        if(pos >= bufLsn && pos + n <= bufLsn + bufLen) {
+            return true;
+        }
+        FileChannel fc = lg.segment(lg.segmentOf(pos));
+        if(fc == null) {
+            return false;
+        }
+        long start = pos;
+        if(bufLen > 0 && pos < bufLsn) {
+            start = Math.max(lg.segmentOf(pos) * lg.segmentSize(), pos - buf.length / 2);
+        }
+        long fileOffset = start % lg.segmentSize();
+        view.clear();
+        view.limit((int)Math.min(buf.length, lg.segmentSize() - fileOffset));
+        try {
+            while(view.hasRemaining()) {
+                if(fc.read(view, fileOffset + view.position()) < 0) break;
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        bufLsn = start;
+        bufLen = view.position();
+        return pos + n <= bufLsn + bufLen;
+    }
+
+    // 当前记录 Data 所在的缓冲区
+    public byte[] data() {
+        return buf;
+    }
+
+    // 当前记录 Data 在缓冲区中的偏移
+    public int offset() {
+        return offset;
+    }
+
+    // 当前记录 Data 的长度
+    public int length() {
+        return length;
+    }
+
+    // 当前记录的起始位置
+    public long lsn() {
+        return recordLsn;
+    }
+
+    // 当前记录之后的位置，也就是下一条记录的位置
+    public long position() {
+        return position;
+    }
+}
@@ -1,30 +1,32 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 import top.guoziyang.mydb.backend.utils.Panic;
-import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.common.Error;
 
 /**
  * 日志接口
  * 默认提供两个静态函数：
- *      create(String path)：创建日志文件和打开日志功能
+ *      create(String path)：创建日志文件和打开日志功能，可以指定每个段文件的大小
  *      open(String path)：打开日志文件和打开日志功能
  */
 public interface Logger {
-    void log(byte[] data);                  // 写入一条日志记录
-    void truncate(long x) throws Exception; // 删除日志文件中x指针后面的文件数据
+    long log(byte[] data);                  // 写入一条日志记录，返回这条记录的位置
+    void truncate(long x) throws Exception; // 删除日志中x位置后面的数据
     byte[] next();                          // logger设计为一个迭代器，next()获取下一条日志，返回的是日志中的DATA数据
+    LogReader reader();                     // 新建一个不拷贝数据的读取器，恢复时使用
     void rewind();                          // 将文件指针指向第一条日志
+    void seek(long position);               // 将文件指针指向position处的日志，position必须是tail()曾经返回过的值
+    long tail();                            // 日志末尾的位置，也就是下一条日志将要写入的位置
+    void recycle(long position);            // 回收position所在段之前的所有段，position之前的日志不再需要
     void close();                           // 关闭日志
 
     public static Logger create(String path) {
+        return create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static Logger create(String path, long segmentSize) {
         File f = new File(path+LoggerImpl.LOG_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -37,50 +39,12 @@ public interface Logger {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        // 打开日志功能，总校验和初始值为0
-        return new LoggerImpl(raf, fc, 0);
+        // 打开日志功能，第 0 段写入段文件头
+        return LoggerImpl.create(path, segmentSize);
     }
 
     public static Logger open(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()) {
-            Panic.panic(Error.FileNotExistsException);
-        }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
-
-        // 打开日志功能，不需要设定总校验和的初始值
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        // 日志初始化
-        lg.init();
-
-        return lg;
+        // 找出所有段文件，校验最后一段；旧格式的日志会先迁移成新格式
+        return LoggerImpl.open(path);
     }
 }
@@ -1,12 +1,25 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 import com.google.common.primitives.Bytes;
 
@@ -16,240 +29,602 @@ import top.guoziyang.mydb.common.Error;
 
 /**
  * 日志文件读写
- * 
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 4字节int，为后续所有日志计算的Checksum
- * BadTail 是在数据库崩溃时，没有来得及写完的日志数据，这个 BadTail 不一定存在。
- * 
+ *
+ * 日志按 segmentSize 切分成多个段文件，第 0 段为 path.log，第 N 段为 path.log.N。
+ * LSN 是所有段拼接起来的逻辑位置：段号 * segmentSize + 段内偏移。
+ *
+ * 每个段文件的格式为：
+ * [Header] [Log1] [Log2] ... [LogN] [Padding] [Footer]
+ * Header 为 [LogMagic] [SegmentNo] [SegmentSize]，共20字节
+ * 日志记录不会跨越段的边界，放不下的记录前面用 Padding 填满本段，然后写入段尾 Footer，从下一段的第一条记录处继续。
+ * 最后一段还没有写满，没有 Footer，末尾可能有数据库崩溃时没有来得及写完的 BadTail。
+ *
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]
  * Size 4字节int 标识Data长度
- * Checksum 4字节int，单条记录的校验和
+ * Checksum 4字节int，段号、Size 和 Data 的 CRC32C。
+ * 校验和带上段号，回收复用的段文件中残留的旧记录不会被当成合法记录。
+ *
+ * Footer 的格式为：
+ * [FooterMagic] [SegmentNo] [SegmentChecksum] [FooterChecksum]
+ * SegmentChecksum 是本段所有记录 Checksum 的 CRC32C，FooterChecksum 是 Footer 前16字节的 CRC32C
+ *
+ * 每条记录自带校验，追加日志是纯顺序写；打开日志时写满的段逐条校验之后与 Footer 核对，最后一段逐条校验并截掉 BadTail。
+ * 检查点之后，recycle() 把不再需要的旧段改名为备用段（path.log.N.spare），写满当前段时优先复用备用段，多余的直接删除。
+ *
+ * 旧格式（单个文件，文件头是所有记录的总校验和 XChecksum）的日志在打开时会先校验，再按新格式改写一遍（见 migrateLegacy()）。
+ *
+ * 组提交：
+ * log() 把日志记录追加到内存中的 pending 队列，为它分配一个 LSN（写完这条日志之后的逻辑位置），然后等待这个 LSN 持久化。
+ * 等待者中没有人在刷盘时，由当前线程成为 leader，把 pending 中累积的所有记录一次顺序写入文件，每个段只 force 一次，
+ * 然后唤醒所有 LSN 已经持久化的等待者。并发写日志的线程因此共享同一次 fsync。
  */
 public class LoggerImpl implements Logger {
 
-    private static final int SEED = 13331;              // 计算校验和的种子
+    private static final int SEED = 13331;              // 旧格式计算校验和的种子
+
+    static final int LOG_MAGIC = 0x4D594C33;            // 段文件头的魔数
+    private static final int HEADER_SIZE = 20;
+
+    static final int OF_SIZE = 0;                        // 每条记录size的起始偏移量
+    static final int OF_CHECKSUM = OF_SIZE + 4;          // 每条记录CheckSum的偏移量（Size占用4字节，所以偏移量+4）
+    static final int OF_DATA = OF_CHECKSUM + 4;          // 每条记录Data的偏移量（CheckSum占用4字节，所以偏移量+4）
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;  // 默认每段 64MB
+    static final long MIN_SEGMENT_SIZE = 1 << 16;
+    private static final int MAX_SPARE_SEGMENTS = 2;    // 最多保留的备用段数
+    private static final int FOOTER_MAGIC = 0x53454746;
+    private static final int FOOTER_SIZE = 20;
+    static final int PADDING = -1;                       // Size 为 PADDING 表示本段剩余的部分是填充
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;       // leader 刷盘缓冲区的大小，超过它的记录在 append() 中被拒绝
+    private static final int MIGRATE_BATCH = 1 << 20;   // 迁移旧格式时，每积累这么多字节刷一次盘
 
-    private static final int OF_SIZE = 0;               // 每条记录size的起始偏移量
-    private static final int OF_CHECKSUM = OF_SIZE + 4; // 每条记录CheckSum的偏移量（Size占用4字节，所以偏移量+4）
-    private static final int OF_DATA = OF_CHECKSUM + 4; // 每条记录Data的偏移量（CheckSum占用4字节，所以偏移量+4）
-    
     public static final String LOG_SUFFIX = ".log";     // 日志文件的后缀
+    private static final String SPARE_SUFFIX = ".spare";        // 备用段的后缀
+    private static final String LEGACY_SUFFIX = ".legacy";      // 迁移中的旧格式日志的后缀
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+    private String path;
+    private long segmentSize;
+    private ConcurrentSkipListMap<Long, FileChannel> segments;  // 所有在用的段，key：段号
+    private Deque<File> spares;                         // 备用段
     private Lock lock;
 
-    private long position;                              // 当前日志指针的位置
-    private long fileSize;                              // 日志文件的大小，初始化时记录，log操作不更新
-    private int xChecksum;                              // 日志文件的总 校验和
+    private LogReader cursor;                           // next() 使用的读取器
+    private CRC32C segmentChecksum;                     // 当前段已经追加的记录的校验和
+    private CRC32C crc;                                 // 计算单条记录校验和用，只在 lock 内使用
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
-        lock = new ReentrantLock();
-    }
+    private Condition durable;                          // LSN 持久化的通知
+    private List<byte[]> pending;                       // 已经分配 LSN、还没有写入文件的日志记录
+    private long appendedLsn;                           // 已经分配出去的最大 LSN，也就是追加完 pending 之后的日志末尾
+    private long durableLsn;                            // 已经写入文件并 force 的位置
+    private boolean flushing;                           // 是否有 leader 正在刷盘
+    private ByteBuffer writeBuf;                        // leader 刷盘用的缓冲区
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;                     // 多了一个总校验和
+    LoggerImpl(String path, long segmentSize) {
+        this.path = path;
+        this.segmentSize = segmentSize;
+        segments = new ConcurrentSkipListMap<>();
+        spares = new ArrayDeque<>();
         lock = new ReentrantLock();
+        durable = lock.newCondition();
+        pending = new ArrayList<>();
+        segmentChecksum = new CRC32C();
+        crc = new CRC32C();
+        writeBuf = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
     }
 
     /**
-     * 日志初始化操作，完成日志文件长度的读取、总校验和的读取 和 BadTail的移除
+     * 新建日志，第 0 段文件必须已经创建好
      */
-    void init() {
-        long size = 0;
+    static LoggerImpl create(String path, long segmentSize) {
+        if(segmentSize < MIN_SEGMENT_SIZE) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        if(listFiles(path).length > 1) {
+            // 还残留着同名日志的其他段
+            Panic.panic(Error.FileExistsException);
+        }
+        LoggerImpl lg = new LoggerImpl(path, segmentSize);
         try {
-            size = file.length();
-        } catch (IOException e) {
+            lg.segments.put(0L, lg.activate(0));
+        } catch(IOException e) {
             Panic.panic(e);
         }
-        if(size < 4) {
+        lg.init();
+        return lg;
+    }
+
+    /**
+     * 打开日志：迁移旧格式的日志，读取所有段文件的文件头，找出在用的段和备用段
+     */
+    static LoggerImpl open(String path) {
+        migrateIfLegacy(path);
+
+        TreeMap<Long, File> files = new TreeMap<>();
+        List<File> spares = new ArrayList<>();
+        for(File f : listFiles(path)) {
+            String name = f.getName();
+            if(name.endsWith(SPARE_SUFFIX)) {
+                spares.add(f);
+            } else if(segmentNo(path, name) >= 0) {
+                files.put(segmentNo(path, name), f);
+            }
+        }
+        if(files.isEmpty()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+
+        long segmentSize = 0;
+        TreeMap<Long, File> active = new TreeMap<>();
+        for(Map.Entry<Long, File> e : files.entrySet()) {
+            long[] header = readHeader(e.getValue());
+            if(header != null && header[0] == e.getKey() && (segmentSize == 0 || header[1] == segmentSize)) {
+                active.put(e.getKey(), e.getValue());
+                segmentSize = header[1];
+            } else {
+                // 激活备用段的过程中崩溃，文件已经改名但文件头还没有写入，重新当作备用段
+                File spare = new File(e.getValue().getPath() + SPARE_SUFFIX);
+                rename(e.getValue(), spare);
+                spares.add(spare);
+            }
+        }
+        if(active.isEmpty() || active.lastKey() - active.firstKey() + 1 != active.size()) {
             Panic.panic(Error.BadLogFileException);
         }
 
-        // 读取日志文件的总校验和 xChecksum
-        ByteBuffer raw = ByteBuffer.allocate(4);
+        LoggerImpl lg = new LoggerImpl(path, segmentSize);
+        lg.spares.addAll(spares);
         try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
+            for(Map.Entry<Long, File> e : active.entrySet()) {
+                if(!e.getValue().canRead() || !e.getValue().canWrite()) {
+                    Panic.panic(Error.FileCannotRWException);
+                }
+                lg.segments.put(e.getKey(), FileChannel.open(e.getValue().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+            }
+        } catch(IOException e) {
             Panic.panic(e);
         }
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;                           // 文件长度
-        this.xChecksum = xChecksum;
+        lg.init();
+        return lg;
+    }
 
-        // 检查并移除 badTail
-        checkAndRemoveTail();
+    /**
+     * 日志初始化操作，校验写满的段的 Footer，校验最后一段 和 移除BadTail
+     */
+    void init() {
+        for(long no : segments.headMap(segments.lastKey()).keySet()) {
+            if(!checkFooter(no)) {
+                Panic.panic(Error.BadLogFileException);
+            }
+        }
+        checkAndRemoveTail(firstRecord(segments.lastKey()));
     }
 
     /**
-     * 检查并移除 badTail
+     * 校验写满的第 no 段：逐条校验记录并累加段校验和，再与 Footer 中的魔数、段号和段校验和核对
+     * 第 no+1 段存在时第 no 段一定已经完整地写入并 force，校验不通过说明日志损坏
      */
-    private void checkAndRemoveTail() {
-        // 将指针指向第一条日志记录
-        rewind();
-
-        int xCheck = 0;
-        while(true) {
-            byte[] log = internNext();
-            if(log == null) break;
-            // 对每条记录都进行计算校验和累加值，就是xChecksum
-            xCheck = calChecksum(xCheck, log);
-        }
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+    boolean checkFooter(long no) {
+        long footer = footerStart(firstRecord(no));
+        LogReader reader = new LogReader(this, footer);
+        reader.seek(firstRecord(no));
+        CRC32C checksum = new CRC32C();
+        while(reader.next()) {
+            checksum.update(reader.data(), reader.offset() - OF_DATA + OF_CHECKSUM, 4);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(FOOTER_SIZE);
+        read(segments.get(no), buf, footer % segmentSize);
+        return !buf.hasRemaining() && Arrays.equals(buf.array(), footer(no, (int)checksum.getValue()));
+    }
+
+    /**
+     * 从 start 开始逐条校验记录，截断第一条坏记录之后的 badTail
+     */
+    private void checkAndRemoveTail(long start) {
+        LogReader reader = new LogReader(this, Long.MAX_VALUE);
+        reader.seek(start);
+        while(reader.next()) {
+            // 重新计算最后一段的段校验和，后续追加时接着累加
+            segmentChecksum.update(reader.data(), reader.offset() - OF_DATA + OF_CHECKSUM, 4);
         }
+        long position = reader.position();
 
         try {
-            truncate(position); // 截断文件到正常日志的末尾，因为前面计算校验和移动了指针，此时的position指向的就是badTail的起始位置
+            truncate(position); // 截断文件到正常日志的末尾，此时的position指向的就是badTail的起始位置
         } catch (Exception e) {
             Panic.panic(e);
         }
-        try {
-            file.seek(position);
-        } catch (IOException e) {
+        this.appendedLsn = this.durableLsn = position;  // 后续日志从正常日志的末尾开始追加
+        // 迭代器指向第一条日志记录
+        cursor = new LogReader(this, durableLsn);
+    }
+
+    long segmentOf(long lsn) {
+        return lsn / segmentSize;
+    }
+
+    long segmentSize() {
+        return segmentSize;
+    }
+
+    // 第 no 段的第一条记录的位置
+    long firstRecord(long no) {
+        return no * segmentSize + HEADER_SIZE;
+    }
+
+    // 没有被回收的第一条记录的位置
+    long firstRecord() {
+        return firstRecord(segments.firstKey());
+    }
+
+    /**
+     * lsn 所在段的 Footer 的起始位置，也就是这一段中记录可以使用的上界
+     */
+    long footerStart(long lsn) {
+        return (segmentOf(lsn) + 1) * segmentSize - FOOTER_SIZE;
+    }
+
+    // 第 no 段的文件，已经被回收或者还没有启用时返回 null
+    FileChannel segment(long no) {
+        return segments.get(no);
+    }
+
+    private File segmentFile(long no) {
+        return segmentFile(path, no);
+    }
+
+    private static File segmentFile(String path, long no) {
+        return new File(no == 0 ? path + LOG_SUFFIX : path + LOG_SUFFIX + "." + no);
+    }
+
+    /**
+     * 列出属于这个日志的所有文件
+     */
+    private static File[] listFiles(String path) {
+        File base = new File(path + LOG_SUFFIX).getAbsoluteFile();
+        String name = base.getName();
+        File[] files = base.getParentFile().listFiles((d, n) -> n.equals(name) || n.startsWith(name + "."));
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * 解析段文件名中的段号，不是段文件时返回 -1
+     */
+    private static long segmentNo(String path, String fileName) {
+        String name = new File(path + LOG_SUFFIX).getName();
+        if(fileName.equals(name)) {
+            return 0;
+        }
+        String no = fileName.substring(name.length() + 1);
+        if(no.isEmpty() || !no.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Long.parseLong(no);
+    }
+
+    /**
+     * 读取段文件头
+     * @return [SegmentNo, SegmentSize]，文件头不合法时返回 null
+     */
+    private static long[] readHeader(File f) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        try(FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            while(buf.hasRemaining() && fc.read(buf, buf.position()) >= 0);
+        } catch(IOException e) {
             Panic.panic(e);
         }
-        // 将position指针指向第一条日志记录，还原指针操作
-        rewind();
+        byte[] raw = buf.array();
+        if(buf.hasRemaining() || Parser.parseInt(Arrays.copyOfRange(raw, 0, 4)) != LOG_MAGIC) {
+            return null;
+        }
+        return new long[] {
+            Parser.parseLong(Arrays.copyOfRange(raw, 4, 12)),
+            Parser.parseLong(Arrays.copyOfRange(raw, 12, 20))
+        };
     }
 
     /**
-     * 单条日志的校验和
-     * 其实就是通过一个指定的种子实现的，对日志的每个字节乘一个SEED再累加，就能得到单条日志文件的校验和了。
-     * @param xCheck 校验和初始值，一般是0
-     * @param log 需要计算校验和的单条日志文件
-     * @return 单条日志的校验和
+     * 启用第 no 段：优先复用备用段，没有备用段时新建文件，写入文件头并 force
      */
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    private FileChannel activate(long no) throws IOException {
+        File f = segmentFile(no);
+        File spare;
+        synchronized(spares) {
+            spare = spares.poll();
+        }
+        if(spare != null) {
+            rename(spare, f);
+        }
+        FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        byte[] header = Bytes.concat(Parser.int2Byte(LOG_MAGIC), Parser.long2Byte(no), Parser.long2Byte(segmentSize));
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        while(buf.hasRemaining()) {
+            fc.write(buf, buf.position());
+        }
+        fc.force(true);
+        syncDirectory(f);
+        return fc;
+    }
+
+    /**
+     * 第 no 段的文件，还没有启用时启用它
+     */
+    private FileChannel channel(long no) throws IOException {
+        FileChannel fc = segments.get(no);
+        if(fc == null) {
+            fc = activate(no);
+            segments.put(no, fc);
+        }
+        return fc;
+    }
+
+    /**
+     * 把新建、改名的文件所在的目录项刷盘，不支持对目录 force 的平台上忽略
+     */
+    private static void syncDirectory(File f) {
+        try(FileChannel dir = FileChannel.open(f.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch(IOException e) {
+            // ignore
+        }
+    }
+
+    private static void rename(File from, File to) {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            Panic.panic(e);
         }
-        return xCheck;
     }
 
     /**
-     * 写入一条日志记录
+     * 写入一条日志记录，返回时这条日志已经持久化
      * @param data 日志数据
+     * @return 这条记录的起始位置，可以用 LogReader.seek() 重新读到它
      */
     @Override
-    public void log(byte[] data) {
+    public long log(byte[] data) {
         byte[] log = wrapLog(data); // 将数据打包成正确的日志格式
-        ByteBuffer buf = ByteBuffer.wrap(log);
         lock.lock();
         try {
-            fc.position(fc.size()); // 指针移动到文件末尾
-            fc.write(buf);          // 将记录写入文件
-        } catch(IOException e) {
-            Panic.panic(e);
+            long lsn = append(log);
+            waitDurable(lsn);
+            return lsn - log.length;
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);       // 更新总校验和
     }
 
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    /**
+     * 为一条记录分配位置，填写校验和，放进 pending 队列，本段放不下时先追加 Padding 和 Footer
+     * 超过刷盘缓冲区（也是 LogReader 读缓冲区的大小）或者一整段放不下的记录直接拒绝，不修改任何状态
+     * 调用时必须持有 lock
+     * @return 这条记录的 LSN
+     */
+    private long append(byte[] log) {
+        if(log.length > WRITE_BUFFER_SIZE || log.length > segmentSize - HEADER_SIZE - FOOTER_SIZE) {
+            throw (RuntimeException)Error.DataTooLargeException;
+        }
+        long pos = appendedLsn;
+        long limit = footerStart(pos);
+        if(pos + log.length > limit) {
+            byte[] padding = new byte[(int)(limit - pos)];
+            if(padding.length >= 4) {
+                System.arraycopy(Parser.int2Byte(PADDING), 0, padding, 0, 4);
+            }
+            pending.add(padding);
+            pending.add(footer(segmentOf(pos), (int)segmentChecksum.getValue()));
+            segmentChecksum.reset();
+            pos = firstRecord(segmentOf(pos) + 1);
+        }
+        System.arraycopy(Parser.int2Byte(checksum(crc, segmentOf(pos), log, 0, log.length - OF_DATA)), 0, log, OF_CHECKSUM, 4);
+        pending.add(log);
+        segmentChecksum.update(log, OF_CHECKSUM, 4);
+        appendedLsn = pos + log.length;
+        return appendedLsn;
+    }
+
+    /**
+     * 单条日志的校验和：段号、Size 和 Data 的 CRC32C
+     * 校验和覆盖 Size，全零的区域不会被当成一条合法的空记录
+     * @param crc 复用的 CRC32C 对象
+     * @param off 记录在 buf 中的起始位置
+     * @param size Data 的长度
+     */
+    static int checksum(CRC32C crc, long segment, byte[] buf, int off, int size) {
+        crc.reset();
+        for(int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int)(segment >>> shift));
+        }
+        crc.update(buf, off + OF_SIZE, 4);
+        crc.update(buf, off + OF_DATA, size);
+        return (int)crc.getValue();
+    }
+
+    private static byte[] footer(long segment, int checksum) {
+        byte[] raw = Bytes.concat(Parser.int2Byte(FOOTER_MAGIC), Parser.long2Byte(segment), Parser.int2Byte(checksum));
+        CRC32C crc = new CRC32C();
+        crc.update(raw);
+        return Bytes.concat(raw, Parser.int2Byte((int)crc.getValue()));
+    }
+
+    /**
+     * 等待 lsn 持久化，没有 leader 时由当前线程刷盘
+     * 调用时必须持有 lock
+     */
+    private void waitDurable(long lsn) {
+        while(durableLsn < lsn) {
+            if(flushing) {
+                durable.awaitUninterruptibly();     // 等待 leader 刷盘
+            } else {
+                flushPending();                     // 成为 leader，把累积的记录一起刷盘
+            }
+        }
+    }
+
+    /**
+     * leader 刷盘：在锁外把 pending 中的所有记录顺序写入对应的段，每个段只 force 一次
+     * 无论是否成功都会清除 flushing 并唤醒等待者；没有写完时这一批记录放回 pending，由下一个 leader 重新写入
+     * 调用时必须持有 lock，返回时仍然持有 lock
+     */
+    private void flushPending() {
+        flushing = true;
+        List<byte[]> batch = pending;
+        pending = new ArrayList<>();
+        long start = durableLsn;
+        long end = appendedLsn;
+        boolean written = false;
+        lock.unlock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            fc.force(false);
+            long pos = start;
+            long bufPos = start;
+            writeBuf.clear();
+            for(byte[] log : batch) {
+                if(pos % segmentSize == 0) {
+                    // 进入下一段之前先把上一段刷盘，这样第 N+1 段存在时第 N 段一定是完整的，打开时只需要校验最后一段
+                    write(writeBuf, bufPos);
+                    channel(segmentOf(pos) - 1).force(false);
+                    pos += HEADER_SIZE;                 // 跳过下一段的文件头
+                    bufPos = pos;
+                }
+                if(bufPos + writeBuf.position() != pos || writeBuf.remaining() < log.length) {
+                    write(writeBuf, bufPos);
+                    bufPos = pos;
+                }
+                writeBuf.put(log);
+                pos += log.length;
+            }
+            write(writeBuf, bufPos);
+            channel(segmentOf(end)).force(false);
+            written = true;
         } catch(IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.lock();
+            if(written) {
+                durableLsn = end;
+            } else {
+                batch.addAll(pending);
+                pending = batch;
+            }
+            flushing = false;
+            durable.signalAll();
         }
     }
 
     /**
-     * 打包日志文件成一个二进制字节数组
+     * 把缓冲区中的内容写到逻辑位置 lsn 处，缓冲区中的内容不会跨段
+     */
+    private void write(ByteBuffer buf, long lsn) throws IOException {
+        buf.flip();
+        FileChannel fc = buf.hasRemaining() ? channel(segmentOf(lsn)) : null;
+        long offset = lsn % segmentSize;
+        while(buf.hasRemaining()) {
+            offset += fc.write(buf, offset);        // 将记录顺序写入文件末尾
+        }
+        buf.clear();
+    }
+
+    /**
+     * 打包日志文件成一个二进制字节数组，校验和在 append() 中确定段号之后填写
      * @param data
      * @return
      */
     private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));    // 计算单条日志的校验和
         byte[] size = Parser.int2Byte(data.length);                         // 计算data的大小
-        return Bytes.concat(size, checksum, data);                          // 打包成标准的单条日志格式，并返回
+        return Bytes.concat(size, new byte[4], data);                       // 打包成标准的单条日志格式，并返回
     }
 
     /**
-     * 截断日志文件，删除x偏移量后面的文件数据
+     * 截断日志，删除x位置后面的日志数据
      * @param x 截断位置
      */
     @Override
     public void truncate(long x) throws Exception {
         lock.lock();
         try {
-            fc.truncate(x);
+            long no = segmentOf(x);
+            while(segments.lastKey() > no) {
+                Map.Entry<Long, FileChannel> e = segments.pollLastEntry();
+                e.getValue().close();
+                Files.delete(segmentFile(e.getKey()).toPath());
+            }
+            channel(no).truncate(x % segmentSize);
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * 从文件中读取下一条日志，并将其中的 Data 解析出来并返回。
-     * 实现主要依靠 internNext()
-     * @return
+     * 回收 lsn 所在段之前的所有段
+     * 在 MAX_SPARE_SEGMENTS 以内的改名为备用段，其余的删除
      */
     @Override
-    public byte[] next() {
+    public void recycle(long lsn) {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if(log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length); // 解析出日志中的DATA数据并返回
+            long keep = segmentOf(Math.min(lsn, appendedLsn));
+            while(segments.firstKey() < keep) {
+                Map.Entry<Long, FileChannel> e = segments.pollFirstEntry();
+                e.getValue().close();
+                File f = segmentFile(e.getKey());
+                synchronized(spares) {
+                    if(spares.size() < MAX_SPARE_SEGMENTS) {
+                        File spare = new File(f.getPath() + SPARE_SUFFIX);
+                        rename(f, spare);
+                        spares.add(spare);
+                        continue;
+                    }
+                }
+                Files.delete(f.toPath());
+            }
+            syncDirectory(segmentFile(keep));
+        } catch(IOException e) {
+            Panic.panic(e);
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * 迭代器，获取下一条完整日志记录
-     * @return 一条格式完整的完整的日志记录 [Size] [Checksum] [Data]
+     * 从文件中读取下一条日志，并将其中的 Data 拷贝出来并返回。
+     * 实现主要依靠 LogReader
+     * @return
      */
-    private byte[] internNext() {
-        if(position + OF_DATA >= fileSize) {
-            // 文件指针越界，也就是没有下一条日志了
-            return null;
+    @Override
+    public byte[] next() {
+        lock.lock();
+        try {
+            cursor.limit(durableLsn);
+            if(!cursor.next()) return null;
+            return Arrays.copyOfRange(cursor.data(), cursor.offset(), cursor.offset() + cursor.length()); // 拷贝出日志中的DATA数据并返回
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // 读取单条日志的size
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+    /**
+     * 新建一个从第一条记录开始的读取器，只能读到当前已经持久化的日志
+     */
+    @Override
+    public LogReader reader() {
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(tmp);
-        } catch(IOException e) {
-            Panic.panic(e);
-        }
-        int size = Parser.parseInt(tmp.array());
-        if(position + size + OF_DATA > fileSize) {
-            return null;
+            return new LogReader(this, durableLsn);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // 读取 size+checkSum+data
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    private static void read(FileChannel fc, ByteBuffer buf, long offset) {
         try {
-            fc.position(position);
-            fc.read(buf);
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) break;
+            }
         } catch(IOException e) {
             Panic.panic(e);
         }
-        // 将日志内容打包成二进制数组
-        byte[] log = buf.array();
-
-        // 校验 单条日志的 checksum
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length)); // 使用data计算checksum
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));       // 获取日志中记录的checksum
-        if(checkSum1 != checkSum2) {
-            return null;
-        }
-        // 文件指针指向下一条日志记录
-        position += log.length;
-        return log;
     }
 
     /**
@@ -257,7 +632,25 @@ public class LoggerImpl implements Logger {
      */
     @Override
     public void rewind() {
-        position = 4;
+        cursor.rewind();
+    }
+
+    @Override
+    public void seek(long position) {
+        cursor.seek(position);
+    }
+
+    /**
+     * 获取日志末尾的位置，LSN 在锁内分配，所以返回值总是一条日志的边界
+     */
+    @Override
+    public long tail() {
+        lock.lock();
+        try {
+            return appendedLsn;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -266,11 +659,97 @@ public class LoggerImpl implements Logger {
     @Override
     public void close() {
         try {
-            fc.close();
-            file.close();
+            for(FileChannel fc : segments.values()) {
+                fc.close();
+            }
         } catch(IOException e) {
             Panic.panic(e);
         }
     }
+
+    /**
+     * 旧格式的日志是单个 path.log 文件，文件头是总校验和 XChecksum，而不是段文件头
+     * 迁移时先把它改名为 path.log.legacy，再按新格式重新写一遍日志，最后删除旧文件；
+     * 迁移过程中崩溃时，下次打开会丢弃写了一半的新日志，从 path.log.legacy 重新迁移。
+     */
+    private static void migrateIfLegacy(String path) {
+        File log = segmentFile(path, 0);
+        File legacy = new File(path + LOG_SUFFIX + LEGACY_SUFFIX);
+        if(!legacy.exists()) {
+            if(!log.exists() || log.length() < 4 || readHeader(log) != null) {
+                return;
+            }
+            rename(log, legacy);
+        }
+        for(File f : listFiles(path)) {
+            if(!f.equals(legacy.getAbsoluteFile())) {
+                f.delete();
+            }
+        }
+        migrateLegacy(legacy, path);
+        // 删除必须持久化，否则崩溃后会再次看到旧日志，删掉迁移之后写入的新日志重新迁移
+        legacy.delete();
+        syncDirectory(legacy);
+    }
+
+    /**
+     * 把旧格式的日志改写成新格式
+     * 先按旧格式逐条校验、计算总校验和，与文件头不一致时认为日志损坏；合法的记录按原来的顺序写进新日志。
+     * 旧格式没有记录检查点，迁移后记录的位置会变化，但恢复总是从头扫描旧日志，不受影响。
+     */
+    private static void migrateLegacy(File legacy, String path) {
+        LoggerImpl lg = create(path, DEFAULT_SEGMENT_SIZE);
+        try(RandomAccessFile src = new RandomAccessFile(legacy, "r")) {
+            FileChannel in = src.getChannel();
+            long size = in.size();
+            ByteBuffer head = ByteBuffer.allocate(OF_DATA);
+            read(in, head, 0);
+            int xChecksum = Parser.parseInt(Arrays.copyOfRange(head.array(), 0, 4));
+            int xCheck = 0;
+            long pos = 4;
+            lg.lock.lock();
+            try {
+                while(pos + OF_DATA < size) {
+                    head.clear();
+                    read(in, head, pos);
+                    int len = Parser.parseInt(Arrays.copyOfRange(head.array(), OF_SIZE, OF_CHECKSUM));
+                    if(len < 0 || pos + OF_DATA + len > size) break;
+                    ByteBuffer data = ByteBuffer.allocate(len);
+                    read(in, data, pos + OF_DATA);
+                    int checksum = Parser.parseInt(Arrays.copyOfRange(head.array(), OF_CHECKSUM, OF_DATA));
+                    if(calChecksum(0, data.array()) != checksum) break;
+                    xCheck = calChecksum(xCheck, Bytes.concat(head.array(), data.array()));
+                    lg.append(lg.wrapLog(data.array()));
+                    if(lg.appendedLsn - lg.durableLsn >= MIGRATE_BATCH) {
+                        lg.waitDurable(lg.appendedLsn);
+                    }
+                    pos += OF_DATA + len;
+                }
+                if(xCheck != xChecksum) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+                lg.waitDurable(lg.appendedLsn);
+            } finally {
+                lg.lock.unlock();
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        lg.close();
+    }
+
+    /**
+     * 旧格式单条日志的校验和
+     * 其实就是通过一个指定的种子实现的，对日志的每个字节乘一个SEED再累加，就能得到单条日志文件的校验和了。
+     * @param xCheck 校验和初始值，一般是0
+     * @param log 需要计算校验和的单条日志文件
+     * @return 单条日志的校验和
+     */
+    private static int calChecksum(int xCheck, byte[] log) {
+        for (byte b : log) {
+            xCheck = xCheck * SEED + b;
+        }
+        return xCheck;
+    }
     
 }
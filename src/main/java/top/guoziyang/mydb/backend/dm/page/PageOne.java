@@ -3,6 +3,7 @@ package top.guoziyang.mydb.backend.dm.page;
 import java.util.Arrays;
 
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.utils.RandomUtil;
 
 /**
@@ -10,10 +11,18 @@ import top.guoziyang.mydb.backend.utils.RandomUtil;
  * ValidCheck 校验页面，唯一作用就是校验数据库是否正常关闭
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 数据库在每次启动时，就会检查第一页两处的字节是否相同，以此来判断上一次是否正常关闭。如果是异常关闭，就需要执行数据的恢复流程。
+ *
+ * Checkpoint 检查点记录，紧跟在 ValidCheck 之后：
+ * [CheckpointLSN] [CheckpointPageNumber]
+ * 8字节            4字节
+ * CheckpointLSN 之前的日志对应的修改都已经写回数据文件，恢复时只需要从这里开始重做；为0表示还没有做过检查点
+ * CheckpointPageNumber 检查点时数据文件的页面总数，恢复截断数据文件时不能小于它
  */
 public class PageOne {
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
+    private static final int OF_CKPT_LSN = OF_VC + 2*LEN_VC;
+    private static final int OF_CKPT_PAGES = OF_CKPT_LSN + 8;
 
     /**
      * 初始化一个页面
@@ -63,4 +72,27 @@ public class PageOne {
     private static boolean checkVc(byte[] raw) {
         return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC+LEN_VC), Arrays.copyOfRange(raw, OF_VC+LEN_VC, OF_VC+2*LEN_VC));
     }
+
+    /**
+     * 记录一个检查点
+     * @param pg 页面1
+     * @param lsn 检查点的日志位置
+     * @param pageNumber 检查点时的页面总数
+     */
+    public static void setCheckpoint(Page pg, long lsn, int pageNumber) {
+        pg.setDirty(true);
+        byte[] raw = pg.getData();
+        System.arraycopy(Parser.long2Byte(lsn), 0, raw, OF_CKPT_LSN, 8);
+        System.arraycopy(Parser.int2Byte(pageNumber), 0, raw, OF_CKPT_PAGES, 4);
+    }
+
+    public static long getCheckpointLsn(Page pg) {
+        byte[] raw = pg.getData();
+        return Parser.parseLong(Arrays.copyOfRange(raw, OF_CKPT_LSN, OF_CKPT_LSN+8));
+    }
+
+    public static int getCheckpointPageNumber(Page pg) {
+        byte[] raw = pg.getData();
+        return Parser.parseInt(Arrays.copyOfRange(raw, OF_CKPT_PAGES, OF_CKPT_PAGES+4));
+    }
 }
@@ -2,6 +2,7 @@ package top.guoziyang.mydb.backend.dm.page;
 
 import java.util.Arrays;
 
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.utils.Parser;
 
@@ -11,6 +12,7 @@ import top.guoziyang.mydb.backend.utils.Parser;
  * [FreeSpaceOffset] [Data]
  * FreeSpaceOffset: 2字节 空闲位置开始偏移
  * Data: 由于都是使用DataItem进行数据操作，索引Data的格式就是DataItem的格式：[ValidFlag] [DataSize] [Data]
+ * DataItem 的 UID 中包含页内偏移，存活的 DataItem 不能移动，所以页面压缩只能回收页面末尾连续的被垃圾回收的 DataItem
  */
 public class PageX {
     
@@ -72,6 +74,35 @@ public class PageX {
         return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
     }
 
+    /**
+     * 页面压缩后的 FSO：最后一个没有被垃圾回收的 DataItem 的末尾
+     * @param pg 数据页
+     * @return 和当前 FSO 相同表示没有可以回收的空间
+     */
+    public static short getCompactedFSO(Page pg) {
+        byte[] raw = pg.getData();
+        int fso = getFSO(raw);
+        int pos = OF_DATA;
+        int end = OF_DATA;
+        while(pos < fso) {
+            int length = DataItem.getDataItemRawLength(raw, pos);
+            if(!DataItem.isDataItemRawFreed(raw, pos)) {
+                end = pos + length;
+            }
+            pos += length;
+        }
+        return (short)end;
+    }
+
+    /**
+     * 页面压缩：将 FSO 退回到 fso，fso 之后的空间重新用于插入
+     * 恢复例程重做压缩日志时也使用这个方法
+     */
+    public static void compact(Page pg, short fso) {
+        pg.setDirty(true);
+        setFSO(pg.getData(), fso);
+    }
+
 
     // 以下两个方法用于在数据库崩溃后重新打开时，恢复例程直接插入数据以及修改数据使用。
     /**
@@ -81,12 +112,19 @@ public class PageX {
      * @param offset
      */
     public static void recoverInsert(Page pg, byte[] raw, short offset) {
+        recoverInsert(pg, raw, 0, raw.length, offset);
+    }
+
+    /**
+     * 直接插入数据页，数据是 buf 中从 start 开始的 length 个字节
+     */
+    public static void recoverInsert(Page pg, byte[] buf, int start, int length, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        System.arraycopy(buf, start, pg.getData(), offset, length);
 
         short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+        if(rawFSO < offset + length) {
+            setFSO(pg.getData(), (short)(offset+length));
         }
     }
 
@@ -97,7 +135,14 @@ public class PageX {
      * @param offset
      */
     public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+        recoverUpdate(pg, raw, 0, raw.length, offset);
+    }
+
+    /**
+     * 修改数据页，数据是 buf 中从 start 开始的 length 个字节
+     */
+    public static void recoverUpdate(Page pg, byte[] buf, int start, int length, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        System.arraycopy(buf, start, pg.getData(), offset, length);
     }
 }
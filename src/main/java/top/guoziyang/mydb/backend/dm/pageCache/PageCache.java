@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.List;
 
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.utils.Panic;
@@ -14,6 +15,7 @@ import top.guoziyang.mydb.common.Error;
  * 默认提供两个静态方法：
  *      create(String path, long memory)：新建一个数据库文件和数据页面缓存器
  *      open(String path, long memory)：打开一个数据库文件和数据页面缓存器
+ * 两个方法都有一个带 mmap 参数的版本，mmap 为 true 时使用内存映射文件读写页面
  */
 public interface PageCache {
     
@@ -26,9 +28,15 @@ public interface PageCache {
 
     void truncateByBgno(int maxPgno);           // 删除maxPgno后面的数据页
     int getPageNumber();                        // 获取当前数据库文件的页面总数
-    void flushPage(Page pg);                    // 将数据页写入数据源中
+    void flushPage(Page pg);                    // 将数据页写入数据源中，并 force 到磁盘
+    List<Page> copyDirtyPages();                // 拷贝所有脏页面，按页号排序，用于检查点
+    void flushPages(List<Page> pages);          // 批量写回页面，最后 force 一次，用于检查点
 
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, false);
+    }
+
+    public static PageCacheImpl create(String path, long memory, boolean mmap) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -49,10 +57,14 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return new PageCacheImpl(raf, fc, (int)(memory/PAGE_SIZE), mmap);
     }
 
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, false);
+    }
+
+    public static PageCacheImpl open(String path, long memory, boolean mmap) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -69,6 +81,6 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return new PageCacheImpl(raf, fc, (int)(memory/PAGE_SIZE), mmap);
     }
 }
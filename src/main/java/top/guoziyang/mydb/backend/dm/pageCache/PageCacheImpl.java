@@ -3,7 +3,16 @@ package top.guoziyang.mydb.backend.dm.pageCache;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -18,20 +27,43 @@ import top.guoziyang.mydb.common.Error;
  * 页面缓存实现类
  * 继承抽象缓存框架AbstractCache，主要重写getForCache 和 releaseForCache方法
  * 实现PageCache接口指定的方法
+ *
+ * 页面缓存以驻留模式使用 AbstractCache：没有被引用的页面继续留在内存中，缓存满时才按 2Q 策略驱逐。
+ * 被驱逐的脏页面交给后台写回线程异步写回，写回完成之前登记在 writingBack 中，
+ * 这段时间内再次读取该页面会拷贝一份内存中的数据，而不会从文件读到旧数据。
+ *
+ * 普通的页面写回不再每次都 force，数据的持久性由日志保证；检查点通过 copyDirtyPages() 和 flushPages() 把脏页面一次性写回并 force。
+ *
+ * mmap 模式：
+ *      文件按 REGION_SIZE 大小分段映射为 MappedByteBuffer，页面读写直接拷贝映射区域，不经过 FileChannel 系统调用，
+ *      不同页面的读写互不阻塞。新建页面超出已映射范围时，按整段扩展映射（文件也随之扩展到整段长度），
+ *      关闭时再把文件截断回真实的页面数。
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     
     private static final int MEM_MIN_LIM = 10;      // 最小缓存数
     public static final String DB_SUFFIX = ".db";   // 文件尾缀
+    private static final long REGION_SIZE = 1L << 26;                       // mmap 模式下每段映射的大小 64M
+    private static final int PAGES_PER_REGION = (int)(REGION_SIZE / PAGE_SIZE);
 
     private RandomAccessFile file;                  // 支持“随机访问”的方式，程序快可以直接跳转到文件的任意地方来读写数据。
     private FileChannel fc;                         // 直接连接输入输出流的文件通道，将数据直接写入到目标文件中去。
-    private Lock fileLock;
 
     private AtomicInteger pageNumbers;              // 记录当前打开的数据库文件有多少页面
 
+    private ConcurrentHashMap<Integer, Page> writingBack;   // 已被驱逐、正在等待异步写回的脏页面
+    private ExecutorService writer;                         // 异步写回线程
+
+    private boolean mmap;                                   // 是否使用 mmap 模式
+    private volatile MappedByteBuffer[] regions;            // mmap 模式下已经映射的文件分段
+    private Lock mapLock;                                   // 扩展映射时使用
+
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);                         // 调用父类的构造函数
+        this(file, fileChannel, maxResource, false);
+    }
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, boolean mmap) {
+        super(maxResource, true);                   // 调用父类的构造函数，开启驻留模式
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
@@ -45,9 +77,17 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
         // 使用JUC下的原子包Int，使用文件长度计算 页面总数
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int)(length / PAGE_SIZE));
+        this.writingBack = new ConcurrentHashMap<>();
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "page-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.mmap = mmap;
+        this.regions = new MappedByteBuffer[0];
+        this.mapLock = new ReentrantLock();
     }
 
     /**
@@ -59,7 +99,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     public int newPage(byte[] initData) {
         int pgno = pageNumbers.incrementAndGet();           // 使用原子包将页号 +1
         Page pg = new PageImpl(pgno, initData, null);   // 将initData数据包裹成数据页
-        flush(pg);                                          // 将数据页中的数据写入数据源
+        flush(pg, false);                                   // 将数据页中的数据写入数据源，崩溃后由日志恢复
         return pgno;
     }
 
@@ -83,31 +123,52 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int)key;
+        Page pending = writingBack.get(pgno);
+        if(pending != null) {
+            // 页面还没有写回完成，复用内存中数据的拷贝，并保持脏标记；
+            // 写回线程还在读取原来的数组，新的修改不能写进去，否则会被写成半新半旧的页面，还可能先于它的日志落盘
+            Page pg = new PageImpl(pgno, pending.getData().clone(), this);
+            pg.setDirty(true);
+            return pg;
+        }
+        if(mmap) {
+            byte[] data = new byte[PAGE_SIZE];
+            pageView(region(pgno), pgno).get(data);         // 直接从映射区域拷贝页面数据
+            return new PageImpl(pgno, data, this);
+        }
         long offset = PageCacheImpl.pageOffset(pgno);       // 计算目标数据页在文件中的偏移量
 
         ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);    // 申请一个页面大小的buffer空间
-        fileLock.lock();
         try {
-            fc.position(offset);                            // 文件指针移动到数据页的偏移位置
-            fc.read(buf);                                   // 读取一个页面的数据
+            // 使用带位置参数的读（pread），不修改通道的共享位置，不同页面的读取可以并发进行
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) {
+                    break;                                  // 读到文件末尾，剩余部分保持为0
+                }
+            }
         } catch(IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
         return new PageImpl(pgno, buf.array(), this);   // 打包成一个数据页
     }
 
     /**
      * 当资源被驱逐时的写回行为
-     * 调用一个flush()方法将数据页的内容写回数据源
+     * 脏页面登记到 writingBack 中，交给后台线程调用flush()方法写回数据源
      * @param pg 数据页
      */
     @Override
     protected void releaseForCache(Page pg) {
-        if(pg.isDirty()) {
-            flush(pg);
-            pg.setDirty(false);
+        if(!pg.isDirty()) {
+            return;
         }
+        pg.setDirty(false);
+        int pgno = pg.getPageNumber();
+        writingBack.put(pgno, pg);
+        writer.execute(() -> {
+            flush(pg, false);
+            writingBack.remove(pgno, pg);
+        });
     }
 
     public void release(Page page) {
@@ -115,28 +176,138 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     }
 
     public void flushPage(Page pg) {
-        flush(pg);
+        flush(pg, true);
+    }
+
+    /**
+     * 拷贝当前所有的脏页面（包括驻留在缓存中的和正在等待写回的），并清除缓存中页面的脏标记
+     * 调用方需要保证拷贝期间没有并发的页面修改
+     * @return 按页号排序的页面拷贝
+     */
+    public List<Page> copyDirtyPages() {
+        TreeMap<Integer, Page> copies = new TreeMap<>();
+        forEachCached(pg -> {
+            if(pg.isDirty()) {
+                copies.put(pg.getPageNumber(), new PageImpl(pg.getPageNumber(), pg.getData().clone(), null));
+                pg.setDirty(false);
+            }
+        });
+        // 遍历之前已经被移除、还没有交给写回线程的页面，等它们登记到 writingBack 中
+        awaitReleasing();
+        // 缓存中的页面比等待写回的同号页面更新，不覆盖
+        for(Page pg : writingBack.values()) {
+            copies.putIfAbsent(pg.getPageNumber(), new PageImpl(pg.getPageNumber(), pg.getData().clone(), null));
+        }
+        return new ArrayList<>(copies.values());
+    }
+
+    /**
+     * 在写回线程上按顺序写回一批页面，最后 force 一次，等待完成后返回
+     * 与异步写回共用一个线程，保证之前排队的旧版本页面不会覆盖这次写回的内容
+     * @param pages 需要写回的页面
+     */
+    public void flushPages(List<Page> pages) {
+        try {
+            writer.submit(() -> {
+                for(Page pg : pages) {
+                    flush(pg, false);
+                }
+                force();
+            }).get();
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
     }
 
     /**
      * 将数据页中的数据写回到数据源文件的规定位置中
      * @param pg 数据页
+     * @param force 写回之后是否 force 到磁盘
      */
-    private void flush(Page pg) {
+    private void flush(Page pg, boolean force) {
         int pgno = pg.getPageNumber();                      // 获取页号
+        if(mmap) {
+            MappedByteBuffer region = region(pgno);
+            pageView(region, pgno).put(pg.getData());       // 直接写入映射区域
+            if(force) {
+                region.force();
+            }
+            return;
+        }
         long offset = pageOffset(pgno);                     // 获取该页面在文件中的偏移量
 
-        // 将数据页中的数据写回数据源文件的指定位置
-        fileLock.lock();
+        // 将数据页中的数据写回数据源文件的指定位置，使用带位置参数的写（pwrite），不需要加锁
         try {
             ByteBuffer buf = ByteBuffer.wrap(pg.getData()); // 从数据页中获取数据内容生成一个buffer
-            fc.position(offset);                            // 指针移动到文件的指定位置
-            fc.write(buf);                                  // 写回数据源
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());     // 写回数据源
+            }
+            if(force) {
+                fc.force(false);
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 将之前所有的写回 force 到磁盘
+     */
+    private void force() {
+        try {
+            if(mmap) {
+                for(MappedByteBuffer region : regions) {
+                    if(region != null) {
+                        region.force();
+                    }
+                }
+            }
             fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
+        }
+    }
+
+    /**
+     * mmap 模式下获取页面所在的映射区域，必要时扩展映射范围
+     * @param pgno 页号
+     */
+    private MappedByteBuffer region(int pgno) {
+        int idx = (pgno-1) / PAGES_PER_REGION;
+        MappedByteBuffer[] rs = regions;
+        if(idx >= rs.length || rs[idx] == null) {
+            rs = mapRegion(idx);
+        }
+        return rs[idx];
+    }
+
+    /**
+     * 获取映射区域的一个视图，position 指向页面起始位置，limit 为页面末尾
+     */
+    private static ByteBuffer pageView(MappedByteBuffer region, int pgno) {
+        ByteBuffer view = region.duplicate();
+        int start = ((pgno-1) % PAGES_PER_REGION) * PAGE_SIZE;
+        view.position(start);
+        view.limit(start + PAGE_SIZE);
+        return view;
+    }
+
+    private MappedByteBuffer[] mapRegion(int idx) {
+        mapLock.lock();
+        try {
+            MappedByteBuffer[] rs = regions;
+            if(idx < rs.length && rs[idx] != null) {
+                return rs;
+            }
+            rs = Arrays.copyOf(rs, Math.max(rs.length, idx + 1));
+            rs[idx] = fc.map(FileChannel.MapMode.READ_WRITE, idx * REGION_SIZE, REGION_SIZE);
+            regions = rs;
+            return rs;
+        } catch(IOException e) {
+            Panic.panic(e);
+            return null;
         } finally {
-            fileLock.unlock();
+            mapLock.unlock();
         }
     }
 
@@ -146,6 +317,12 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     public void truncateByBgno(int maxPgno) {
         long size = pageOffset(maxPgno + 1);
+        if(mmap) {
+            // 截断之后旧的映射不能再访问，之后按需重新映射
+            mapLock.lock();
+            regions = new MappedByteBuffer[0];
+            mapLock.unlock();
+        }
         try {
             file.setLength(size);
         } catch (IOException e) {
@@ -157,7 +334,19 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     public void close() {
         super.close();
+        writer.shutdown();                          // 等待所有异步写回完成
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        force();
         try {
+            if(mmap) {
+                // 映射会把文件扩展到整段长度，关闭时截断回真实的页面数
+                regions = new MappedByteBuffer[0];
+                file.setLength(pageOffset(pageNumbers.get() + 1));
+            }
             fc.close();
             file.close();
         } catch (IOException e) {
@@ -179,7 +368,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      * @return 页面的偏移量
      */
     private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE; //  页号从1开始
+        return (long)(pgno-1) * PAGE_SIZE; //  页号从1开始
     }
     
 }
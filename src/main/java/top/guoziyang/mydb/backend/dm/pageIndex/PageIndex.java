@@ -62,6 +62,27 @@ public class PageIndex {
         }
     }
 
+    /**
+     * 取出指定的页面，和 select 一样，取出的页面在重新插入之前不会被其他线程选中
+     * @param pgno 页号
+     * @return 页面正在被使用（不在索引中）时返回 null
+     */
+    public PageInfo take(int pgno) {
+        lock.lock();
+        try {
+            for(List<PageInfo> list : lists) {
+                for(int i = 0; i < list.size(); i ++) {
+                    if(list.get(i).pgno == pgno) {
+                        return list.remove(i);
+                    }
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * 插入页面操作
      * 前面被选择的页，会直接从 PageIndex 中移除，这意味着，同一个页面是不允许并发写的。
@@ -1,28 +1,44 @@
 package top.guoziyang.mydb.backend.im;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.im.Node.InsertAndSplitRes;
+import top.guoziyang.mydb.backend.im.Node.LeafDeleteRes;
 import top.guoziyang.mydb.backend.im.Node.LeafSearchRangeRes;
-import top.guoziyang.mydb.backend.im.Node.SearchNextRes;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Parser;
 
 /**
  * B+ 树索引
  * IM 对上层模块主要提供两种能力：插入索引 和 搜索节点。
+ * 另外垃圾回收通过 delete 删除指向已经回收的数据的索引条目，删除之后不合并节点；
+ * 对大量有序的条目可以用 bulkLoader 自底向上批量建树，代替逐个 insert。
+ *
+ * 根节点和内部节点的只读快照（InnerNode）按 UID 缓存在 inners 中，下降时直接在内存中查找下一层，
+ * 不经过 DataManager 的缓存锁、页面引用和 DataItem 的读锁；只有叶子节点需要从 DM 读取，并且每次下降只读取一次。
+ * 内部节点只会被这棵树的 insertAndSplit 修改，修改时在持有写锁期间使快照失效。
+ * 快照不持有 DataItem，不会占住页面缓存；缓存最多 MAX_CACHED_INNERS 个内部节点，超过之后不再加入。
+ * 节点的乐观锁（见 Node）按 UID 分成 LATCHES 段，不同节点落在同一段时只会多一些重读。
  */
 public class BPlusTree {
+    private static final int MAX_CACHED_INNERS = 1 << 14;
+    private static final int LATCHES = 1024;
+
     DataManager dm;
     long bootUid;
     Lock bootLock;
+    private volatile long rootUid;                      // 根节点的UID，修改时持有 bootLock
+    Map<Long, InnerNode> inners;
+    private StampedLock[] latches;
     // 由于 B+ 树在插入删除时，会动态调整，根节点不是固定节点，于是设置一个 bootDataItem，该 DataItem 中存储了根节点的 UID。
     DataItem bootDataItem;
 
@@ -46,56 +62,119 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        SubArray sa = bootDataItem.data();
+        t.rootUid = Parser.parseLong(sa.raw, sa.start);
+        t.inners = new ConcurrentHashMap<>();
+        t.latches = new StampedLock[LATCHES];
+        for(int i = 0; i < LATCHES; i ++) {
+            t.latches[i] = new StampedLock();
+        }
         return t;
     }
 
     private long rootUid() {
+        return rootUid;
+    }
+
+    private void updateRootUid(long left, long right, long rightKey) throws Exception {
         bootLock.lock();
         try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
+            bootDataItem.before();
+            SubArray diRaw = bootDataItem.data();
+            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            rootUid = newRootUid;
         } finally {
             bootLock.unlock();
         }
     }
 
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    /**
+     * 批量建树，用新树替换这棵树的全部内容，见 BulkLoader
+     */
+    public BulkLoader bulkLoader() {
+        return new BulkLoader(this);
+    }
+
+    // 用一条日志把根节点切换为 newRootUid，原来的内部节点快照全部失效
+    void switchRoot(long newRootUid) throws Exception {
         bootLock.lock();
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
             System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
             bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            rootUid = newRootUid;
+            inners.clear();
         } finally {
             bootLock.unlock();
         }
     }
 
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
+    void cacheInner(long uid, InnerNode in) {
+        if(inners.size() < MAX_CACHED_INNERS) {
+            inners.put(uid, in);
+        }
+    }
 
-        if(isLeaf) {
-            return nodeUid;
-        } else {
-            long next = searchNext(nodeUid, key);
-            return searchLeaf(next, key);
+    void invalidateInner(long uid) {
+        inners.remove(uid);
+    }
+
+    // 只移除自己放入的快照，不影响其他读者之后放入的
+    void invalidateInner(long uid, InnerNode in) {
+        inners.remove(uid, in);
+    }
+
+    StampedLock latch(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return latches[(int)(h >>> 54)];
+    }
+
+    /**
+     * 从根节点下降到 key 所在的叶子节点，内部节点优先使用缓存的快照
+     * @return 已经从 DM 读取的叶子节点，调用者需要 release
+     */
+    private Node searchLeaf(long key) throws Exception {
+        long nodeUid = rootUid();
+        while(true) {
+            InnerNode in = inners.get(nodeUid);
+            if(in == null) {
+                Node node = Node.loadNode(this, nodeUid);
+                in = node.innerSnapshot();
+                if(in == null) {
+                    return node;
+                }
+                node.release();
+            }
+            nodeUid = searchNext(in, key);
+        }
+    }
+
+    // 内部节点 uid 的快照，叶子节点返回 null
+    private InnerNode inner(long nodeUid) throws Exception {
+        InnerNode in = inners.get(nodeUid);
+        if(in != null) {
+            return in;
+        }
+        Node node = Node.loadNode(this, nodeUid);
+        try {
+            return node.innerSnapshot();
+        } finally {
+            node.release();
         }
     }
 
     /*
-     * serchNext()方法是在索引树上寻找下一个孩子结点，无限循环直到走到叶子结点为止；这个结点没有符合要求的就去下一个兄弟结点找
+     * serchNext()方法是在索引树上寻找下一个孩子结点；这个结点没有符合要求的就去下一个兄弟结点找
      */
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(InnerNode in, long key) throws Exception {
         while(true) {
-            Node node = Node.loadNode(this, nodeUid);
-            SearchNextRes res = node.searchNext(key);
-            node.release(); // 释放缓存
-            if(res.uid != 0) return res.uid;
-            nodeUid = res.siblingUid;
+            long next = in.searchNext(key);
+            if(next != 0) return next;
+            in = inner(in.sibling);
         }
     }
 
@@ -104,18 +183,16 @@ public class BPlusTree {
     }
 
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        long leafUid = searchLeaf(rootUid, leftKey);
+        Node leaf = searchLeaf(leftKey);
         List<Long> uids = new ArrayList<>();
         while(true) {
-            Node leaf = Node.loadNode(this, leafUid);
             LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
             leaf.release();
             uids.addAll(res.uids);
             if(res.siblingUid == 0) {
                 break;
             } else {
-                leafUid = res.siblingUid;
+                leaf = Node.loadNode(this, res.siblingUid);
             }
         }
         return uids;
@@ -130,6 +207,25 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * 删除索引条目 (key, uid)，相同的 key 可能分布在多个叶子节点中，沿兄弟节点继续查找
+     * @return 没有找到时返回 false
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        Node leaf = searchLeaf(key);
+        while(true) {
+            LeafDeleteRes res = leaf.leafDelete(key, uid);
+            leaf.release();
+            if(res.deleted) {
+                return true;
+            }
+            if(res.siblingUid == 0) {
+                return false;
+            }
+            leaf = Node.loadNode(this, res.siblingUid);
+        }
+    }
+
     class InsertRes {
         long newNode, newKey;
     }
@@ -140,15 +236,13 @@ public class BPlusTree {
      * 期间一直在B+树上面靠serchNext()往下走索引树，serchNext()方法就是寻找下一个孩子结点的uid
      */
     private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
+        InnerNode in = inner(nodeUid);
 
         InsertRes res = null;
-        if(isLeaf) {
+        if(in == null) {
             res = insertAndSplit(nodeUid, uid, key);
         } else {
-            long next = searchNext(nodeUid, key);
+            long next = searchNext(in, key);
             InsertRes ir = insert(next, uid, key);
             if(ir.newNode != 0) {
                 res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
@@ -0,0 +1,170 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.Arrays;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 批量建树：按 key 非递减的顺序 add (key, uid)，finish 时自底向上建好整棵新树，再原子地切换 B+ 树的根节点
+ *
+ * 叶子节点和内部节点都装满 FILL 个 key（再插入一个就会分裂），每个节点只用一条 DM 插入日志写入，
+ * 不像逐个 insert 那样每个 key 都要从根下降、记录整个节点的 before / after 日志。
+ * 兄弟节点的 UID 要在节点写入之前知道，所以每攒够 BATCH 个叶子，从右往左写入这一批；
+ * 上一批最后一个叶子的兄弟节点在下一批写入之后回填，每批只多一条更新日志。
+ * 叶子之上的每一层只需要子节点的 (最小 key, UID)，在内存中从右往左逐层写入，直到只剩一个根节点。
+ *
+ * 新树写入期间对 B+ 树不可见，finish 最后用一条日志把 bootDataItem 中的根节点 UID 改为新根，
+ * 崩溃时要么还是原来的树，要么是完整的新树。原来的树被整个替换，它的节点不再可达，也不会被回收；
+ * 调用者保证批量建树期间没有对这棵树的其他写入，一般用于在空的索引上建树或者从备份中恢复。
+ */
+public class BulkLoader {
+
+    static final int FILL = Node.BALANCE_NUMBER * 2 - 1;
+    private static final int BATCH = 1024;              // 每批写入的叶子节点数
+
+    private BPlusTree tree;
+
+    // 当前一批还没有写入的叶子条目
+    private long[] keys;
+    private long[] uids;
+    private int size;
+    private long lastKey;
+    private long added;
+
+    private long prevTail;                              // 上一批最后一个叶子的 UID，等待回填兄弟节点
+
+    // 已经写入的最下一层节点的最小 key 和 UID，从左到右
+    private long[] levelKeys;
+    private long[] levelUids;
+    private int levelSize;
+
+    BulkLoader(BPlusTree tree) {
+        this.tree = tree;
+        this.keys = new long[BATCH * FILL];
+        this.uids = new long[BATCH * FILL];
+        this.levelKeys = new long[16];
+        this.levelUids = new long[16];
+    }
+
+    /**
+     * 添加一个索引条目，key 必须不小于之前添加的 key
+     */
+    public void add(long key, long uid) throws Exception {
+        if(added > 0 && key < lastKey) {
+            throw Error.UnsortedBulkLoadException;
+        }
+        if(size == keys.length) {
+            flushLeaves();
+        }
+        keys[size] = key;
+        uids[size] = uid;
+        size ++;
+        lastKey = key;
+        added ++;
+    }
+
+    /**
+     * 写入剩余的叶子和所有内部节点，并把 B+ 树的根切换为新树的根
+     * @return 添加的条目数
+     */
+    public long finish() throws Exception {
+        if(size > 0) {
+            flushLeaves();
+        }
+        long root;
+        if(levelSize == 0) {
+            root = tree.dm.insert(TransactionManagerImpl.SUPER_XID, Node.newNilRootRaw());
+        } else {
+            while(levelSize > 1) {
+                buildLevel();
+            }
+            root = levelUids[0];
+        }
+        tree.switchRoot(root);
+        return added;
+    }
+
+    // 从右往左写入当前一批叶子，并回填上一批最后一个叶子的兄弟节点
+    private void flushLeaves() throws Exception {
+        int n = (size + FILL - 1) / FILL;
+        long[] leafUids = new long[n];
+        long sibling = 0;
+        for(int i = n - 1; i >= 0; i --) {
+            int from = i * FILL;
+            int to = Math.min(from + FILL, size);
+            SubArray raw = newNode(true, to - from, sibling);
+            for(int k = from; k < to; k ++) {
+                Node.setRawKthKey(raw, keys[k], k - from);
+                Node.setRawKthSon(raw, uids[k], k - from);
+            }
+            sibling = tree.dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw);
+            leafUids[i] = sibling;
+        }
+        if(prevTail != 0) {
+            setSibling(prevTail, leafUids[0]);
+        }
+        prevTail = leafUids[n - 1];
+        for(int i = 0; i < n; i ++) {
+            appendLevel(keys[i * FILL], leafUids[i]);
+        }
+        size = 0;
+    }
+
+    /**
+     * 在当前最下一层之上建一层内部节点，每 FILL 个子节点一个
+     * 第 i 个 key 是第 i+1 个子节点的最小 key，最后一个 key 是右边兄弟节点第一个子节点的最小 key，最右边的节点为 MAX_VALUE
+     */
+    private void buildLevel() throws Exception {
+        int n = (levelSize + FILL - 1) / FILL;
+        long[] parentKeys = new long[n];
+        long[] parentUids = new long[n];
+        long sibling = 0;
+        for(int i = n - 1; i >= 0; i --) {
+            int from = i * FILL;
+            int to = Math.min(from + FILL, levelSize);
+            SubArray raw = newNode(false, to - from, sibling);
+            for(int k = from; k < to; k ++) {
+                Node.setRawKthSon(raw, levelUids[k], k - from);
+                Node.setRawKthKey(raw, k + 1 < levelSize ? levelKeys[k + 1] : Long.MAX_VALUE, k - from);
+            }
+            sibling = tree.dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw);
+            parentKeys[i] = levelKeys[from];
+            parentUids[i] = sibling;
+        }
+        levelKeys = parentKeys;
+        levelUids = parentUids;
+        levelSize = n;
+    }
+
+    private SubArray newNode(boolean isLeaf, int noKeys, long sibling) {
+        SubArray raw = new SubArray(new byte[Node.NODE_SIZE], 0, Node.NODE_SIZE);
+        Node.setRawIsLeaf(raw, isLeaf);
+        Node.setRawNoKeys(raw, noKeys);
+        Node.setRawSibling(raw, sibling);
+        return raw;
+    }
+
+    private void setSibling(long uid, long sibling) throws Exception {
+        DataItem di = tree.dm.read(uid);
+        try {
+            di.before();
+            Node.setRawSibling(di.data(), sibling);
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+    }
+
+    private void appendLevel(long key, long uid) {
+        if(levelSize == levelKeys.length) {
+            levelKeys = Arrays.copyOf(levelKeys, levelSize << 1);
+            levelUids = Arrays.copyOf(levelUids, levelSize << 1);
+        }
+        levelKeys[levelSize] = key;
+        levelUids[levelSize] = uid;
+        levelSize ++;
+    }
+}
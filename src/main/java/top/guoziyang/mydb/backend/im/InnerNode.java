@@ -0,0 +1,33 @@
+package top.guoziyang.mydb.backend.im;
+
+/**
+ * 内部节点的只读快照，由 BPlusTree 按 UID 缓存，下降时不需要经过 DataManager 读取节点
+ * 快照不会被修改，节点被修改时整个快照从缓存中移除，下次访问时重新生成
+ */
+class InnerNode {
+    final long[] keys;
+    final long[] sons;
+    final long sibling;
+
+    InnerNode(long[] keys, long[] sons, long sibling) {
+        this.keys = keys;
+        this.sons = sons;
+        this.sibling = sibling;
+    }
+
+    /**
+     * 第一个大于 key 的 key 对应的孩子，没有时返回 0，调用者去兄弟节点继续查找
+     */
+    long searchNext(long key) {
+        int lo = 0, hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo < keys.length ? sons[lo] : 0;
+    }
+}
@@ -1,13 +1,15 @@
 package top.guoziyang.mydb.backend.im;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.locks.StampedLock;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
-import top.guoziyang.mydb.backend.utils.Parser;
 
 /**
  * 二叉树的Node结构如下：
@@ -20,9 +22,16 @@ import top.guoziyang.mydb.backend.utils.Parser;
  * 其中 LeafFlag 标记了该节点是否是个叶子节点；KeyNumber 为该节点中 key 的个数；SiblingUid 是其兄弟节点存储在 DM 中的 UID。
  * 后续是穿插的子节点（SonN）和 KeyN。最后的一个 KeyN 始终为 MAX_VALUE，以此方便查找。son值是UID，key值是 where条件搜索的值
  *
- * 这个Node类主要就是那两个方法，serchNext(...) 和 serchRange()；
- * serchNext(...) ：提供给B+树的底层搜索方法，就是一颗多叉搜索树二分搜索算法，目标值小于当前节点值的走左孩子，大于等于的继续for，这个节点都没找到满足要求的就去下一个兄弟节点找
- * serchRange()：提供给B+树的底层范围搜索方法。
+ * 这个Node类主要就是那两个方法，innerSnapshot() 和 leafSearchRange()；
+ * innerSnapshot() ：复制出内部节点的快照，B+树在快照上二分查找下一层，这个节点都没找到满足要求的就去下一个兄弟节点找
+ * leafSearchRange()：提供给B+树的底层范围搜索方法。
+ *
+ * 头部和分支信息都通过 VarHandle 在 raw 上原地按大端读写，不复制字节数组；节点内的 key 有序，查找位置用二分查找。
+ *
+ * 并发采用乐观锁耦合：每个节点对应 tree 中的一个 StampedLock（按 UID 分段），读者不加锁，
+ * 读之前取版本号、读完之后校验，期间有写者修改过节点就在读锁下重读；读到写了一半的节点抛出的异常同样以重读处理。
+ * 写者仍然通过 DataItem 的 before / after 互斥和记录日志，只在修改 raw 的内存时持有节点的写锁，
+ * 分裂时插入新节点、记录日志和等待日志落盘都不持有写锁，读者不会因此等待。
  */
 public class Node {
     // 节点头部信息偏移量
@@ -35,6 +44,9 @@ public class Node {
     static final int BALANCE_NUMBER = 32;
     static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2); // 一个Node结点的空间大小
 
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
     // Node 类持有了其 B+ 树结构的引用，DataItem 的引用和 SubArray 的引用，用于方便快速修改数据和释放数据。
     BPlusTree tree;     // B+ 树结构的引用
     DataItem dataItem;  // DM 的数据项引用
@@ -57,22 +69,22 @@ public class Node {
 
     // 设置Node中的key个数
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+        SHORT.set(raw.raw, raw.start + NO_KEYS_OFFSET, (short) noKeys);
     }
 
     // 获取node中的key个数
     static int getRawNoKeys(SubArray raw) {
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+        return (short) SHORT.get(raw.raw, raw.start + NO_KEYS_OFFSET);
     }
 
     // 设置Node的兄弟节点
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+        LONG.set(raw.raw, raw.start + SIBLING_OFFSET, sibling);
     }
 
     // 获取Node的兄弟节点
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+        return (long) LONG.get(raw.raw, raw.start + SIBLING_OFFSET);
     }
 
     /**
@@ -84,25 +96,39 @@ public class Node {
      */
     static void setRawKthSon(SubArray raw, long uid, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        LONG.set(raw.raw, offset, uid);
     }
 
     // 获取Node的孩子节点的son值
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return (long) LONG.get(raw.raw, offset);
     }
 
     // 设置Node的孩子节点key值
     static void setRawKthKey(SubArray raw, long key, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8; // 获取key值
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        LONG.set(raw.raw, offset, key);
     }
 
     // 获取Node的第kth个孩子节点key值
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return (long) LONG.get(raw.raw, offset);
+    }
+
+    // 第一个大于等于 key 的 key 的位置，没有时返回 noKeys
+    static int lowerBound(SubArray raw, int noKeys, long key) {
+        int lo = 0, hi = noKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getRawKthKey(raw, mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
@@ -110,12 +136,17 @@ public class Node {
         System.arraycopy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
     }
 
+    // 删除第 kth 个孩子，之后的孩子和 key 前移一位
+    static void unshiftRawKth(SubArray raw, int kth, int noKeys) {
+        int begin = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
+        int end = raw.start + NODE_HEADER_SIZE + noKeys * (8 * 2);
+        System.arraycopy(raw.raw, begin + 8 * 2, raw.raw, begin, end - begin - 8 * 2);
+    }
+
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-        int end = raw.start + NODE_SIZE - 1;
-        for (int i = end; i >= begin; i--) {
-            raw.raw[i] = raw.raw[i - (8 * 2)];
-        }
+        int end = raw.start + NODE_SIZE;
+        System.arraycopy(raw.raw, begin - 8 * 2, raw.raw, begin, end - begin);
     }
 
     /**
@@ -171,48 +202,71 @@ public class Node {
         dataItem.release();
     }
 
-    public boolean isLeaf() {
-        dataItem.rLock();
-        try {
-            return getRawIfLeaf(raw);
-        } finally {
-            dataItem.rUnLock();
-        }
+    // 乐观读取时 key 的个数，读到写了一半的值时也不会越过节点
+    private int readNoKeys() {
+        return Math.max(0, Math.min(getRawNoKeys(raw), BALANCE_NUMBER * 2));
     }
 
-    /**
-     * Node 类有两个方法，用于辅助 B+ 树做插入和搜索操作，分别是 searchNext 方法和 leafSearchRange 方法。
-     */
-    class SearchNextRes {
-        long uid;
-        long siblingUid;
+    // 修改 raw 之前获取节点的写锁
+    private long latch() {
+        return tree.latch(uid).writeLock();
     }
 
-    /*
-     * serchNext()方法是在索引树上寻找下一个孩子结点，无限循环直到走到叶子结点为止；这个结点没有符合要求的就去下一个兄弟结点找
+    // 修改完成，内部节点的快照在释放写锁之前失效
+    private void unlatch(long stamp) {
+        if (!getRawIfLeaf(raw)) {
+            tree.invalidateInner(uid);
+        }
+        tree.latch(uid).unlockWrite(stamp);
+    }
+
+    /**
+     * 复制出内部节点的快照并放入 tree 的内部节点缓存，叶子节点返回 null
+     * 乐观读取时先校验再放入缓存，没读到写了一半的节点才会被其他读者看到；放入之后再校验一次，
+     * 期间有写者修改过节点（它的失效可能发生在放入之前）就移除放入的快照。写者在持有写锁时使快照失效，
+     * 所以留在缓存中的快照不会比节点旧
      */
-    public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
-        try {
-            SearchNextRes res = new SearchNextRes();
-            int noKeys = getRawNoKeys(raw);
-            for (int i = 0; i < noKeys; i++) {
-                long ik = getRawKthKey(raw, i);
-                if (key < ik) {  // 根据排序树的规则，小于的就往左下走就行了
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
+    InnerNode innerSnapshot() {
+        if (getRawIfLeaf(raw)) {
+            return null;
+        }
+        StampedLock latch = tree.latch(uid);
+        long stamp = latch.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                InnerNode in = readInner();
+                if (latch.validate(stamp)) {
+                    tree.cacheInner(uid, in);
+                    if (!latch.validate(stamp)) {
+                        tree.invalidateInner(uid, in);
+                    }
+                    return in;
                 }
+            } catch (RuntimeException e) {
+                // 读到了写了一半的节点
             }
-            res.uid = 0;
-            res.siblingUid = getRawSibling(raw);
-            return res;
-
+        }
+        stamp = latch.readLock();
+        try {
+            InnerNode in = readInner();
+            tree.cacheInner(uid, in);
+            return in;
         } finally {
-            dataItem.rUnLock();
+            latch.unlockRead(stamp);
         }
     }
 
+    private InnerNode readInner() {
+        int noKeys = readNoKeys();
+        long[] keys = new long[noKeys];
+        long[] sons = new long[noKeys];
+        for (int i = 0; i < noKeys; i++) {
+            keys[i] = getRawKthKey(raw, i);
+            sons[i] = getRawKthSon(raw, i);
+        }
+        return new InnerNode(keys, sons, getRawSibling(raw));
+    }
+
     class LeafSearchRangeRes {
         List<Long> uids;
         long siblingUid;
@@ -227,37 +281,90 @@ public class Node {
      * @return
      */
     public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
-        try {
-            int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik >= leftKey) {
-                    break;
+        StampedLock latch = tree.latch(uid);
+        long stamp = latch.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                LeafSearchRangeRes res = readRange(leftKey, rightKey);
+                if (latch.validate(stamp)) {
+                    return res;
                 }
+            } catch (RuntimeException e) {
+                // 读到了写了一半的节点
+            }
+        }
+        stamp = latch.readLock();
+        try {
+            return readRange(leftKey, rightKey);
+        } finally {
+            latch.unlockRead(stamp);
+        }
+    }
+
+    private LeafSearchRangeRes readRange(long leftKey, long rightKey) {
+        int noKeys = readNoKeys();
+        int kth = lowerBound(raw, noKeys, leftKey);
+        List<Long> uids = new ArrayList<>();
+        while (kth < noKeys) {
+            long ik = getRawKthKey(raw, kth);
+            if (ik <= rightKey) {
+                uids.add(getRawKthSon(raw, kth));
                 kth++;
+            } else {
+                break;
             }
-            List<Long> uids = new ArrayList<>();
+        }
+        long siblingUid = 0;
+        if (kth == noKeys) {
+            siblingUid = getRawSibling(raw);
+        }
+        LeafSearchRangeRes res = new LeafSearchRangeRes();
+        res.uids = uids;
+        res.siblingUid = siblingUid;
+        return res;
+    }
+
+    class LeafDeleteRes {
+        boolean deleted;
+        long siblingUid;
+    }
+
+    /**
+     * 在叶子节点中删除 (key, uid)，删除之后不合并节点，空的叶子节点仍然留在兄弟链表中
+     * 如果 key 大于等于该节点的所有 key 且没有找到，返回兄弟节点的 UID，继续在兄弟节点中删除
+     */
+    public LeafDeleteRes leafDelete(long key, long uid) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, key);
             while (kth < noKeys) {
                 long ik = getRawKthKey(raw, kth);
-                if (ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth++;
-                } else {
-                    break;
+                if (ik > key) {
+                    return res;
                 }
+                if (ik == key && getRawKthSon(raw, kth) == uid) {
+                    long stamp = latch();
+                    try {
+                        unshiftRawKth(raw, kth, noKeys);
+                        setRawNoKeys(raw, noKeys - 1);
+                    } finally {
+                        unlatch(stamp);
+                    }
+                    res.deleted = true;
+                    return res;
+                }
+                kth++;
             }
-            long siblingUid = 0;
-            if (kth == noKeys) {
-                siblingUid = getRawSibling(raw);
-            }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
+            res.siblingUid = getRawSibling(raw);
             return res;
         } finally {
-            dataItem.rUnLock();
+            if (res.deleted) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
         }
     }
 
@@ -272,7 +379,12 @@ public class Node {
 
         dataItem.before();
         try {
-            success = insert(uid, key);
+            long stamp = latch();
+            try {
+                success = insert(uid, key);
+            } finally {
+                unlatch(stamp);
+            }
             if (!success) {
                 res.siblingUid = getRawSibling(raw);
                 return res;
@@ -293,6 +405,14 @@ public class Node {
         } finally {
             if (err == null && success) {
                 dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else if (success) {
+                // 已经修改过 raw，恢复时同样要持有写锁
+                long stamp = latch();
+                try {
+                    dataItem.unBefore();
+                } finally {
+                    unlatch(stamp);
+                }
             } else {
                 dataItem.unBefore();
             }
@@ -301,15 +421,7 @@ public class Node {
 
     private boolean insert(long uid, long key) {
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while (kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if (ik < key) {
-                kth++;
-            } else {
-                break;
-            }
-        }
+        int kth = lowerBound(raw, noKeys, key);
         if (kth == noKeys && getRawSibling(raw) != 0) return false;
 
         if (getRawIfLeaf(raw)) {
@@ -344,8 +456,13 @@ public class Node {
         setRawSibling(nodeRaw, getRawSibling(raw));
         copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
-        setRawSibling(raw, son);
+        long stamp = latch();
+        try {
+            setRawNoKeys(raw, BALANCE_NUMBER);
+            setRawSibling(raw, son);
+        } finally {
+            unlatch(stamp);
+        }
 
         SplitRes res = new SplitRes();
         res.newSon = son;
@@ -12,23 +12,25 @@ import top.guoziyang.mydb.backend.parser.statement.Show;
 import top.guoziyang.mydb.backend.parser.statement.Update;
 import top.guoziyang.mydb.backend.tbm.BeginRes;
 import top.guoziyang.mydb.backend.tbm.TableManager;
+import top.guoziyang.mydb.backend.vm.Transaction;
 import top.guoziyang.mydb.common.Error;
 
 // 核心数据处理类，
 // Executor 调用 Parser 获取到对应语句的结构化信息对象，并根据对象的类型，调用 TBM 的不同方法进行处理
+// 每个会话一个 Executor，保存当前事务的句柄，之后的语句直接使用句柄，不再按 xid 查找事务
 public class Executor {
-    private long xid;
+    private Transaction transaction;
     TableManager tbm;
 
     public Executor(TableManager tbm) {
         this.tbm = tbm;
-        this.xid = 0;   // begin和close操作 需要超级事务进行执行
+        this.transaction = null;    // 没有显式开启的事务
     }
 
     public void close() {
-        if(xid != 0) {
-            System.out.println("Abnormal Abort: " + xid);
-            tbm.abort(xid);
+        if(transaction != null) {
+            System.out.println("Abnormal Abort: " + transaction.xid);
+            tbm.abort(transaction);
         }
     }
 
@@ -38,25 +40,25 @@ public class Executor {
         // 获得解析sql语句返回的具体的 Statement 类
         Object stat = Parser.Parse(sql);
         if(Begin.class.isInstance(stat)) {
-            if(xid != 0) {
+            if(transaction != null) {
                 throw Error.NestedTransactionException;
             }
             BeginRes r = tbm.begin((Begin)stat); // 开启表管理和字段管理
-            xid = r.xid;
+            transaction = r.transaction;
             return r.result;
         } else if(Commit.class.isInstance(stat)) {
-            if(xid == 0) {
+            if(transaction == null) {
                 throw Error.NoTransactionException;
             }
-            byte[] res = tbm.commit(xid);
-            xid = 0;
+            byte[] res = tbm.commit(transaction);
+            transaction = null;
             return res;
         } else if(Abort.class.isInstance(stat)) {
-            if(xid == 0) {
+            if(transaction == null) {
                 throw Error.NoTransactionException;
             }
-            byte[] res = tbm.abort(xid);
-            xid = 0;
+            byte[] res = tbm.abort(transaction);
+            transaction = null;
             return res;
         } else {
             return execute2(stat);
@@ -67,25 +69,25 @@ public class Executor {
     private byte[] execute2(Object stat) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
-        if(xid == 0) {
+        if(transaction == null) {
             tmpTransaction = true;
             BeginRes r = tbm.begin(new Begin());
-            xid = r.xid;
+            transaction = r.transaction;
         }
         try {
             byte[] res = null;
             if(Show.class.isInstance(stat)) {
-                res = tbm.show(xid);
+                res = tbm.show(transaction);
             } else if(Create.class.isInstance(stat)) {
-                res = tbm.create(xid, (Create)stat);
+                res = tbm.create(transaction, (Create)stat);
             } else if(Select.class.isInstance(stat)) {
-                res = tbm.read(xid, (Select)stat);
+                res = tbm.read(transaction, (Select)stat);
             } else if(Insert.class.isInstance(stat)) {
-                res = tbm.insert(xid, (Insert)stat);
+                res = tbm.insert(transaction, (Insert)stat);
             } else if(Delete.class.isInstance(stat)) {
-                res = tbm.delete(xid, (Delete)stat);
+                res = tbm.delete(transaction, (Delete)stat);
             } else if(Update.class.isInstance(stat)) {
-                res = tbm.update(xid, (Update)stat);
+                res = tbm.update(transaction, (Update)stat);
             }
             return res;
         } catch(Exception e1) {
@@ -94,11 +96,11 @@ public class Executor {
         } finally {
             if(tmpTransaction) {
                 if(e != null) {
-                    tbm.abort(xid);
+                    tbm.abort(transaction);
                 } else {
-                    tbm.commit(xid);
+                    tbm.commit(transaction);
                 }
-                xid = 0;
+                transaction = null;
             }
         }
     }
@@ -1,6 +1,9 @@
 package top.guoziyang.mydb.backend.tbm;
 
+import top.guoziyang.mydb.backend.vm.Transaction;
+
 public class BeginRes {
     public long xid;
+    public Transaction transaction;     // 事务句柄，由会话保存，之后的操作直接使用
     public byte[] result;
 }
@@ -11,6 +11,7 @@ import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.ParseStringRes;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.vm.Transaction;
 import top.guoziyang.mydb.common.Error;
 
 /**
@@ -69,7 +70,7 @@ public class Field {
         return this;
     }
 
-    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+    public static Field createField(Table tb, Transaction t, String fieldName, String fieldType, boolean indexed) throws Exception {
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
         if(indexed) {
@@ -78,16 +79,16 @@ public class Field {
             f.index = index;
             f.bt = bt;
         }
-        f.persistSelf(xid);
+        f.persistSelf(t);
         return f;
     }
 
     // 创建一个字段，通过VM插入进行持久化
-    private void persistSelf(long xid) throws Exception {
+    private void persistSelf(Transaction t) throws Exception {
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
-        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(t, Bytes.concat(nameRaw, typeRaw, indexRaw));
     }
 
     private static void typeCheck(String fieldType) throws Exception {
@@ -105,6 +106,12 @@ public class Field {
         bt.insert(uKey, uid);
     }
 
+    // 删除索引条目，垃圾回收使用
+    public void delete(Object key, long uid) throws Exception {
+        long uKey = value2Uid(key);
+        bt.delete(uKey, uid);
+    }
+
     // 通过B+树索引进行搜索字段
     public List<Long> search(long left, long right) throws Exception {
         return bt.searchRange(left, right);
@@ -19,6 +19,7 @@ import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.ParseStringRes;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.vm.Transaction;
 import top.guoziyang.mydb.common.Error;
 
 /**
@@ -51,7 +52,7 @@ public class Table {
         return tb.parseSelf(raw);
     }
 
-    public static Table createTable(TableManager tbm, long nextUid, long xid, Create create) throws Exception {
+    public static Table createTable(TableManager tbm, long nextUid, Transaction t, Create create) throws Exception {
         Table tb = new Table(tbm, create.tableName, nextUid);
         for(int i = 0; i < create.fieldName.length; i ++) {
             String fieldName = create.fieldName[i];
@@ -63,10 +64,10 @@ public class Table {
                     break;
                 }
             }
-            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
+            tb.fields.add(Field.createField(tb, t, fieldName, fieldType, indexed));
         }
 
-        return tb.persistSelf(xid);
+        return tb.persistSelf(t);
     }
 
     public Table(TableManager tbm, long uid) {
@@ -97,29 +98,29 @@ public class Table {
         return this;
     }
 
-    private Table persistSelf(long xid) throws Exception {
+    private Table persistSelf(Transaction t) throws Exception {
         byte[] nameRaw = Parser.string2Byte(name);
         byte[] nextRaw = Parser.long2Byte(nextUid);
         byte[] fieldRaw = new byte[0];
         for(Field field : fields) {
             fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(field.uid));
         }
-        uid = ((TableManagerImpl)tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw));
+        uid = ((TableManagerImpl)tbm).vm.insert(t, Bytes.concat(nameRaw, nextRaw, fieldRaw));
         return this;
     }
 
-    public int delete(long xid, Delete delete) throws Exception {
+    public int delete(Transaction t, Delete delete) throws Exception {
         List<Long> uids = parseWhere(delete.where);
         int count = 0;
         for (Long uid : uids) {
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+            if(((TableManagerImpl)tbm).vm.delete(t, uid)) {
                 count ++;
             }
         }
         return count;
     }
 
-    public int update(long xid, Update update) throws Exception {
+    public int update(Transaction t, Update update) throws Exception {
         List<Long> uids = parseWhere(update.where);
         Field fd = null;
         for (Field f : fields) {
@@ -133,16 +134,25 @@ public class Table {
         }
         Object value = fd.string2Value(update.value);
         int count = 0;
+        // 更新的不是索引字段时，新版本挂在原来的版本链上，索引条目不变；否则删除旧版本，插入新的一行并更新索引
+        boolean hot = !fd.isIndexed();
         for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(t, uid);
             if(raw == null) continue;
 
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
-
             Map<String, Object> entry = parseEntry(raw);
             entry.put(fd.fieldName, value);
             raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+
+            if(hot && ((TableManagerImpl)tbm).vm.update(t, uid, raw) != 0) {
+                count ++;
+                continue;
+            }
+
+            if(!((TableManagerImpl)tbm).vm.delete(t, uid)) {
+                continue;                               // 读取之后被其他事务删除了
+            }
+            long uuid = ((TableManagerImpl)tbm).vm.insert(t, raw);
             
             count ++;
 
@@ -155,11 +165,11 @@ public class Table {
         return count;
     }
 
-    public String read(long xid, Select read) throws Exception {
+    public String read(Transaction t, Select read) throws Exception {
         List<Long> uids = parseWhere(read.where);                   // IM查找索引解析Where语句
         StringBuilder sb = new StringBuilder();
         for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid); // 通过VM去读一个Entry记录
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(t, uid);   // 通过VM去读一个Entry记录
             if(raw == null) continue;
             Map<String, Object> entry = parseEntry(raw);
             sb.append(printEntry(entry)).append("\n");
@@ -167,10 +177,10 @@ public class Table {
         return sb.toString();
     }
 
-    public void insert(long xid, Insert insert) throws Exception {
+    public void insert(Transaction t, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
         byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+        long uid = ((TableManagerImpl)tbm).vm.insert(t, raw);
         for (Field field : fields) {
             if(field.isIndexed()) {
                 field.insert(entry.get(field.fieldName), uid);
@@ -191,6 +201,36 @@ public class Table {
         return entry;
     }
 
+    // 表中所有版本链的头，从第一个索引字段的全部索引条目中得到，垃圾回收使用
+    List<Long> chainHeads() throws Exception {
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                return field.search(Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * 垃圾回收一条版本链：整条链都已经死亡时，先删除这一行在所有索引中的条目，再回收整条链
+     * 非索引字段的更新挂在同一条版本链上，链头的索引字段的值就是索引条目的 key
+     * @return 是否回收了整条链
+     */
+    boolean vacuum(long uid, long horizon) throws Exception {
+        byte[] raw = ((TableManagerImpl)tbm).vm.prune(uid, horizon);
+        if(raw == null) {
+            return false;
+        }
+        Map<String, Object> entry = parseEntry(raw);
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                field.delete(entry.get(field.fieldName), uid);
+            }
+        }
+        ((TableManagerImpl)tbm).vm.free(uid);
+        return true;
+    }
+
     private List<Long> parseWhere(Where where) throws Exception {
         long l0=0, r0=0, l1=0, r1=0;
         boolean single = false;
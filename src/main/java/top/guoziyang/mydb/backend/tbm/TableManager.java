@@ -8,20 +8,26 @@ import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
 import top.guoziyang.mydb.backend.parser.statement.Update;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.vm.Transaction;
 import top.guoziyang.mydb.backend.vm.VersionManager;
 
+/**
+ * 除 begin 之外的方法都以 begin 返回的事务句柄为参数，由会话（Executor）保存句柄
+ */
 public interface TableManager {
     BeginRes begin(Begin begin);
-    byte[] commit(long xid) throws Exception;
-    byte[] abort(long xid);
+    byte[] commit(Transaction t) throws Exception;
+    byte[] abort(Transaction t);
 
-    byte[] show(long xid);
-    byte[] create(long xid, Create create) throws Exception;
+    byte[] show(Transaction t);
+    byte[] create(Transaction t, Create create) throws Exception;
 
-    byte[] insert(long xid, Insert insert) throws Exception;
-    byte[] read(long xid, Select select) throws Exception;
-    byte[] update(long xid, Update update) throws Exception;
-    byte[] delete(long xid, Delete delete) throws Exception;
+    byte[] insert(Transaction t, Insert insert) throws Exception;
+    byte[] read(Transaction t, Select select) throws Exception;
+    byte[] update(Transaction t, Update update) throws Exception;
+    byte[] delete(Transaction t, Delete delete) throws Exception;
+
+    int vacuum() throws Exception;      // 手动执行一次垃圾回收（打开数据库时会启动后台垃圾回收），返回压缩回收的字节数
 
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
@@ -31,6 +37,8 @@ public interface TableManager {
 
     public static TableManager open(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.open(path);
-        return new TableManagerImpl(vm, dm, booter);
+        TableManagerImpl tbm = new TableManagerImpl(vm, dm, booter);
+        tbm.startVacuum();
+        return tbm;
     }
 }
@@ -15,6 +15,7 @@ import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
 import top.guoziyang.mydb.backend.parser.statement.Update;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.vm.Transaction;
 import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.common.Error;
 
@@ -25,6 +26,7 @@ public class TableManagerImpl implements TableManager {
     private Map<String, Table> tableCache;          // 表的缓存，key：表名；value：表
     private Map<Long, List<Table>> xidTableCache;   // 记录每个事务正在操作的表
     private Lock lock;
+    private Vacuum vacuum;
     
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -33,9 +35,25 @@ public class TableManagerImpl implements TableManager {
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
+        vacuum = new Vacuum(this);
         loadTables();
     }
 
+    // 启动后台垃圾回收线程
+    void startVacuum() {
+        vacuum.start(Vacuum.DEFAULT_INTERVAL);
+    }
+
+    // 所有表，垃圾回收使用
+    List<Table> tables() {
+        lock.lock();
+        try {
+            return new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void loadTables() {
         long uid = firstTableUid(); // 获取第一张表的Uid
         while(uid != 0) {
@@ -55,37 +73,43 @@ public class TableManagerImpl implements TableManager {
         booter.update(raw);
     }
 
+    @Override
+    public int vacuum() throws Exception {
+        return vacuum.run();
+    }
+
     @Override
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead?1:0; // 隔离等级
-        res.xid = vm.begin(level);              // 通过VM开始一个新事务，返回事务ID
+        res.transaction = vm.beginTransaction(level);   // 通过VM开始一个新事务，返回事务句柄
+        res.xid = res.transaction.xid;
         res.result = "begin".getBytes();        // 记录执行语句
         return res;
     }
     @Override
-    public byte[] commit(long xid) throws Exception {
-        vm.commit(xid);
+    public byte[] commit(Transaction t) throws Exception {
+        vm.commit(t);
         return "commit".getBytes();
     }
     @Override
-    public byte[] abort(long xid) {
-        vm.abort(xid);
+    public byte[] abort(Transaction t) {
+        vm.abort(t);
         return "abort".getBytes();
     }
     @Override
-    public byte[] show(long xid) {
+    public byte[] show(Transaction t) {
         lock.lock();
         try {
             StringBuilder sb = new StringBuilder();
             for (Table tb : tableCache.values()) {
                 sb.append(tb.toString()).append("\n");
             }
-            List<Table> t = xidTableCache.get(xid);
-            if(t == null) {
+            List<Table> created = xidTableCache.get(t.xid);
+            if(created == null) {
                 return "\n".getBytes();
             }
-            for (Table tb : t) {
+            for (Table tb : created) {
                 sb.append(tb.toString()).append("\n");
             }
             return sb.toString().getBytes();
@@ -95,66 +119,66 @@ public class TableManagerImpl implements TableManager {
     }
 
     @Override
-    public byte[] create(long xid, Create create) throws Exception {
+    public byte[] create(Transaction t, Create create) throws Exception {
         lock.lock();
         try {
             // 表已经存在
             if(tableCache.containsKey(create.tableName)) {
                 throw Error.DuplicatedTableException;
             }
-            Table table = Table.createTable(this, firstTableUid(), xid, create);
+            Table table = Table.createTable(this, firstTableUid(), t, create);
             updateFirstTableUid(table.uid);
             tableCache.put(create.tableName, table);
-            if(!xidTableCache.containsKey(xid)) {
-                xidTableCache.put(xid, new ArrayList<>());
+            if(!xidTableCache.containsKey(t.xid)) {
+                xidTableCache.put(t.xid, new ArrayList<>());
             }
-            xidTableCache.get(xid).add(table);
+            xidTableCache.get(t.xid).add(table);
             return ("create " + create.tableName).getBytes();
         } finally {
             lock.unlock();
         }
     }
     @Override
-    public byte[] insert(long xid, Insert insert) throws Exception {
+    public byte[] insert(Transaction t, Insert insert) throws Exception {
         lock.lock();
         Table table = tableCache.get(insert.tableName);
         lock.unlock();
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        table.insert(xid, insert);
+        table.insert(t, insert);
         return "insert".getBytes();
     }
     @Override
-    public byte[] read(long xid, Select read) throws Exception {
+    public byte[] read(Transaction t, Select read) throws Exception {
         lock.lock();
         Table table = tableCache.get(read.tableName);
         lock.unlock();
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        return table.read(xid, read).getBytes();
+        return table.read(t, read).getBytes();
     }
     @Override
-    public byte[] update(long xid, Update update) throws Exception {
+    public byte[] update(Transaction t, Update update) throws Exception {
         lock.lock();
         Table table = tableCache.get(update.tableName);
         lock.unlock();
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        int count = table.update(xid, update);
+        int count = table.update(t, update);
         return ("update " + count).getBytes();
     }
     @Override
-    public byte[] delete(long xid, Delete delete) throws Exception {
+    public byte[] delete(Transaction t, Delete delete) throws Exception {
         lock.lock();
         Table table = tableCache.get(delete.tableName);
         lock.unlock();
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        int count = table.delete(xid, delete);
+        int count = table.delete(t, delete);
         return ("delete " + count).getBytes();
     }
 }
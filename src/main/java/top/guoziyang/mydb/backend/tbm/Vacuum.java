@@ -0,0 +1,106 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 垃圾回收（vacuum）：回收对所有事务都不可见的旧版本，以及指向它们的索引条目
+ * 分为两个阶段：
+ *      1、清理：以 VersionManager.horizon() 为界，逐张表遍历所有版本链（Table.vacuum），
+ *         整条链都已经死亡的行删除索引条目并回收所有版本，其余的链只回收链上死亡的版本；
+ *         被回收的 DataItem 只是标记为无效，空间还没有释放。
+ *      2、压缩：清理之前开启的事务可能还持有被回收的 UID（从索引或者 NEXT 中读到的），
+ *         要等这些事务都结束，也就是 horizon 越过清理结束时的下一个事务ID，才能调用 DataManager.compact()
+ *         把页面末尾被回收的空间还给 PageIndex，否则同一个 UID 可能指向新插入的数据。
+ *         等待压缩期间不做新的清理。
+ * 每处理 BATCH 条版本链暂停 PAUSE 毫秒，让出 I/O 给前台的查询。
+ * 每次执行前先冻结冻结点之前的事务状态（VersionManager.freeze），重写XID文件的 I/O 也在后台线程中完成。
+ */
+class Vacuum {
+
+    static final long DEFAULT_INTERVAL = 10 * 1000;     // 后台默认每 10s 执行一次
+    private static final int BATCH = 256;               // 每批处理的版本链数
+    private static final long PAUSE = 10;               // 每批之后暂停 10ms
+
+    private TableManagerImpl tbm;
+    private Lock lock;                                  // 后台线程和手动执行互斥
+    private long compactAfter;                          // 等待压缩时为清理结束时的下一个事务ID，否则为0
+    private ScheduledExecutorService worker;
+
+    Vacuum(TableManagerImpl tbm) {
+        this.tbm = tbm;
+        this.lock = new ReentrantLock();
+    }
+
+    // 启动后台垃圾回收线程
+    void start(long intervalMillis) {
+        worker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vacuum");
+            t.setDaemon(true);
+            return t;
+        });
+        worker.scheduleWithFixedDelay(() -> {
+            try {
+                run();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 执行一次垃圾回收：先压缩上一次清理回收的页面（还有事务持有被回收的 UID 时直接返回），再清理所有表，
+     * 清理结束时没有需要等待的事务就接着压缩
+     * @return 压缩回收的字节数
+     */
+    int run() throws Exception {
+        lock.lock();
+        try {
+            tbm.vm.freeze();
+            int reclaimed = 0;
+            if(compactAfter != 0) {
+                if(!canCompact()) {
+                    return 0;
+                }
+                reclaimed += compact();
+            }
+            long horizon = tbm.vm.horizon();
+            for(Table table : tbm.tables()) {
+                clean(table, horizon);
+            }
+            compactAfter = tbm.vm.nextXid();
+            if(canCompact()) {
+                reclaimed += compact();
+            }
+            return reclaimed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void clean(Table table, long horizon) throws Exception {
+        List<Long> heads = table.chainHeads();
+        for(int i = 0; i < heads.size(); i ++) {
+            table.vacuum(heads.get(i), horizon);
+            if((i + 1) % BATCH == 0) {
+                Thread.sleep(PAUSE);
+            }
+        }
+    }
+
+    // 清理之前开启的事务都已经结束
+    private boolean canCompact() {
+        return tbm.vm.horizon() >= compactAfter;
+    }
+
+    private int compact() throws Exception {
+        compactAfter = 0;
+        return tbm.dm.compact();
+    }
+}
@@ -13,6 +13,7 @@ import top.guoziyang.mydb.common.Error;
 /**
  * 提供一些接口供其他模块使用
  * 提供两个静态方法 create 和 open，方便创建一个XID文件并开启事务管理模块，或者从已经存在的XID文件开启事务管理模块
+ * 两个方法都有一个带 mmap 参数的版本，mmap 为 true 时使用内存映射文件读写事务状态
  */
 public interface TransactionManager {
     long begin();                       // 开启一个新事务，返回事务id
@@ -22,6 +23,7 @@ public interface TransactionManager {
     boolean isCommitted(long xid);      // 查询一个事务的状态是否是已提交
     boolean isAborted(long xid);        // 查询一个事务的状态是否是已取消
     void close();                       // 关闭 TM
+    void freeze(long horizon);          // 冻结 horizon 之前的事务状态，调用者保证这些事务都已结束且不在任何快照中
 
     /**
      * 创建一个新的XID文件，并开启事务管理模块
@@ -29,6 +31,10 @@ public interface TransactionManager {
      * @return
      */
     public static TransactionManagerImpl create(String path) {
+        return create(path, false);
+    }
+
+    public static TransactionManagerImpl create(String path, boolean mmap) {
         // 新建XID文件
         File f = new File(path+TransactionManagerImpl.XID_SUFFIX);
 
@@ -64,7 +70,7 @@ public interface TransactionManager {
         }
 
         // 开启事务管理模块
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc, mmap);
     }
 
     /**
@@ -73,6 +79,10 @@ public interface TransactionManager {
      * @return
      */
     public static TransactionManagerImpl open(String path) {
+        return open(path, false);
+    }
+
+    public static TransactionManagerImpl open(String path, boolean mmap) {
         File f = new File(path+TransactionManagerImpl.XID_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -90,6 +100,6 @@ public interface TransactionManager {
            Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc, mmap);
     }
 }
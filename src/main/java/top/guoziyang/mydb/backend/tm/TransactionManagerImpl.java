@@ -1,11 +1,24 @@
 package top.guoziyang.mydb.backend.tm;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
@@ -20,6 +33,36 @@ import top.guoziyang.mydb.common.Error;
  * 构造函数需要检查XID文件是否合法，原理是用头部存的事务数量去计算最后一个事务在XID文件中的与起始位置的相对位置，再去对比XID文件的长度
  * 有个超级事务权限SUPER_XID，用于内部控制所有事务的操作。
  * 新建一个新事务的时候使用 ReentrantLock 保证线程安全性
+ *
+ * 事务状态表：
+ *      内存中为每个事务保存 2 位状态，每个 long 存 32 个事务，每 XIDS_PER_PAGE 个事务一页，
+ *      第一次访问某一页时才从XID文件中读入（懒加载），之后查询状态只是一次无锁的内存读取，不再读文件。
+ *      修改状态时先写XID文件并 force，再用 CAS 更新内存中的状态，所以内存中的状态总是已经持久化的状态。
+ *
+ * 预分配事务ID：
+ *      文件头记录的是XID文件已经覆盖的事务数，begin() 一次预留 XID_BATCH 个事务ID，把文件扩展到对应长度并写回头部，
+ *      之后这一批事务ID的 begin() 只修改内存，不写文件也不 force。新扩展的状态字节为 0，正好是 active 状态。
+ *      崩溃后从文件头之后继续分配，预留了但没有用到的事务ID保持 active 状态，不会被重复使用。
+ *
+ * 组提交：
+ *      commit() 和 abort() 写完状态字节之后领取一个序号，由一个 leader 线程执行 force，
+ *      force 开始前已经领取序号的写入都随这一次 force 持久化，并发提交的事务共享一次 fsync。
+ *
+ * mmap 模式：
+ *      状态字节所在的文件区域按 MAP_SIZE 大小分块映射为 MappedByteBuffer，修改状态就是一次内存写入，
+ *      之后只 force 这个事务所在的那一块，而不是整个文件。
+ *      事务ID按 MMAP_XID_BATCH 个一次预留，文件一次扩展一大段，预留的范围总是 MAP_SIZE 的整数倍，映射不会越过文件末尾。
+ *      两种模式的文件格式相同，可以互相打开。FileChannel 模式的文件预留的范围不一定是整块，以 mmap 模式打开时先把预留补齐到整块。
+ *
+ * 冻结（freeze）：
+ *      所有事务都已经结束、并且不在任何活跃快照中的事务ID之前的状态不会再改变，也不会再被快照引用，
+ *      freeze(horizon) 把 horizon 之前整页的事务状态归档：只保留其中被回滚的事务ID（一般很少），其余都视为已提交（冻结提交），
+ *      然后把这些状态从XID文件中删掉，内存中对应的状态页也一并释放，热的状态表只覆盖冻结点之后的事务。
+ *      冻结之后的XID文件格式（头部最高位为 1 表示带有归档）：
+ *      ｜Header | FROZEN_FLAG｜FrozenXID｜AbortedCount｜Aborted XID ...｜status of FrozenXID+1｜ ... ｜
+ *         [8Byte]             [8Byte]     [8Byte]       [8Byte]*n        [1Byte]
+ *      新文件先完整写到临时文件并 force，再原子地 rename 覆盖原文件，任何时刻崩溃看到的都是完整的旧文件或者新文件。
+ *      复制文件时不加锁，期间修改状态的事务ID记在 changed 中，加锁之后只补上这些状态和新预留的部分，再替换文件。
  */
 public class TransactionManagerImpl implements TransactionManager {
 
@@ -37,17 +80,73 @@ public class TransactionManagerImpl implements TransactionManager {
     public static final long SUPER_XID = 0;
 
     static final String XID_SUFFIX = ".xid";
-    
+
+    // 内存状态表中每个事务占 2 位
+    private static final int STATUS_BITS = 2;
+    private static final long STATUS_MASK = (1L << STATUS_BITS) - 1;
+    private static final int XIDS_PER_WORD = Long.SIZE / STATUS_BITS;
+    // 每页的事务数，对应XID文件中 32KB
+    static final int XIDS_PER_PAGE = 1 << 15;
+    private static final int WORDS_PER_PAGE = XIDS_PER_PAGE / XIDS_PER_WORD;
+
+    // 每次预留的事务ID个数
+    private static final int XID_BATCH = 1024;
+    // mmap 模式下每次预留的事务ID个数，文件按这个大小扩展
+    private static final int MMAP_XID_BATCH = 1 << 20;
+    // mmap 模式下每块映射的大小，也是一次 force 的范围
+    private static final int MAP_SIZE = 1 << 12;
+
+    // 头部最高位，表示文件带有冻结归档
+    private static final long FROZEN_FLAG = 1L << 63;
+    private static final int LEN_FROZEN_HEADER_LENGTH = LEN_XID_HEADER_LENGTH + 16;
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private File path;
     private RandomAccessFile file;
     private FileChannel fc;
-    private long xidCounter;
+    private volatile long xidCounter;                                       // 已经分配出去的最大事务ID
+    private long reservedXid;                                               // 文件头记录的事务数，xidCounter 之后到这里是预留的事务ID
     private Lock counterLock;
 
-    TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
+    private Lock syncLock;
+    private Condition synced;                                               // force 完成的通知
+    private long syncRequested;                                             // 已经写完状态、等待 force 的最大序号
+    private long syncDone;                                                  // 已经 force 的最大序号
+    private boolean syncing;                                                // 是否有 leader 正在 force
+
+    private boolean mmap;                                                   // 是否使用 mmap 模式
+    private volatile MappedByteBuffer[] regions;                            // mmap 模式下已经映射的状态分块
+    private Lock mapLock;                                                   // 扩展映射时使用
+
+    private volatile AtomicReferenceArray<AtomicLongArray> statusPages;    // 页号 -> 这一页事务的状态，没有加载的页为 null
+    private Lock loadLock;                                                  // 加载页面和扩容页表时加锁
+
+    private volatile long frozenXid;                                        // 冻结点，不超过它的事务状态从归档中读取
+    private volatile long[] frozenAborted;                                  // 冻结点之前被回滚的事务ID，有序
+    private long dataStart;                                                 // 第一个状态字节（事务 frozenXid+1）在文件中的位置
+    private ReadWriteLock fileLock;                                         // 写文件时加读锁，冻结替换文件时加写锁
+    private Lock freezeLock;                                                // 同一时间只有一个冻结
+    private volatile Queue<Long> changed;                                   // 冻结复制文件期间修改过状态的事务ID，不在冻结时为 null
+
+    TransactionManagerImpl(File path, RandomAccessFile raf, FileChannel fc, boolean mmap) {
+        this.path = path;
         this.file = raf;
         this.fc = fc;
+        this.mmap = mmap;
+        this.regions = new MappedByteBuffer[0];
+        mapLock = new ReentrantLock();
         counterLock = new ReentrantLock();
+        loadLock = new ReentrantLock();
+        syncLock = new ReentrantLock();
+        synced = syncLock.newCondition();
+        fileLock = new ReentrantReadWriteLock();
+        freezeLock = new ReentrantLock();
         checkXIDCounter(); // 检查XID文件是否合法
+        if(mmap && reservedXid % MAP_SIZE != 0) {
+            // FileChannel 模式创建的文件只按 XID_BATCH 预留，最后一块映射会越过头部覆盖的范围，先把预留补齐到整块
+            reserveTo((reservedXid / MAP_SIZE + 1) * MAP_SIZE);
+        }
+        statusPages = new AtomicReferenceArray<>(pageOf(xidCounter) + 1);
     }
 
     /**
@@ -68,81 +167,338 @@ public class TransactionManagerImpl implements TransactionManager {
         // 读取xid文件中事务的个数
         ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
         try {
-            fc.position(0);
-            fc.read(buf);
+            fc.read(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xidCounter = Parser.parseLong(buf.array());
+        long header = Parser.parseLong(buf.array());
+        this.xidCounter = this.reservedXid = header & ~FROZEN_FLAG;
+        this.dataStart = LEN_XID_HEADER_LENGTH;
+        this.frozenAborted = new long[0];
+        if((header & FROZEN_FLAG) != 0) {
+            readFrozen(fileLen);
+        }
         // 取得最后一个事务在文件中的相对位置，也就是反推xid文件的长度
         long end = getXidPosition(this.xidCounter + 1);
-        if(end != fileLen) {
+        if(end > fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
+        if(end < fileLen) {
+            // 预留事务ID时文件已经扩展、头部还没有写回就崩溃了，多出来的部分没有被使用过
+            try {
+                fc.truncate(end);
+                fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    // 读取冻结归档：冻结点和冻结点之前被回滚的事务ID
+    private void readFrozen(long fileLen) {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        try {
+            fc.read(buf, LEN_XID_HEADER_LENGTH);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        long frozen = buf.getLong(0);
+        long count = buf.getLong(8);
+        if(frozen < 0 || frozen > reservedXid || count < 0 || LEN_FROZEN_HEADER_LENGTH + count * 8 > fileLen) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        ByteBuffer aborted = ByteBuffer.allocate((int)count * 8);
+        try {
+            while(aborted.hasRemaining()) {
+                if(fc.read(aborted, LEN_FROZEN_HEADER_LENGTH + aborted.position()) < 0) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        aborted.flip();
+        long[] xids = new long[(int)count];
+        aborted.asLongBuffer().get(xids);
+        this.frozenAborted = xids;
+        this.frozenXid = frozen;
+        this.dataStart = LEN_FROZEN_HEADER_LENGTH + count * 8;
     }
 
     /**
      * 根据事务ID取得其在xid文件中的相对位置
-     * @param xid 事务ID
+     * @param xid 事务ID，必须大于冻结点
      * @return
      */
     private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH + (xid-1)*XID_FIELD_SIZE;
+        return dataStart + (xid-1-frozenXid)*XID_FIELD_SIZE;
+    }
+
+    // 头部记录的值，带有归档的文件最高位为 1
+    private long header(long reserved) {
+        return frozenXid == 0 ? reserved : reserved | FROZEN_FLAG;
     }
 
     /**
-     * 更新事务的状态
+     * 更新事务的状态，先写文件并等待组提交 force，再更新内存中的状态表
+     * 使用带位置的读写，不同线程的文件操作不会互相改掉对方的 position
      * @param xid 事务ID
      * @param status 事务需要改变为的状态
      */
     private void updateXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        byte[] tmp = new byte[XID_FIELD_SIZE];
-        tmp[0] = status;
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
+        fileLock.readLock().lock();
         try {
-            fc.position(offset);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            if(mmap) {
+                // 直接写入映射区域，只 force 事务所在的一块
+                MappedByteBuffer region = region(xid);
+                region.put((int)((xid - 1) % MAP_SIZE), status);
+                region.force();
+            } else {
+                long offset = getXidPosition(xid);
+                byte[] tmp = new byte[XID_FIELD_SIZE];
+                tmp[0] = status;
+                ByteBuffer buf = ByteBuffer.wrap(tmp);
+                try {
+                    fc.write(buf, offset);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+                // 所有的文件操作在执行后都需要刷入文件中，防止在崩溃后文件丢失数据
+                groupForce();
+            }
+            // 冻结正在复制文件，记下修改过的事务，替换文件之前补到新文件中
+            Queue<Long> q = changed;
+            if(q != null) {
+                q.add(xid);
+            }
+        } finally {
+            fileLock.readLock().unlock();
         }
-        // 所有的文件操作在执行后都需要立刻刷入文件中，防止在崩溃后文件丢失数据
+        setStatus(xid, status);
+    }
+
+    /**
+     * mmap 模式下获取事务状态所在的映射分块，必要时扩展映射范围
+     */
+    private MappedByteBuffer region(long xid) {
+        int idx = (int)((xid - 1) / MAP_SIZE);
+        MappedByteBuffer[] rs = regions;
+        if(idx >= rs.length || rs[idx] == null) {
+            rs = mapRegion(idx);
+        }
+        return rs[idx];
+    }
+
+    /**
+     * 映射第 idx 块，mmap 模式下预留的范围总是 MAP_SIZE 的整数倍（打开时已经补齐），
+     * 需要映射的块都完整地落在头部覆盖的范围之内，映射不会扩展文件
+     */
+    private MappedByteBuffer[] mapRegion(int idx) {
+        mapLock.lock();
         try {
-            fc.force(false);
-        } catch (IOException e) {
+            MappedByteBuffer[] rs = regions;
+            if(idx < rs.length && rs[idx] != null) {
+                return rs;
+            }
+            rs = Arrays.copyOf(rs, Math.max(rs.length * 2, idx + 1));
+            rs[idx] = fc.map(FileChannel.MapMode.READ_WRITE, getXidPosition((long)idx * MAP_SIZE + 1), MAP_SIZE);
+            regions = rs;
+            return rs;
+        } catch(IOException e) {
             Panic.panic(e);
+            return null;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    /**
+     * 等待调用之前的写入被 force
+     * 没有 leader 时自己成为 leader，force 期间到达的线程等待下一轮，下一轮的 leader 一次 force 所有人的写入
+     */
+    private void groupForce() {
+        syncLock.lock();
+        try {
+            long seq = ++syncRequested;
+            while(syncDone < seq) {
+                if(syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target = syncRequested;
+                syncLock.unlock();
+                try {
+                    fc.force(false);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                } finally {
+                    syncLock.lock();
+                }
+                syncDone = target;
+                syncing = false;
+                synced.signalAll();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private static int pageOf(long xid) {
+        return (int)((xid - 1) / XIDS_PER_PAGE);
+    }
+
+    private static int wordOf(long xid) {
+        return (int)((xid - 1) % XIDS_PER_PAGE / XIDS_PER_WORD);
+    }
+
+    private static int shiftOf(long xid) {
+        return (int)((xid - 1) % XIDS_PER_WORD) * STATUS_BITS;
+    }
+
+    /**
+     * 从内存状态表中读取事务状态，页面已经加载时不加锁
+     */
+    private byte getStatus(long xid) {
+        if(xid > xidCounter) {
+            // 还没有分配的事务，XID文件中没有对应的位置，和原来读到 0 的行为保持一致
+            return FIELD_TRAN_ACTIVE;
+        }
+        if(xid <= frozenXid) {
+            return frozenStatus(xid);
+        }
+        long word = statusPage(pageOf(xid)).get(wordOf(xid));
+        return (byte)((word >>> shiftOf(xid)) & STATUS_MASK);
+    }
+
+    private void setStatus(long xid, byte status) {
+        AtomicLongArray page = statusPage(pageOf(xid));
+        int w = wordOf(xid);
+        int shift = shiftOf(xid);
+        while(true) {
+            long old = page.get(w);
+            long updated = (old & ~(STATUS_MASK << shift)) | ((long)status << shift);
+            if(page.compareAndSet(w, old, updated)) {
+                return;
+            }
+        }
+    }
+
+    private AtomicLongArray statusPage(int pageNo) {
+        AtomicReferenceArray<AtomicLongArray> pages = statusPages;
+        if(pageNo < pages.length()) {
+            AtomicLongArray page = pages.get(pageNo);
+            if(page != null) {
+                return page;
+            }
         }
+        return loadStatusPage(pageNo);
     }
 
     /**
-     * 将XID加一，并更新XID文件中Header的数据
+     * 加载一页事务状态，页表不够大时扩容
+     * 修改状态的线程在写完文件之后才会访问这一页，所以无论加载和写文件谁先完成，内存中的状态都是最新的
      */
-    private void incrXIDCounter() {
-        xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    private AtomicLongArray loadStatusPage(int pageNo) {
+        loadLock.lock();
         try {
-            fc.position(0);
-            fc.write(buf);
+            AtomicReferenceArray<AtomicLongArray> pages = statusPages;
+            if(pageNo >= pages.length()) {
+                AtomicReferenceArray<AtomicLongArray> grown = new AtomicReferenceArray<>(Math.max(pageNo + 1, pages.length() * 2));
+                for(int i = 0; i < pages.length(); i ++) {
+                    grown.set(i, pages.get(i));
+                }
+                statusPages = pages = grown;
+            }
+            AtomicLongArray page = pages.get(pageNo);
+            if(page == null) {
+                page = readStatusPage(pageNo);
+                pages.set(pageNo, page);
+            }
+            return page;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    // 冻结点之前的事务：归档中记录的是回滚的事务，其余都是已提交
+    private byte frozenStatus(long xid) {
+        return Arrays.binarySearch(frozenAborted, xid) >= 0 ? FIELD_TRAN_ABORTED : FIELD_TRAN_COMMITTED;
+    }
+
+    /**
+     * 从XID文件中读取一页事务的状态，文件末尾之后的事务视为 0
+     * 冻结之后，读取冻结点之前的页（读者在冻结前拿到了旧的冻结点）时，这部分状态从归档中取
+     */
+    private AtomicLongArray readStatusPage(int pageNo) {
+        long first = (long)pageNo * XIDS_PER_PAGE + 1;
+        long[] words = new long[WORDS_PER_PAGE];
+        if(first + XIDS_PER_PAGE - 1 <= frozenXid) {
+            for(int i = 0; i < XIDS_PER_PAGE; i ++) {
+                words[i / XIDS_PER_WORD] |= (long)frozenStatus(first + i) << ((i % XIDS_PER_WORD) * STATUS_BITS);
+            }
+            return new AtomicLongArray(words);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(XIDS_PER_PAGE * XID_FIELD_SIZE);
+        try {
+            long position = getXidPosition(first);
+            while(buf.hasRemaining()) {
+                int n = fc.read(buf, position + buf.position());
+                if(n <= 0) {
+                    break;
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
+        byte[] raw = buf.array();
+        for(int i = 0; i < buf.position(); i ++) {
+            words[i / XIDS_PER_WORD] |= ((long)raw[i] & STATUS_MASK) << ((i % XIDS_PER_WORD) * STATUS_BITS);
+        }
+        return new AtomicLongArray(words);
+    }
+
+    /**
+     * 再预留一批事务ID
+     * mmap 模式下预留到 MMAP_XID_BATCH 的整数倍，保证最后一块映射完整地落在文件之内
+     */
+    private void reserveXIDs() {
+        reserveTo(mmap ? (reservedXid / MMAP_XID_BATCH + 1) * MMAP_XID_BATCH : reservedXid + XID_BATCH);
+    }
+
+    /**
+     * 把预留的事务ID扩展到 reserved：先把文件扩展到新的长度，再更新XID文件中Header的数据
+     * 两次写入分别 force，保证头部记录的事务数不会超过文件的长度
+     */
+    private void reserveTo(long reserved) {
+        fileLock.readLock().lock();
         try {
+            file.setLength(getXidPosition(reserved + 1));       // 扩展出来的部分为 0，即 active 状态
+            fc.force(false);
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(header(reserved))), 0);
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
         }
+        reservedXid = reserved;
     }
 
     /**
      * 开始一个新事务，线程安全
+     * 预留的事务ID用完时才写文件，其余情况只修改内存
      * @return 事务ID
      */
     public long begin() {
         counterLock.lock();
         try {
             long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXIDCounter();
+            if(xid > reservedXid) {
+                reserveXIDs();
+            }
+            setStatus(xid, FIELD_TRAN_ACTIVE);
+            xidCounter = xid;
             return xid;
         } finally {
             counterLock.unlock();
@@ -166,21 +522,143 @@ public class TransactionManagerImpl implements TransactionManager {
     }
 
     /**
-     * 检测事务是否处于期望状态
-     * @param xid 事务ID
-     * @param status 期望状态
-     * @return
+     * 冻结 horizon 之前的事务状态，只冻结到整页的边界
+     * 调用者保证 horizon 之前的事务都已经结束，并且不在任何活跃事务的快照中，
+     * 此时仍然是 active 状态的事务是崩溃前没有写过数据的事务，或者预留了但没有用到的事务ID，按回滚归档
+     * 扫描状态和复制文件不加锁，提交和开启事务照常进行，只在补上复制期间的修改、替换文件时短暂地持有锁
+     * @param horizon 冻结点之后第一个不能冻结的事务ID
      */
-    private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+    public void freeze(long horizon) {
+        freezeLock.lock();
+        try {
+            long target = Math.min(horizon - 1, xidCounter) / XIDS_PER_PAGE * XIDS_PER_PAGE;
+            if(target <= frozenXid) {
+                return;
+            }
+            // 归档：旧的回滚列表 + 新冻结的部分中没有提交的事务，这些事务的状态不会再改变
+            long[] aborted = Arrays.copyOf(frozenAborted, frozenAborted.length + 16);
+            int count = frozenAborted.length;
+            for(long xid = frozenXid + 1; xid <= target; xid ++) {
+                if(getStatus(xid) != FIELD_TRAN_COMMITTED) {
+                    if(count == aborted.length) {
+                        aborted = Arrays.copyOf(aborted, count * 2);
+                    }
+                    aborted[count ++] = xid;
+                }
+            }
+            aborted = Arrays.copyOf(aborted, count);
+            long newStart = LEN_FROZEN_HEADER_LENGTH + (long)count * 8;
+
+            File tmp = new File(path.getPath() + TMP_SUFFIX);
+            changed = new ConcurrentLinkedQueue<>();
+            try(FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long copied = copyStatuses(out, target, aborted);
+                counterLock.lock();
+                fileLock.writeLock().lock();
+                loadLock.lock();
+                try {
+                    catchUp(out, target, newStart, copied);
+                    out.force(true);
+                    swap(tmp);
+
+                    // 先发布归档再推进冻结点，读者看到新的冻结点时一定能看到对应的归档
+                    frozenAborted = aborted;
+                    frozenXid = target;
+                    dataStart = newStart;
+                    regions = new MappedByteBuffer[0];
+                    AtomicReferenceArray<AtomicLongArray> pages = statusPages;
+                    for(int i = 0; i < Math.min(pageOf(target + 1), pages.length()); i ++) {
+                        pages.set(i, null);
+                    }
+                } finally {
+                    loadLock.unlock();
+                    fileLock.writeLock().unlock();
+                    counterLock.unlock();
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        } finally {
+            changed = null;
+            freezeLock.unlock();
+        }
+    }
+
+    /**
+     * 不加锁地把归档和冻结点之后的状态写到临时文件，复制期间修改的状态记录在 changed 中
+     * @return 复制到的事务ID，也就是复制开始时文件头记录的事务数
+     */
+    private long copyStatuses(FileChannel out, long target, long[] aborted) throws IOException {
+        long reserved;
+        counterLock.lock();
         try {
-            fc.position(offset);
-            fc.read(buf);
+            reserved = reservedXid;
+        } finally {
+            counterLock.unlock();
+        }
+        ByteBuffer head = ByteBuffer.allocate(LEN_FROZEN_HEADER_LENGTH + aborted.length * 8);
+        head.putLong(reserved | FROZEN_FLAG).putLong(target).putLong(aborted.length);
+        head.asLongBuffer().put(aborted);
+        head.clear();
+        while(head.hasRemaining()) {
+            out.write(head);
+        }
+        long statusLength = (reserved - target) * XID_FIELD_SIZE;
+        long transferred = 0;
+        long from = getXidPosition(target + 1);
+        while(transferred < statusLength) {
+            transferred += fc.transferTo(from + transferred, statusLength - transferred, out);
+        }
+        return reserved;
+    }
+
+    /**
+     * 持有锁时调用，此时没有写文件的线程：补上复制期间新预留的事务ID和修改过的状态，再写入最新的头部
+     * 修改过的状态从旧文件中读取，文件中的状态总是不比内存中的旧
+     */
+    private void catchUp(FileChannel out, long target, long newStart, long copied) throws IOException {
+        if(reservedXid > copied) {
+            // 新预留的部分为 0，即 active 状态
+            out.write(ByteBuffer.allocate(XID_FIELD_SIZE), newStart + (reservedXid - 1 - target) * XID_FIELD_SIZE);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(XID_FIELD_SIZE);
+        for(long xid : changed) {
+            buf.clear();
+            fc.read(buf, getXidPosition(xid));
+            buf.flip();
+            out.write(buf, newStart + (xid - 1 - target) * XID_FIELD_SIZE);
+        }
+        out.write(ByteBuffer.wrap(Parser.long2Byte(reservedXid | FROZEN_FLAG)), 0);
+    }
+
+    /**
+     * 持有锁时调用：rename 临时文件覆盖XID文件，再打开新文件
+     */
+    private void swap(File tmp) {
+        try {
+            regions = new MappedByteBuffer[0];
+            fc.close();
+            file.close();
+            Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            try(FileChannel dir = FileChannel.open(path.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+                dir.force(true);
+            }
+            file = new RandomAccessFile(path, "rw");
+            fc = file.getChannel();
         } catch (IOException e) {
             Panic.panic(e);
         }
-        return buf.array()[0] == status;
+    }
+
+    /**
+     * 检测事务是否处于期望状态，只读取内存中的状态表
+     * @param xid 事务ID
+     * @param status 期望状态
+     * @return
+     */
+    private boolean checkXID(long xid, byte status) {
+        return getStatus(xid) == status;
     }
 
     public boolean isActive(long xid) {
@@ -203,6 +681,7 @@ public class TransactionManagerImpl implements TransactionManager {
      */
     public void close() {
         try {
+            regions = new MappedByteBuffer[0];
             fc.close();
             file.close();
         } catch (IOException e) {
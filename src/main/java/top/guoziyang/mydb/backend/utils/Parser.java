@@ -30,6 +30,19 @@ public class Parser {
         return buffer.getLong();
     }
 
+    // 以下三个方法直接从 buf 的 off 处读取，不拷贝也不分配对象，供恢复时扫描日志使用
+    public static short parseShort(byte[] buf, int off) {
+        return (short)(((buf[off] & 0xff) << 8) | (buf[off+1] & 0xff));
+    }
+
+    public static int parseInt(byte[] buf, int off) {
+        return ((buf[off] & 0xff) << 24) | ((buf[off+1] & 0xff) << 16) | ((buf[off+2] & 0xff) << 8) | (buf[off+3] & 0xff);
+    }
+
+    public static long parseLong(byte[] buf, int off) {
+        return ((long)parseInt(buf, off) << 32) | (parseInt(buf, off+4) & 0xffffffffL);
+    }
+
     public static byte[] long2Byte(long value) {
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
@@ -1,26 +1,33 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.Arrays;
-
 import com.google.common.primitives.Bytes;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Parser;
 
 /**
  * VM向上层抽象出entry，用于记录数据版本链
  * entry结构：
- * [XMIN] [XMAX] [data]
- * 8byte  8byte
- * XMIN：
- * XMAX：
+ * [XMIN] [XMAX] [NEXT] [data]
+ * 8byte  8byte  8byte
+ * XMIN：创建该版本的事务，最高位为 1 表示带有 NEXT 字段；旧格式的 entry 没有 NEXT 字段，最高位为 0
+ * XMAX：删除（或更新）该版本的事务
+ * NEXT：被更新之后，新版本的 UID，0 表示没有新版本
+ *
+ * 版本链从索引指向的最旧版本开始，沿 NEXT 指向越来越新的版本，读取时沿着版本链找到对事务可见的那个版本，
+ * 只更新非索引字段时，新版本挂在版本链上，索引不需要为它插入新的条目。
  */
 public class Entry {
 
+    private static final long CHAIN_FLAG = 1L << 63;
+
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN+8;
-    private static final int OF_DATA = OF_XMAX+8;
+    private static final int OF_NEXT = OF_XMAX+8;
+    private static final int OF_DATA = OF_NEXT+8;
+    private static final int OF_DATA_NO_CHAIN = OF_XMAX+8;     // 旧格式的 data 偏移
 
     private long uid;           // 版本id
     private DataItem dataItem;  // 数据项
@@ -34,22 +41,26 @@ public class Entry {
         return entry;
     }
 
-    // 读取一个 DataItem 打包成 entry
+    // 读取一个 DataItem 打包成 entry，DataItem 无效（被撤销或者被垃圾回收）时返回 null
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem di = ((VersionManagerImpl)vm).dm.read(uid);
+        if(di == null) {
+            return null;
+        }
         return newEntry(vm, di, uid);
     }
 
     /**
-     * 将事务id和数据记录打包成一个 entry格式
+     * 将事务id和数据记录打包成一个 entry格式，新的 entry 总是带有 NEXT 字段
      * @param xid 事务id
      * @param data 记录数据
      * @return
      */
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
-        byte[] xmin = Parser.long2Byte(xid);
+        byte[] xmin = Parser.long2Byte(xid | CHAIN_FLAG);
         byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] next = new byte[8];
+        return Bytes.concat(xmin, xmax, next, data);
     }
 
     public void release() {
@@ -60,13 +71,18 @@ public class Entry {
         dataItem.release();
     }
 
+    private static boolean chained(SubArray sa) {
+        return (Parser.parseLong(sa.raw, sa.start+OF_XMIN) & CHAIN_FLAG) != 0;
+    }
+
     // 以拷贝的形式返回内容
     public byte[] data() {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            byte[] data = new byte[sa.end - sa.start - OF_DATA];
-            System.arraycopy(sa.raw, sa.start+OF_DATA, data, 0, data.length);
+            int off = chained(sa) ? OF_DATA : OF_DATA_NO_CHAIN;
+            byte[] data = new byte[sa.end - sa.start - off];
+            System.arraycopy(sa.raw, sa.start+off, data, 0, data.length);
             return data;
         } finally {
             dataItem.rUnLock();
@@ -77,7 +93,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            return Parser.parseLong(sa.raw, sa.start+OF_XMIN) & ~CHAIN_FLAG;
         } finally {
             dataItem.rUnLock();
         }
@@ -87,7 +103,31 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.parseLong(sa.raw, sa.start+OF_XMAX);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    // 是否带有 NEXT 字段，旧格式的 entry 不能挂新版本
+    public boolean isChained() {
+        dataItem.rLock();
+        try {
+            return chained(dataItem.data());
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    // 新版本的 UID，没有新版本（或者是旧格式的 entry）时返回0
+    public long getNext() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            if(!chained(sa)) {
+                return 0;
+            }
+            return Parser.parseLong(sa.raw, sa.start+OF_NEXT);
         } finally {
             dataItem.rUnLock();
         }
@@ -103,6 +143,67 @@ public class Entry {
         }
     }
 
+    /**
+     * 更新：设置 XMAX 并把新版本挂到 NEXT 上，只产生一条日志，回滚时两者一起恢复
+     * 只能用于带有 NEXT 字段的 entry
+     * @return 原来的 NEXT，不为0时是被回滚的事务留下的版本，调用者把它们接到新版本之后
+     */
+    public long setXmaxAndNext(long xid, long next) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            long old = Parser.parseLong(sa.raw, sa.start+OF_NEXT);
+            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
+            return old;
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
+    /**
+     * 更新：把旧版本上被回滚的事务留下的版本接到新版本之后，留在版本链上等待垃圾回收
+     */
+    public void setAbortedNext(long xid, long next) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
+    /**
+     * 垃圾回收：让链头跳过已经回收的版本，直接指向 next，由超级事务修改
+     */
+    public void setNext(long next) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
+    /**
+     * 垃圾回收：XMAX 仍然是 xmax（已经回滚的事务，或者0）时，清除 XMAX 和 NEXT，由超级事务修改
+     * @return XMAX 已经被其他事务修改过时返回 false
+     */
+    public boolean clearAbortedUpdate(long xmax) {
+        dataItem.before();
+        SubArray sa = dataItem.data();
+        if(Parser.parseLong(sa.raw, sa.start+OF_XMAX) != xmax) {
+            dataItem.unBefore();
+            return false;
+        }
+        System.arraycopy(Parser.long2Byte(0), 0, sa.raw, sa.start+OF_XMAX, 8);
+        System.arraycopy(Parser.long2Byte(0), 0, sa.raw, sa.start+OF_NEXT, 8);
+        dataItem.after(TransactionManagerImpl.SUPER_XID);
+        return true;
+    }
+
     public long getUid() {
         return uid;
     }
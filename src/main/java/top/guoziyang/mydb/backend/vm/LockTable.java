@@ -1,190 +1,456 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import top.guoziyang.mydb.backend.common.LongLongMap;
 import top.guoziyang.mydb.common.Error;
 
 /**
  * 表锁：
  * 维护了一个依赖等待图，以进行死锁检测
+ *
+ * 按 UID 分成 STRIPES 段，每段一把锁，保护这一段 UID 的持有者和等待队列，
+ * 不冲突的加锁和释放只锁住 UID 所在的段，不同段之间互不阻塞。
+ * 排他持有者保存在 LongLongMap 中（UID -> XID）；有共享持有者或者等待者的 UID 才有一个 Head。
+ *
+ * 锁有共享（SHARED）和排他（EXCLUSIVE）两种模式，排他包含共享，唯一的共享持有者可以直接升级为排他。
+ * 等待者按先来先到排队，新的请求不越过队列中的等待者（重入和升级除外），需要等待的升级请求排在队头。
+ * 需要等待时 add 返回一个 CompletableFuture，资源交给它时由释放资源的线程完成，
+ * 等待者在 await 中 park，不占用锁，也不会固定虚拟线程；超时或者被中断时从队列中撤销。
+ *
+ * 死锁检测是增量的：新加入等待时，从这个事务出发沿着 等待者 -> 阻塞它的持有者和排在它前面的不兼容的等待者 深度优先追下去，
+ * 回到自己就是死锁，代价是从它出发能到达的等待图的大小，而不是遍历所有事务。
+ * 加入等待和死锁检测在 graphLock 内串行进行，所以任何一个环在最后一条边加入时一定会被检测到；
+ * graphLock 只在需要等待时获取，加锁顺序总是 graphLock -> 段锁。
  */
 public class LockTable {
-    
-    private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
-    private Map<Long, Long> u2x;        // UID被某个XID持有
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
-    private Map<Long, Long> waitU;      // XID正在等待的UID
-    private Lock lock;
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
+
+    public static final int SHARED = 0;
+    public static final int EXCLUSIVE = 1;
+
+    private static final int STRIPES = 64;
+    private static final long[] NO_EDGES = new long[0];
+
+    private static class Waiter {
+        final long xid;
+        final int mode;
+        final CompletableFuture<Void> granted = new CompletableFuture<>();
+
+        Waiter(long xid, int mode) {
+            this.xid = xid;
+            this.mode = mode;
+        }
+    }
+
+    // 有共享持有者或者等待者的 UID
+    private static class Head {
+        long[] shared = new long[2];
+        int sharedCount;
+        final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+
+        boolean isShared(long xid) {
+            for(int i = 0; i < sharedCount; i ++) {
+                if(shared[i] == xid) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void addShared(long xid) {
+            if(sharedCount == shared.length) {
+                shared = Arrays.copyOf(shared, sharedCount << 1);
+            }
+            shared[sharedCount ++] = xid;
+        }
+
+        void removeShared(long xid) {
+            for(int i = 0; i < sharedCount; i ++) {
+                if(shared[i] == xid) {
+                    shared[i] = shared[-- sharedCount];
+                    return;
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return sharedCount == 0 && queue.isEmpty();
+        }
+    }
+
+    private static class Stripe {
+        final Lock lock = new ReentrantLock();
+        final LongLongMap owner = new LongLongMap();                // UID被某个XID排他持有
+        final Map<Long, Head> heads = new HashMap<>();
+    }
+
+    // 某个XID已经获得的资源的UID列表，事务自己的线程和把锁转交给它的线程都会修改
+    private static class Held {
+        private long[] uids = new long[4];
+        private int size;
+
+        synchronized void add(long uid) {
+            if(size == uids.length) {
+                uids = Arrays.copyOf(uids, size << 1);
+            }
+            uids[size ++] = uid;
+        }
+
+        synchronized long[] toArray() {
+            return Arrays.copyOf(uids, size);
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final Map<Long, Held> x2u;
+    private final Lock graphLock;
+    private final LongLongMap waitU;                    // XID正在等待的UID，由 graphLock 保护
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+        stripes = new Stripe[STRIPES];
+        for(int i = 0; i < STRIPES; i ++) {
+            stripes[i] = new Stripe();
+        }
+        x2u = new ConcurrentHashMap<>();
+        graphLock = new ReentrantLock();
+        waitU = new LongLongMap();
+    }
+
+    private Stripe stripe(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return stripes[(int)(h >>> 58)];
+    }
+
+    public CompletableFuture<Void> add(long xid, long uid) throws Exception {
+        return add(xid, uid, EXCLUSIVE);
     }
 
     /**
      * 向依赖等待图中添加一个等待记录
-     * 事务xid 阻塞等待 数据项uid，如果会造成死锁则抛出异常
+     * 事务xid 以 mode 模式请求 数据项uid，需要等待时如果会造成死锁则抛出异常
      * @param xid 事务id
      * @param uid 数据项key
-     * @return 不需要等待则返回null，否则返回锁对象
+     * @param mode SHARED 或 EXCLUSIVE
+     * @return 不需要等待则返回null，否则返回获得资源时完成的 future，交给 await 等待
      * @throws Exception
      */
-    public Lock add(long xid, long uid) throws Exception {
-        lock.lock();
+    public CompletableFuture<Void> add(long xid, long uid, int mode) throws Exception {
+        // 快速路径：只锁住 uid 所在的段
+        Stripe s = stripe(uid);
+        s.lock.lock();
         try {
-            // dataitem数据已经被事务xid获取到，不需要等待，返回null
-            if(isInList(x2u, xid, uid)) {
+            if(tryAcquire(s, uid, xid, mode)) {
                 return null;
             }
-            if(!u2x.containsKey(uid)) {
-                u2x.put(uid, xid);
-                putIntoList(x2u, xid, uid);
-                return null;
+        } finally {
+            s.lock.unlock();
+        }
+
+        graphLock.lock();
+        try {
+            Waiter w = new Waiter(xid, mode);
+            s.lock.lock();
+            try {
+                // 释放段锁之后，持有者可能已经释放了 uid
+                if(tryAcquire(s, uid, xid, mode)) {
+                    return null;
+                }
+                Head h = s.heads.computeIfAbsent(uid, k -> new Head());
+                if(h.isShared(xid)) {
+                    // 升级排在队头，否则排在它后面的事务等待它持有的共享锁，它又等待它们
+                    h.queue.addFirst(w);
+                } else {
+                    h.queue.addLast(w);
+                }
+            } finally {
+                s.lock.unlock();
             }
             waitU.put(xid, uid);
-            putIntoList(wait, xid, uid);
-            if(hasDeadLock()) {
-                waitU.remove(xid);
-                removeFromList(wait, uid, xid);
+            if(hasDeadLock(xid)) {
+                waitU.remove(xid, 0);
+                if(dequeue(s, uid, xid) == null) {
+                    // 检测之后已经拿到了资源，并没有死锁
+                    return w.granted;
+                }
                 throw Error.DeadlockException;
             }
-            Lock l = new ReentrantLock();
-            l.lock();
-            waitLock.put(xid, l);
-            return l;
-
+            return w.granted;
         } finally {
-            lock.unlock();
+            graphLock.unlock();
         }
     }
 
     /**
-     *
-     * @param xid
+     * 等待 add 返回的 future，超时或者被中断时撤销等待
+     * @param timeoutMillis 最长等待时间，不大于0时一直等待
+     * @throws Exception 超时抛出 LockTimeoutException；事务在等待期间被 remove 时抛出 LockCancelledException
      */
-    public void remove(long xid) {
-        lock.lock();
+    public void await(long xid, long uid, CompletableFuture<Void> granted, long timeoutMillis) throws Exception {
         try {
-            List<Long> l = x2u.get(xid);
-            if(l != null) {
-                while(l.size() > 0) {
-                    Long uid = l.remove(0);
-                    selectNewXID(uid);
-                }
+            if(timeoutMillis > 0) {
+                granted.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } else {
+                granted.get();
             }
-            waitU.remove(xid);
-            x2u.remove(xid);
-            waitLock.remove(xid);
-
+        } catch(TimeoutException e) {
+            // 撤销之前资源可能刚好交给了它
+            if(cancel(xid, uid)) {
+                throw Error.LockTimeoutException;
+            }
+        } catch(InterruptedException e) {
+            cancel(xid, uid);
+            throw e;
+        } catch(ExecutionException e) {
+            throw (Exception)e.getCause();
         } finally {
-            lock.unlock();
+            graphLock.lock();
+            try {
+                if(waitU.get(xid, 0) == uid) {
+                    waitU.remove(xid, 0);
+                }
+            } finally {
+                graphLock.unlock();
+            }
         }
     }
 
-    // 从等待队列中选择一个xid来占用uid
-    private void selectNewXID(long uid) {
-        u2x.remove(uid);
-        List<Long> l = wait.get(uid);
-        if(l == null) return;
-        assert l.size() > 0;
+    // 撤销 xid 对 uid 的等待，已经获得资源时返回 false
+    private boolean cancel(long xid, long uid) {
+        return dequeue(stripe(uid), uid, xid) != null;
+    }
 
-        while(l.size() > 0) {
-            long xid = l.remove(0);
-            if(!waitLock.containsKey(xid)) {
-                continue;
-            } else {
-                u2x.put(uid, xid);
-                Lock lo = waitLock.remove(xid);
-                waitU.remove(xid);
-                lo.unlock();
-                break;
-            }
+    // 需要持有段锁，可以获得时获得 uid，不越过排队的等待者，除非已经持有 uid（重入或升级）
+    private boolean tryAcquire(Stripe s, long uid, long xid, int mode) {
+        Head h = s.heads.get(uid);
+        if(!canGrant(s, h, uid, xid, mode)) {
+            return false;
+        }
+        if(h != null && !h.queue.isEmpty() && s.owner.get(uid, -1) != xid && !h.isShared(xid)) {
+            return false;
         }
+        take(s, h, uid, xid, mode);
+        return true;
+    }
 
-        if(l.size() == 0) wait.remove(uid);
+    // 只考虑持有者，xid 能否以 mode 持有 uid
+    private boolean canGrant(Stripe s, Head h, long uid, long xid, int mode) {
+        long x = s.owner.get(uid, -1);
+        if(x != -1) {
+            return x == xid;
+        }
+        if(mode == SHARED || h == null) {
+            return true;
+        }
+        return h.sharedCount == 0 || (h.sharedCount == 1 && h.shared[0] == xid);
     }
 
-    // 死锁检测
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
-        stamp = 1;
-        for(long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid);
-            if(s != null && s > 0) {
-                continue;
+    private void take(Stripe s, Head h, long uid, long xid, int mode) {
+        if(s.owner.get(uid, -1) == xid) {
+            return;
+        }
+        if(mode == SHARED) {
+            if(h == null) {
+                h = new Head();
+                s.heads.put(uid, h);
             }
-            stamp++;
-            if(dfs(xid)) {
-                return true;
+            if(!h.isShared(xid)) {
+                h.addShared(xid);
+                held(xid).add(uid);
             }
+            return;
         }
-        return false;
+        if(h != null && h.isShared(xid)) {
+            h.removeShared(xid);
+            if(h.isEmpty()) {
+                s.heads.remove(uid);
+            }
+        } else {
+            held(xid).add(uid);
+        }
+        s.owner.put(uid, xid);
     }
 
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
-        if(stp != null && stp == stamp) {
-            return true;
+    private Held held(long xid) {
+        return x2u.computeIfAbsent(xid, k -> new Held());
+    }
+
+    /**
+     * 释放事务持有的所有资源，每个资源按顺序交给等待队列中可以获得它的事务
+     * 事务正在等待时撤销等待，等待的线程抛出 LockCancelledException
+     * @param xid
+     */
+    public void remove(long xid) {
+        long waiting;
+        graphLock.lock();
+        try {
+            waiting = waitU.remove(xid, 0);
+        } finally {
+            graphLock.unlock();
         }
-        if(stp != null && stp < stamp) {
-            return false;
+        if(waiting != 0) {
+            Waiter w = dequeue(stripe(waiting), waiting, xid);
+            if(w != null) {
+                w.granted.completeExceptionally(Error.LockCancelledException);
+            }
         }
-        xidStamp.put(xid, stamp);
 
-        Long uid = waitU.get(xid);
-        if(uid == null) return false;
-        Long x = u2x.get(uid);
-        assert x != null;
-        return dfs(x);
+        Held held = x2u.remove(xid);
+        if(held == null) {
+            return;
+        }
+        for(long uid : held.toArray()) {
+            release(uid, xid);
+        }
+    }
+
+    private void release(long uid, long xid) {
+        Stripe s = stripe(uid);
+        s.lock.lock();
+        try {
+            if(s.owner.get(uid, -1) == xid) {
+                s.owner.remove(uid, 0);
+            } else {
+                Head h = s.heads.get(uid);
+                if(h == null) {
+                    return;
+                }
+                h.removeShared(xid);
+            }
+            grant(s, uid);
+        } finally {
+            s.lock.unlock();
+        }
     }
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) return;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                i.remove();
+    // 需要持有段锁，从队头开始把 uid 交给可以获得它的等待者
+    private void grant(Stripe s, long uid) {
+        Head h = s.heads.get(uid);
+        if(h == null) {
+            return;
+        }
+        while(!h.queue.isEmpty()) {
+            Waiter w = h.queue.peek();
+            if(!canGrant(s, h, uid, w.xid, w.mode)) {
                 break;
             }
+            h.queue.poll();
+            take(s, h, uid, w.xid, w.mode);
+            w.granted.complete(null);
         }
-        if(l.size() == 0) {
-            listMap.remove(uid0);
+        if(h.isEmpty()) {
+            s.heads.remove(uid);
         }
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if(!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    // 从 uid 的等待队列中移除 xid，排在它后面的等待者可能因此可以获得资源；xid 不在队列中时返回 null
+    private Waiter dequeue(Stripe s, long uid, long xid) {
+        s.lock.lock();
+        try {
+            Head h = s.heads.get(uid);
+            if(h == null) {
+                return null;
+            }
+            Iterator<Waiter> it = h.queue.iterator();
+            while(it.hasNext()) {
+                Waiter w = it.next();
+                if(w.xid == xid) {
+                    it.remove();
+                    grant(s, uid);
+                    return w;
+                }
+            }
+            return null;
+        } finally {
+            s.lock.unlock();
         }
-        listMap.get(uid0).add(0, uid1);
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                return true;
+    /**
+     * 死锁检测：从刚加入等待的 xid 出发沿等待图深度优先搜索，需要持有 graphLock
+     * 事务拿到等待的 uid 之后，它在 waitU 中的记录要等它自己的线程清除，这期间它已经不在等待队列中，没有出边
+     */
+    private boolean hasDeadLock(long xid) {
+        LongLongMap visited = new LongLongMap();
+        long[] stack = new long[16];
+        int top = 0;
+        stack[top ++] = xid;
+        visited.put(xid, 1);
+        while(top > 0) {
+            long x = stack[-- top];
+            for(long y : waitsFor(x)) {
+                if(y == xid) {
+                    return true;
+                }
+                if(!visited.containsKey(y)) {
+                    visited.put(y, 1);
+                    if(top == stack.length) {
+                        stack = Arrays.copyOf(stack, top << 1);
+                    }
+                    stack[top ++] = y;
+                }
             }
         }
         return false;
     }
 
+    // x 正在等待的事务：阻塞它的持有者，以及排在它前面、和它不兼容的等待者
+    private long[] waitsFor(long x) {
+        long uid = waitU.get(x, 0);
+        if(uid == 0) {
+            return NO_EDGES;
+        }
+        Stripe s = stripe(uid);
+        s.lock.lock();
+        try {
+            Head h = s.heads.get(uid);
+            if(h == null) {
+                return NO_EDGES;
+            }
+            Waiter self = null;
+            for(Waiter w : h.queue) {
+                if(w.xid == x) {
+                    self = w;
+                    break;
+                }
+            }
+            if(self == null) {
+                return NO_EDGES;
+            }
+            long[] edges = new long[h.sharedCount + h.queue.size() + 1];
+            int n = 0;
+            long owner = s.owner.get(uid, -1);
+            if(owner != -1 && owner != x) {
+                edges[n ++] = owner;
+            }
+            if(self.mode == EXCLUSIVE) {
+                for(int i = 0; i < h.sharedCount; i ++) {
+                    if(h.shared[i] != x) {
+                        edges[n ++] = h.shared[i];
+                    }
+                }
+            }
+            for(Waiter w : h.queue) {
+                if(w == self) {
+                    break;
+                }
+                if(w.mode == EXCLUSIVE || self.mode == EXCLUSIVE) {
+                    edges[n ++] = w.xid;
+                }
+            }
+            return Arrays.copyOf(edges, n);
+        } finally {
+            s.lock.unlock();
+        }
+    }
 }
@@ -1,37 +1,60 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Collection;
 
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 
 // vm对其他模块提供的一个抽象的事务数据结构
 public class Transaction {
+    private static final long[] EMPTY = new long[0];
+
     public long xid;                    // 事务id
     public int level;                   // 事务隔离等级，0：读已提交；1：可重复读
-    public Map<Long, Boolean> snapshot; // 活跃事务的快照，用于实现可重复读
-    public Exception err;               //
-    public boolean autoAborted;         // 自动回滚标记
+    public long[] snapshot;             // 活跃事务的快照，有序的事务id数组，用于实现可重复读
+    public volatile Exception err;      //
+    public volatile boolean autoAborted;    // 自动回滚标记
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    /**
+     * @param active 开启事务时的活跃事务，可以包含 xid 之后开启的事务，快照中不会记录它们
+     */
+    public static Transaction newTransaction(long xid, int level, Collection<Transaction> active) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
         // 只有可重复读才需要 活跃事务列表
         if(level != 0) {
-            t.snapshot = new HashMap<>();
-            for(Long x : active.keySet()) {
-                t.snapshot.put(x, true);
+            long[] xids = new long[active.size()];
+            int n = 0;
+            for(Transaction a : active) {
+                if(a.xid != TransactionManagerImpl.SUPER_XID && a.xid < xid) {
+                    if(n == xids.length) {
+                        xids = Arrays.copyOf(xids, n * 2 + 1);
+                    }
+                    xids[n ++] = a.xid;
+                }
             }
+            xids = n == 0 ? EMPTY : Arrays.copyOf(xids, n);
+            Arrays.sort(xids);
+            t.snapshot = xids;
         }
         return t;
     }
 
-    // 判断xid是否是活跃事务
+    // 判断xid是否是活跃事务，快照之外的范围直接返回，否则二分查找
     public boolean isInSnapshot(long xid) {
         if(xid == TransactionManagerImpl.SUPER_XID) {
             return false;
         }
-        return snapshot.containsKey(xid);
+        long[] s = snapshot;
+        if(s.length == 0 || xid < s[0] || xid > s[s.length - 1]) {
+            return false;
+        }
+        return Arrays.binarySearch(s, xid) >= 0;
+    }
+
+    // 快照中最小的事务id，没有时返回 Long.MAX_VALUE
+    long snapshotMin() {
+        return snapshot == null || snapshot.length == 0 ? Long.MAX_VALUE : snapshot[0];
     }
 }
@@ -8,12 +8,31 @@ public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;       // 保证可见性的条件下，读取数据DataItem
     long insert(long xid, byte[] data) throws Exception;    // 通过事务xid插入数据
     boolean delete(long xid, long uid) throws Exception;    // 通过事务xid删除数据
+    long update(long xid, long uid, byte[] data) throws Exception;  // 在版本链上挂新版本，返回新版本UID，0表示需要删除 + 插入
 
     // 事务管理
     long begin(int level);                                  // 事务开启隔离级别
     void commit(long xid) throws Exception;                 // 提交事务
     void abort(long xid);                                   // 撤销事务
 
+    // 以事务句柄为参数的版本：调用者保存 beginTransaction 返回的句柄，之后的操作不再按 xid 查找事务
+    Transaction beginTransaction(int level);                // 开启事务，返回事务句柄
+    byte[] read(Transaction t, long uid) throws Exception;
+    long insert(Transaction t, byte[] data) throws Exception;
+    boolean delete(Transaction t, long uid) throws Exception;
+    long update(Transaction t, long uid, byte[] data) throws Exception;
+    void commit(Transaction t) throws Exception;
+    void abort(Transaction t);
+
+    // 垃圾回收
+    long horizon();                                         // 所有活跃事务以及它们快照中最小的事务ID，没有活跃事务时为下一个事务ID
+    long nextXid();                                         // 之后开启的事务ID都不小于它
+    byte[] prune(long uid, long horizon) throws Exception;  // 清理版本链中死亡的版本，整条链都已经死亡时返回链头的数据
+    void free(long uid) throws Exception;                   // 回收整条版本链
+    void freeze();                                          // 把冻结点之前的事务状态交给 TM 冻结
+
+    void setLockTimeout(long millis);                       // 删除和更新等待行锁的最长时间，不大于0时一直等待
+
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
     }
@@ -1,7 +1,10 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -12,22 +15,42 @@ import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.common.Error;
 
+/**
+ * activeTransaction 是一个 ConcurrentHashMap，read / insert / delete 查找事务不加锁；
+ * lock 只在开启事务（分配事务ID、生成快照、登记）和计算冻结点时使用，保证快照包含所有更早开启、还没有结束的事务。
+ * 可重复读的快照是有序的 long[]，判断是否在快照中用二分查找。
+ *
+ * 后台垃圾回收时调用 freeze()，计算冻结点（所有活跃事务和它们快照中最小的事务ID），交给 TM 冻结之前的事务状态，提交本身不做冻结。
+ * 事务先在 TM 中提交或回滚，再从 activeTransaction 中移除，保证不在 activeTransaction 中的事务在 TM 中都已经结束。
+ * 同一个冻结点也是垃圾回收的界限（见 prune）：删除早于它并且已经提交的版本对所有事务都不可见。
+ * 删除和更新等待行锁最多 lockTimeout 毫秒，超时的事务和死锁一样被自动回滚。
+ */
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
 
+    public static final long DEFAULT_LOCK_TIMEOUT = 50 * 1000;     // 默认最多等待行锁 50s
+
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransaction;
     Lock lock;
     LockTable lt;
+    private long lastXid;                                // 最近开启的事务ID，由 lock 保护
+    private volatile long lockTimeout;                  // 等待行锁的最长时间（ms），不大于0时一直等待
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new ConcurrentHashMap<>();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        this.lockTimeout = DEFAULT_LOCK_TIMEOUT;
+    }
+
+    @Override
+    public void setLockTimeout(long millis) {
+        this.lockTimeout = millis;
     }
 
     /**
@@ -39,30 +62,73 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        return read(activeTransaction.get(xid), uid);
+    }
 
+    @Override
+    public byte[] read(Transaction t, long uid) throws Exception {
         if(t.err != null) {
             throw t.err;
         }
 
+        Entry entry = visibleVersion(t, uid);
+        if(entry == null) {
+            return null;
+        }
+        try {
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 从版本链的头 uid 开始，沿 NEXT 找到第一个对事务 t 可见的版本
+     * 被回滚的更新不会被走到：回滚后旧版本的 XMAX 不是已提交事务，旧版本本身可见；旧版本不可见时更新的版本也不可见
+     * @return 可见的版本，调用者需要 release；没有可见版本时返回 null
+     */
+    private Entry visibleVersion(Transaction t, long uid) throws Exception {
+        long head = uid;
+        long prev = 0;
+        while(uid != 0) {
+            Entry entry = null;
+            try {
+                entry = super.get(uid);
+            } catch(Exception e) {
+                if(e != Error.NullEntryException) {
+                    throw e;
+                }
+                // 读到 prev 的 NEXT 之后这个版本被垃圾回收了，prev 已经不再指向它时从链头重新查找
+                if(prev != 0 && nextOf(prev) != uid) {
+                    uid = head;
+                    prev = 0;
+                    continue;
+                }
+                return null;
+            }
+            if(Visibility.isVisible(tm, t, entry)) {
+                return entry;
+            }
+            prev = uid;
+            uid = entry.getNext();
+            entry.release();
+        }
+        return null;
+    }
+
+    private long nextOf(long uid) throws Exception {
         Entry entry = null;
         try {
             entry = super.get(uid);
         } catch(Exception e) {
             if(e == Error.NullEntryException) {
-                return null;
+                return 0;
             } else {
                 throw e;
             }
         }
         try {
-            if(Visibility.isVisible(tm, t, entry)) {
-                return entry.data();
-            } else {
-                return null;
-            }
+            return entry.getNext();
         } finally {
             entry.release();
         }
@@ -77,21 +143,22 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        return insert(activeTransaction.get(xid), data);
+    }
 
+    @Override
+    public long insert(Transaction t, byte[] data) throws Exception {
         if(t.err != null) {
             throw t.err;
         }
 
         // 包裹成entry交给dm处理
-        byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid, raw);
+        byte[] raw = Entry.wrapEntryRaw(t.xid, data);
+        return dm.insert(t.xid, raw);
     }
 
     /**
-     * 删除数据版本链中的一个版本，设置XMAX即可
+     * 删除数据版本链中对事务可见的版本，设置XMAX即可
      * 实际上主要是前置的三件事：一是可见性判断，二是获取资源的锁，三是版本跳跃判断。设置了XMAX则这个
      * @param xid
      * @param uid
@@ -100,58 +167,121 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        return delete(activeTransaction.get(xid), uid);
+    }
 
+    @Override
+    public boolean delete(Transaction t, long uid) throws Exception {
         if(t.err != null) {
             throw t.err;
         }
-        Entry entry = null;
+        Entry entry = lockVisibleVersion(t, uid);
+        if(entry == null) {
+            return false;
+        }
         try {
-            entry = super.get(uid);
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
-                return false;
-            } else {
-                throw e;
-            }
+            entry.setXmax(t.xid);
+            return true;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 更新数据：在版本链上挂一个新版本，索引仍然指向版本链的头 uid，不需要为新版本插入索引
+     * 前置的检查和删除一样，最后插入新版本，并在同一条日志里设置旧版本的 XMAX 和 NEXT
+     * 旧版本之前被一个已经回滚的事务更新过时，那些版本接到新版本之后，不会因为 NEXT 被覆盖而无法回收
+     * @return 新版本的 UID；没有可见版本，或者可见版本是没有 NEXT 字段的旧格式时返回0，调用者改用删除 + 插入
+     */
+    @Override
+    public long update(long xid, long uid, byte[] data) throws Exception {
+        return update(activeTransaction.get(xid), uid, data);
+    }
+
+    @Override
+    public long update(Transaction t, long uid, byte[] data) throws Exception {
+        if(t.err != null) {
+            throw t.err;
+        }
+        Entry entry = lockVisibleVersion(t, uid);
+        if(entry == null) {
+            return 0;
         }
         try {
-            if(!Visibility.isVisible(tm, t, entry)) {
-                return false;
+            if(!entry.isChained()) {
+                return 0;
             }
-            Lock l = null;
+            long next = dm.insert(t.xid, Entry.wrapEntryRaw(t.xid, data));
+            long aborted = entry.setXmaxAndNext(t.xid, next);
+            if(aborted != 0) {
+                // 可见版本原来的 NEXT 只能是被回滚的更新留下的版本，接到新版本之后，由垃圾回收释放
+                Entry created = super.get(next);
+                try {
+                    created.setAbortedNext(t.xid, aborted);
+                } finally {
+                    created.release();
+                }
+            }
+            return next;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 删除和更新的前置检查：一是可见性判断，二是获取版本链的锁（锁在头 uid 上），三是版本跳跃判断
+     * 拿到锁之后重新沿版本链查找可见版本，等待期间其他事务可能已经挂上了新版本
+     * @return 可以修改的版本，调用者需要 release；没有可见版本或已经被本事务修改过时返回 null
+     */
+    private Entry lockVisibleVersion(Transaction t, long uid) throws Exception {
+        long xid = t.xid;
+        Entry entry = visibleVersion(t, uid);
+        if(entry == null) {
+            return null;
+        }
+        entry.release();
+
+        CompletableFuture<Void> granted = null;
+        try {
+            granted = lt.add(xid, uid);                 // 添加到死锁检测
+        } catch(Exception e) {
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(t, true);           // 自动回滚
+            t.autoAborted = true;
+            throw t.err;
+        }
+        if(granted != null) {
             try {
-                l = lt.add(xid, uid);                       // 添加到死锁检测
+                lt.await(xid, uid, granted, lockTimeout);
             } catch(Exception e) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);         // 自动回滚
+                t.err = e == Error.LockTimeoutException ? e : Error.ConcurrentUpdateException;
+                internAbort(t, true);
                 t.autoAborted = true;
                 throw t.err;
             }
-            if(l != null) {
-                l.lock();
-                l.unlock();
-            }
+        }
 
+        entry = visibleVersion(t, uid);
+        if(entry == null) {
+            return null;
+        }
+        try {
             if(entry.getXmax() == xid) {
-                return false;
+                entry.release();
+                return null;
             }
 
             if(Visibility.isVersionSkip(tm, t, entry)) {
                 t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
+                internAbort(t, true);
                 t.autoAborted = true;
                 throw t.err;
             }
-
-            entry.setXmax(xid);
-            return true;
-
-        } finally {
+        } catch(Exception e) {
             entry.release();
+            throw e;
         }
+        return entry;
     }
 
     /**
@@ -161,15 +291,21 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long begin(int level) {
+        return beginTransaction(level).xid;
+    }
+
+    @Override
+    public Transaction beginTransaction(int level) {
         lock.lock();
         try {
             // 开启一个新事务
             long xid = tm.begin();
             // 初始化事务的结构
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            Transaction t = Transaction.newTransaction(xid, level, activeTransaction.values());
             // 将其存放在 activeTransaction 中，用于检查和快照使用
             activeTransaction.put(xid, t);
-            return xid;
+            lastXid = xid;
+            return t;
         } finally {
             lock.unlock();
         }
@@ -182,9 +318,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         try {
             if(t.err != null) {
@@ -195,38 +329,166 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             System.out.println(activeTransaction.keySet());
             Panic.panic(n);
         }
+        commit(t);
+    }
 
-        lock.lock();
-        activeTransaction.remove(xid);
-        lock.unlock();
+    @Override
+    public void commit(Transaction t) throws Exception {
+        if(t.err != null) {
+            throw t.err;
+        }
+        long xid = t.xid;
 
-        lt.remove(xid);
+        // 先在 TM 中提交，再移除活跃事务和释放锁，被唤醒的事务能看到提交后的状态
         tm.commit(xid);
+        activeTransaction.remove(xid);
+        lt.remove(xid);
+    }
+
+    @Override
+    public long horizon() {
+        lock.lock();
+        try {
+            return freezeHorizon();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void freeze() {
+        tm.freeze(horizon());
+    }
+
+    @Override
+    public long nextXid() {
+        lock.lock();
+        try {
+            return lastXid + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 清理一条版本链：
+     *      整条链都已经死亡时不做修改，返回链头的数据，调用者删除索引条目之后调用 free 回收整条链；
+     *      链头之后连续死亡的版本：链头的 NEXT 直接指向第一个存活的版本，回收中间的版本；
+     *      最新的存活版本之后还有版本（它被一个已经回滚的事务更新过，或者更新时接上了回滚的事务留下的版本）：
+     *      之后的版本都是回滚的事务创建的，清除它的 XMAX 和 NEXT，回收这些版本。
+     * 死亡的版本对任何事务都不可见，不会有事务修改它们；读取者沿 NEXT 读到被回收的版本时会从链头重新查找
+     * @param uid 版本链的头
+     * @param horizon 所有活跃事务以及它们快照中最小的事务ID
+     * @return 整条链都已经死亡时返回链头的数据，否则返回 null
+     */
+    @Override
+    public byte[] prune(long uid, long horizon) throws Exception {
+        List<Entry> chain = new ArrayList<>();
+        try {
+            while(uid != 0) {
+                Entry entry = null;
+                try {
+                    entry = super.get(uid);
+                } catch(Exception e) {
+                    if(e == Error.NullEntryException) {
+                        break;
+                    } else {
+                        throw e;
+                    }
+                }
+                chain.add(entry);
+                uid = entry.getNext();
+            }
+            int first = -1, last = -1;
+            for(int i = 0; i < chain.size(); i ++) {
+                if(!Visibility.isDead(tm, chain.get(i), horizon)) {
+                    if(first == -1) {
+                        first = i;
+                    }
+                    last = i;
+                }
+            }
+            if(first == -1) {
+                return chain.isEmpty() ? null : chain.get(0).data();
+            }
+            if(first >= 2) {
+                chain.get(0).setNext(chain.get(first).getUid());
+                for(int i = 1; i < first; i ++) {
+                    dm.free(chain.get(i).getUid());
+                }
+            }
+            if(last < chain.size() - 1) {
+                Entry entry = chain.get(last);
+                long xmax = entry.getXmax();
+                if((xmax == 0 || tm.isAborted(xmax)) && entry.clearAbortedUpdate(xmax)) {
+                    for(int i = last + 1; i < chain.size(); i ++) {
+                        dm.free(chain.get(i).getUid());
+                    }
+                }
+            }
+            return null;
+        } finally {
+            for(Entry entry : chain) {
+                entry.release();
+            }
+        }
+    }
+
+    /**
+     * 回收整条版本链，调用者保证整条链都已经死亡，并且已经删除了指向链头的索引条目
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        List<Long> chain = new ArrayList<>();
+        while(uid != 0) {
+            chain.add(uid);
+            uid = nextOf(uid);
+        }
+        for(long u : chain) {
+            dm.free(u);
+        }
+    }
+
+    /**
+     * 冻结点：活跃事务以及它们快照中最小的事务ID，之前的事务都已经结束，也不会再被任何快照引用
+     * 需要持有 lock
+     */
+    private long freezeHorizon() {
+        long horizon = lastXid + 1;
+        for(Transaction t : activeTransaction.values()) {
+            if(t.xid == TransactionManagerImpl.SUPER_XID) {
+                continue;
+            }
+            horizon = Math.min(horizon, Math.min(t.xid, t.snapshotMin()));
+        }
+        return horizon;
     }
 
     // 手动回滚
     @Override
     public void abort(long xid) {
-        internAbort(xid, false);
+        internAbort(activeTransaction.get(xid), false);
+    }
+
+    @Override
+    public void abort(Transaction t) {
+        internAbort(t, false);
     }
 
     /**
      * 自动回滚
      *
-     * @param xid 事务id
+     * @param t 事务
      * @param autoAborted 是否自动回滚
      */
-    private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
+    private void internAbort(Transaction t, boolean autoAborted) {
+        if(!t.autoAborted) {
+            tm.abort(t.xid);
+            lt.remove(t.xid);
+        }
         if(!autoAborted) {
-            activeTransaction.remove(xid);
+            activeTransaction.remove(t.xid);
         }
-        lock.unlock();
-
-        if(t.autoAborted) return;
-        lt.remove(xid);
-        tm.abort(xid);
     }
 
     // 释放Entry缓存
@@ -26,6 +26,18 @@ public class Visibility {
         }
     }
 
+    /**
+     * 版本对所有活跃事务和之后开启的事务都不可见：创建它的事务已经回滚，或者删除它的事务已经提交并且早于 horizon
+     * @param horizon 所有活跃事务以及它们快照中最小的事务ID
+     */
+    public static boolean isDead(TransactionManager tm, Entry e, long horizon) {
+        if(tm.isAborted(e.getXmin())) {
+            return true;
+        }
+        long xmax = e.getXmax();
+        return xmax != 0 && xmax < horizon && tm.isCommitted(xmax);
+    }
+
     /**
      * 当前记录版本对事务的可见性
      */
@@ -20,6 +20,11 @@ public class Error {
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
+    public static final Exception LockTimeoutException = new RuntimeException("Lock wait timeout!");
+    public static final Exception LockCancelledException = new RuntimeException("Lock wait cancelled!");
+
+    // im
+    public static final Exception UnsortedBulkLoadException = new RuntimeException("Bulk load keys are not sorted!");
 
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
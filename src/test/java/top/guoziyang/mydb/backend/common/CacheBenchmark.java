@@ -0,0 +1,64 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * AbstractCache 的并发基准测试，不随单元测试运行，mvn test-compile 之后手动执行：
+ *      java -cp target/classes:target/test-classes:<依赖> top.guoziyang.mydb.backend.common.CacheBenchmark 64 20000 20 10
+ * 参数：key 的个数（默认 64）、每个线程的 get/release 次数（默认 20000）、
+ *      getForCache 模拟读取的耗时（微秒，默认 20）、releaseForCache 模拟写回的耗时（微秒，默认 10）
+ *
+ * 和 DataManagerImpl、VersionManagerImpl 一样不开启驻留模式，引用计数归零就驱逐，
+ * 1、8、32 个线程随机 get 一个 key 再 release，key 的个数很少时同一个 key 的并发缺失很常见，
+ * 统计每秒完成的 get/release 次数。读取和写回用 park 模拟 I/O，不占用 CPU。
+ */
+public class CacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        long loadNanos = (args.length > 2 ? Long.parseLong(args[2]) : 20) * 1000;
+        long writeNanos = (args.length > 3 ? Long.parseLong(args[3]) : 10) * 1000;
+
+        for(int threads : new int[] {1, 8, 32}) {
+            AbstractCache<Long> cache = new AbstractCache<Long>(0) {
+                @Override
+                protected Long getForCache(long key) throws Exception {
+                    LockSupport.parkNanos(loadNanos);
+                    return key;
+                }
+                @Override
+                protected void releaseForCache(Long obj) {
+                    LockSupport.parkNanos(writeNanos);
+                }
+            };
+            CountDownLatch cdl = new CountDownLatch(threads);
+            long start = System.nanoTime();
+            for(int i = 0; i < threads; i ++) {
+                new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    try {
+                        for(int j = 0; j < perThread; j ++) {
+                            long key = random.nextInt(keys);
+                            if(cache.get(key) != key) {
+                                throw new AssertionError("bad value " + key);
+                            }
+                            cache.release(key);
+                        }
+                    } catch(Exception e) {
+                        Panic.panic(e);
+                    }
+                    cdl.countDown();
+                }).start();
+            }
+            cdl.await();
+            long nanos = System.nanoTime() - start;
+            long ops = (long)threads * perThread;
+            System.out.printf("%d threads: %.0f ops/s%n", threads, ops * 1e9 / nanos);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package top.guoziyang.mydb.backend.common;
 import java.security.SecureRandom;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -46,4 +47,142 @@ public class CacheTest {
         }
         cdl.countDown();
     }
+
+    @Test
+    public void testConcurrentMissLoadsOnce() throws Exception {
+        AtomicInteger loads = new AtomicInteger(0);
+        AbstractCache<Long> c = new AbstractCache<Long>(0) {
+            @Override
+            protected Long getForCache(long key) throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep(50);
+                return key;
+            }
+            @Override
+            protected void releaseForCache(Long obj) {}
+        };
+        int workers = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(workers);
+        for(int i = 0; i < workers; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    assert c.get(7) == 7;
+                } catch (Exception e) {
+                    Panic.panic(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assert loads.get() == 1;
+        for(int i = 0; i < workers; i ++) {
+            c.release(7);
+        }
+        assert c.get(7) == 7;
+        assert loads.get() == 2;
+        c.release(7);
+    }
+
+    @Test
+    public void testWriteBackOutsideBinLock() throws Exception {
+        AtomicInteger loads = new AtomicInteger(0);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AbstractCache<Long> c = new AbstractCache<Long>(0) {
+            @Override
+            protected Long getForCache(long key) throws Exception {
+                if(key == 1) {
+                    loads.incrementAndGet();
+                }
+                return key;
+            }
+            @Override
+            protected void releaseForCache(Long obj) {
+                if(obj == 1) {
+                    writing.countDown();
+                    try {
+                        finish.await();
+                    } catch (InterruptedException e) {
+                        Panic.panic(e);
+                    }
+                }
+            }
+        };
+        c.get(1);
+        Thread releaser = new Thread(() -> c.release(1));
+        releaser.start();
+        writing.await();
+        // 写回期间，同一个哈希桶中的其他 key 不受影响
+        assert c.get(17) == 17;
+        c.release(17);
+        // 同一个 key 要等写回完成才重新加载
+        Thread reader = new Thread(() -> {
+            try {
+                assert c.get(1) == 1;
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        });
+        reader.start();
+        reader.join(100);
+        assert reader.isAlive();
+        assert loads.get() == 1;
+        finish.countDown();
+        reader.join();
+        releaser.join();
+        assert loads.get() == 2;
+    }
+
+    @Test
+    public void testResidentEviction() throws Exception {
+        AtomicInteger loads = new AtomicInteger(0);
+        AbstractCache<Long> c = new AbstractCache<Long>(8, true) {
+            @Override
+            protected Long getForCache(long key) throws Exception {
+                loads.incrementAndGet();
+                return key;
+            }
+            @Override
+            protected void releaseForCache(Long obj) {}
+        };
+        // 2 在 A1in 中被再次访问，不会因此成为热点
+        for(long key : new long[]{1, 2, 3, 4, 5, 6, 7, 8, 2}) {
+            c.get(key);
+            c.release(key);
+        }
+        assert loads.get() == 8;
+        // 1 从 A1in 被驱逐到 A1out 之后又被访问，进入 Am
+        for(long key : new long[]{9, 1}) {
+            c.get(key);
+            c.release(key);
+        }
+        assert loads.get() == 10;
+        // 扫描只冲掉 A1in
+        for(long key = 10; key <= 40; key ++) {
+            c.get(key);
+            c.release(key);
+        }
+        int before = loads.get();
+        c.get(1);
+        c.release(1);
+        assert loads.get() == before;
+        c.get(2);
+        c.release(2);
+        assert loads.get() == before + 1;
+
+        // 所有资源都被引用时，仍然抛出缓存已满异常
+        for(long key = 100; key < 108; key ++) {
+            c.get(key);
+        }
+        try {
+            c.get(108);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.CacheFullException;
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package top.guoziyang.mydb.backend.dm;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -12,13 +14,18 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.Test;
 
+import com.google.common.primitives.Bytes;
+
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.utils.RandomUtil;
+import top.guoziyang.mydb.backend.utils.Types;
 
 public class DataManagerTest {
 
@@ -158,4 +165,282 @@ public class DataManagerTest {
         new File("/tmp/TestRecoverySimple.xid").delete();
 
     }
+
+    @Test
+    public void testRecoveryFromCheckpoint() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestRecoveryCheckpoint");
+        DataManager dm0 = DataManager.create("/tmp/TestRecoveryCheckpoint", PageCache.PAGE_SIZE*30, tm0);
+        dm0.setCheckpointPolicy(Long.MAX_VALUE, Integer.MAX_VALUE);
+
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 2000; i ++) {
+            if(i == 1000) {
+                ((DataManagerImpl)dm0).checkpoint();
+            }
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+
+        // 不关闭 dm0，模拟崩溃
+        DataManager dm1 = DataManager.open("/tmp/TestRecoveryCheckpoint", PageCache.PAGE_SIZE*30, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            assert di != null;
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), datas.get(i));
+            di.release();
+        }
+        dm1.close();
+
+        new File("/tmp/TestRecoveryCheckpoint.db").delete();
+        new File("/tmp/TestRecoveryCheckpoint.log").delete();
+        new File("/tmp/TestRecoveryCheckpoint.xid").delete();
+    }
+
+    @Test
+    public void testUndoAcrossCheckpoint() throws Exception {
+        String path = "/tmp/TestUndoCheckpoint";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        dm0.setCheckpointPolicy(Long.MAX_VALUE, Integer.MAX_VALUE);
+
+        byte[] a = RandomUtil.randomBytes(60);
+        long committed = tm0.begin();
+        long uidA = dm0.insert(committed, a);
+        tm0.commit(committed);
+
+        // 未提交的事务在检查点前后都有修改
+        long loser = tm0.begin();
+        long uidB = dm0.insert(loser, RandomUtil.randomBytes(60));
+        DataItem di = dm0.read(uidA);
+        di.before();
+        SubArray sa = di.data();
+        Arrays.fill(sa.raw, sa.start, sa.end, (byte)7);
+        di.after(loser);
+        di.release();
+        ((DataManagerImpl)dm0).checkpoint();
+        long uidC = dm0.insert(loser, RandomUtil.randomBytes(60));
+
+        byte[] d = RandomUtil.randomBytes(60);
+        long committed2 = tm0.begin();
+        long uidD = dm0.insert(committed2, d);
+        tm0.commit(committed2);
+
+        // 模拟崩溃，恢复之后再模拟一次崩溃，CLR 保证第二次恢复的结果相同
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        for(DataManager dm : new DataManager[] {dm1, DataManager.open(path, PageCache.PAGE_SIZE*30, tm0)}) {
+            assert tm0.isAborted(loser);
+            assert dm.read(uidB) == null;
+            assert dm.read(uidC) == null;
+            for(Object[] expect : new Object[][] {{uidA, a}, {uidD, d}}) {
+                DataItem item = dm.read((long)expect[0]);
+                SubArray data = item.data();
+                assert Arrays.equals(Arrays.copyOfRange(data.raw, data.start, data.end), (byte[])expect[1]);
+                item.release();
+            }
+        }
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testCheckpointActiveTransactions() throws Exception {
+        String path = "/tmp/TestCheckpointActive";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        dm0.setCheckpointPolicy(Long.MAX_VALUE, Integer.MAX_VALUE);
+        ((DataManagerImpl)dm0).checkpoint();
+
+        // 两次检查点之间有很多短事务，第二次检查点时只有一个事务还没有结束
+        long loser = tm0.begin();
+        long uid = dm0.insert(loser, RandomUtil.randomBytes(60));
+        for(int i = 0; i < 2000; i ++) {
+            long xid = tm0.begin();
+            dm0.insert(xid, RandomUtil.randomBytes(60));
+            if(i % 2 == 0) {
+                tm0.commit(xid);
+            } else {
+                tm0.abort(xid);
+            }
+        }
+        ((DataManagerImpl)dm0).checkpoint();
+
+        Logger lg = ((DataManagerImpl)dm0).logger;
+        lg.rewind();
+        byte[] last = null;
+        for(byte[] log = lg.next(); log != null; log = lg.next()) {
+            if(log[0] == Recover.LOG_TYPE_CHECKPOINT) {
+                last = log;
+            }
+        }
+        assert last != null && Parser.parseInt(last, Recover.OF_CKPT_COUNT) == 1;
+
+        // 模拟崩溃，没有结束的事务仍然被撤销
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        assert tm0.isAborted(loser);
+        assert dm1.read(uid) == null;
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testParallelRedo() throws Exception {
+        String path = "/tmp/TestParallelRedo";
+        long mem = PageCache.PAGE_SIZE*10;
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, mem, tm0);
+        dm0.setCheckpointPolicy(Long.MAX_VALUE, Integer.MAX_VALUE);
+
+        // 数据分布在远多于缓存容量的页面上
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> expects = new ArrayList<>();
+        long xid = tm0.begin();
+        for(int i = 0; i < 2000; i ++) {
+            byte[] data = RandomUtil.randomBytes(200);
+            uids.add(dm0.insert(xid, data));
+            expects.add(data);
+        }
+        tm0.commit(xid);
+        long updater = tm0.begin();
+        long loser = tm0.begin();
+        for(int i = 0; i < uids.size(); i ++) {
+            long owner = i % 2 == 0 ? updater : loser;
+            DataItem di = dm0.read(uids.get(i));
+            di.before();
+            SubArray sa = di.data();
+            Arrays.fill(sa.raw, sa.start, sa.end, (byte)i);
+            if(owner == updater) {
+                expects.set(i, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            }
+            di.after(owner);
+            di.release();
+        }
+        tm0.commit(updater);
+
+        // 模拟崩溃，用多个线程重做
+        PageCache pc = PageCache.open(path, mem);
+        Logger lg = Logger.open(path);
+        Recover.recover(tm0, lg, pc, 4);
+        DataManagerImpl dm1 = new DataManagerImpl(pc, lg, tm0);
+        dm1.loadCheckPageOne();
+        dm1.fillPageIndex();
+        assert tm0.isAborted(loser);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem item = dm1.read(uids.get(i));
+            SubArray data = item.data();
+            assert Arrays.equals(Arrays.copyOfRange(data.raw, data.start, data.end), expects.get(i));
+            item.release();
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testFreeAndCompact() throws Exception {
+        String path = "/tmp/TestFreeAndCompact";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        dm0.setCheckpointPolicy(Long.MAX_VALUE, Integer.MAX_VALUE);
+
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 10; i ++) {
+            byte[] data = RandomUtil.randomBytes(100);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        // 只有页面末尾连续被回收的空间可以压缩
+        dm0.free(uids.get(2));
+        for(int i = 5; i < 10; i ++) {
+            dm0.free(uids.get(i));
+        }
+        assert dm0.read(uids.get(2)) == null;
+        assert dm0.compact() == 5 * (100 + 3);
+        assert dm0.compact() == 0;
+        byte[] reused = RandomUtil.randomBytes(100);
+        assert dm0.insert(0, reused) == uids.get(5);
+
+        // 模拟崩溃，重做压缩日志之后结果相同
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < 6; i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            if(i == 2) {
+                assert di == null;
+                continue;
+            }
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), i == 5 ? reused : datas.get(i));
+            di.release();
+        }
+        assert dm1.insert(0, RandomUtil.randomBytes(100)) == uids.get(6);
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testRecoverLegacyLog() throws Exception {
+        String path = "/tmp/TestRecoverLegacyLog";
+        long mem = PageCache.PAGE_SIZE*10;
+        TransactionManager tm0 = TransactionManager.create(path);
+        long committed = tm0.begin();
+        tm0.commit(committed);
+        long loser = tm0.begin();
+        // 不关闭，模拟旧版本崩溃时的数据文件
+        DataManager.create(path, mem, tm0);
+
+        // 按旧格式手工构造日志：已提交的事务插入 a，未提交的事务插入 b 并把 a 改成全 7
+        byte[] a = RandomUtil.randomBytes(60);
+        byte[] rawA = DataItem.wrapDataItemRaw(a);
+        byte[] rawB = DataItem.wrapDataItemRaw(RandomUtil.randomBytes(60));
+        byte[] sevens = new byte[60];
+        Arrays.fill(sevens, (byte)7);
+        short offsetA = 2, offsetB = (short)(offsetA + rawA.length);
+        long uidA = Types.addressToUid(2, offsetA), uidB = Types.addressToUid(2, offsetB);
+        writeLegacyLog(path,
+            Bytes.concat(new byte[] {0}, Parser.long2Byte(committed), Parser.int2Byte(2), Parser.short2Byte(offsetA), rawA),
+            Bytes.concat(new byte[] {0}, Parser.long2Byte(loser), Parser.int2Byte(2), Parser.short2Byte(offsetB), rawB),
+            Bytes.concat(new byte[] {1}, Parser.long2Byte(loser), Parser.long2Byte(uidA), rawA, DataItem.wrapDataItemRaw(sevens)));
+
+        // 迁移后恢复；再在第一次检查点之前模拟崩溃，恢复还会从头读到旧格式的日志
+        for(int i = 0; i < 2; i ++) {
+            DataManager dm = DataManager.open(path, mem, tm0);
+            dm.setCheckpointPolicy(Long.MAX_VALUE, Integer.MAX_VALUE);
+            assert tm0.isAborted(loser);
+            assert dm.read(uidB) == null;
+            DataItem di = dm.read(uidA);
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), a);
+            di.release();
+        }
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    // 旧格式的日志文件：[XChecksum] [Size] [Checksum] [Data] ...
+    private static void writeLegacyLog(String path, byte[]... records) throws Exception {
+        int xChecksum = 0;
+        byte[] body = new byte[0];
+        for(byte[] data : records) {
+            int checksum = 0;
+            for(byte b : data) checksum = checksum * 13331 + b;
+            byte[] log = Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(checksum), data);
+            for(byte b : log) xChecksum = xChecksum * 13331 + b;
+            body = Bytes.concat(body, log);
+        }
+        Files.write(Paths.get(path + ".log"), Bytes.concat(Parser.int2Byte(xChecksum), body));
+    }
 }
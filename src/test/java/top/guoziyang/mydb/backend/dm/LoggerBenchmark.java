@@ -0,0 +1,66 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import top.guoziyang.mydb.backend.dm.logger.Logger;
+import top.guoziyang.mydb.backend.utils.RandomUtil;
+
+/**
+ * 日志组提交吞吐量的基准测试，不随单元测试运行，mvn test-compile 之后手动执行：
+ *      java -cp target/classes:target/test-classes:<依赖> top.guoziyang.mydb.backend.dm.LoggerBenchmark 3 100
+ * 参数：每轮的持续时间（秒，默认 3）、每条日志的大小（字节，默认 100）
+ *
+ * 1 到 64 个写入线程（每轮翻倍）在新建的日志上不停地 log()，log() 返回时日志已经持久化，
+ * 统计每秒写入的日志条数和每次写入的平均耗时。
+ */
+public class LoggerBenchmark {
+
+    private static final String PATH = "/tmp/LoggerBenchmark";
+    private static final int MAX_WRITERS = 64;
+
+    public static void main(String[] args) throws Exception {
+        long duration = (args.length > 0 ? Long.parseLong(args[0]) : 3) * 1_000_000_000L;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        for(int writers = 1; writers <= MAX_WRITERS; writers <<= 1) {
+            cleanup();
+            Logger lg = Logger.create(PATH);
+            AtomicLong records = new AtomicLong();
+            CountDownLatch cdl = new CountDownLatch(writers);
+            long start = System.nanoTime();
+            long deadline = start + duration;
+            for(int w = 0; w < writers; w ++) {
+                new Thread(() -> {
+                    byte[] data = RandomUtil.randomBytes(size);
+                    long n = 0;
+                    while(System.nanoTime() < deadline) {
+                        lg.log(data);
+                        n ++;
+                    }
+                    records.addAndGet(n);
+                    cdl.countDown();
+                }).start();
+            }
+            cdl.await();
+            long nanos = System.nanoTime() - start;
+            lg.close();
+            System.out.printf("%d writers: %.0f records/s, %.1f us/record per writer%n",
+                writers, records.get() * 1e9 / nanos, (double)nanos * writers / records.get() / 1e3);
+        }
+
+        cleanup();
+    }
+
+    private static void cleanup() {
+        File dir = new File(PATH).getParentFile();
+        String prefix = new File(PATH).getName() + ".";
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
@@ -51,7 +51,25 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public void free(long uid) throws Exception {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int compact() {
+        return 0;
+    }
+
     @Override
     public void close() {}
+
+    @Override
+    public void setCheckpointPolicy(long intervalMillis, int dirtyPageThreshold) {}
     
 }
@@ -0,0 +1,108 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.RandomUtil;
+
+/**
+ * 崩溃恢复耗时的基准测试，不随单元测试运行，mvn test-compile 之后手动执行：
+ *      java -cp target/classes:target/test-classes:<依赖> top.guoziyang.mydb.backend.dm.RecoverBenchmark 1024 8
+ * 参数：日志大小（MB，默认 1024）、重做线程数（默认 Recover.DEFAULT_REDO_THREADS）
+ *
+ * 关闭检查点，多个线程反复更新数据直到日志达到指定大小，然后不关闭数据管理器模拟崩溃，
+ * 分别用单线程和多线程重做，统计从打开日志到恢复结束的时间。
+ */
+public class RecoverBenchmark {
+
+    private static final String PATH = "/tmp/RecoverBenchmark";
+    private static final long MEM = 64L << 20;
+    private static final int WRITERS = 32;
+    private static final int ITEMS_PER_WRITER = 256;
+    private static final int ITEM_SIZE = 400;
+
+    public static void main(String[] args) throws Exception {
+        long logSize = (args.length > 0 ? Long.parseLong(args[0]) : 1024) << 20;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Recover.DEFAULT_REDO_THREADS;
+
+        cleanup();
+        TransactionManager tm = TransactionManager.create(PATH);
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(PATH, MEM, tm);
+        dm.setCheckpointPolicy(Long.MAX_VALUE, Integer.MAX_VALUE);
+
+        long start = System.nanoTime();
+        generate(dm, tm, logSize);
+        System.out.printf("generated %d MB of log in %.1f s%n",
+            dm.logger.tail() >> 20, (System.nanoTime() - start) / 1e9);
+
+        // 不关闭 dm，模拟崩溃
+        for(int n : new int[] {1, threads}) {
+            start = System.nanoTime();
+            PageCache pc = PageCache.open(PATH, MEM);
+            Logger lg = Logger.open(PATH);
+            Recover.recover(tm, lg, pc, n);
+            long elapsed = System.nanoTime() - start;
+            pc.close();
+            lg.close();
+            System.out.printf("redo threads %d: recovered in %.2f s%n", n, elapsed / 1e9);
+        }
+
+        cleanup();
+        System.exit(0);
+    }
+
+    // 每个线程在自己的事务中插入一批数据，然后反复更新，直到日志达到 logSize
+    private static void generate(DataManagerImpl dm, TransactionManager tm, long logSize) throws InterruptedException {
+        AtomicLong logged = new AtomicLong();
+        CountDownLatch cdl = new CountDownLatch(WRITERS);
+        for(int w = 0; w < WRITERS; w ++) {
+            new Thread(() -> {
+                try {
+                    long xid = tm.begin();
+                    List<Long> uids = new ArrayList<>();
+                    for(int i = 0; i < ITEMS_PER_WRITER; i ++) {
+                        uids.add(dm.insert(xid, RandomUtil.randomBytes(ITEM_SIZE)));
+                    }
+                    tm.commit(xid);
+                    for(int round = 0; logged.get() < logSize; round ++) {
+                        xid = tm.begin();
+                        for(long uid : uids) {
+                            DataItem di = dm.read(uid);
+                            di.before();
+                            SubArray sa = di.data();
+                            sa.raw[sa.start + round % ITEM_SIZE] ++;
+                            di.after(xid);
+                            di.release();
+                        }
+                        tm.commit(xid);
+                        logged.set(dm.logger.tail());
+                    }
+                } catch(Exception e) {
+                    Panic.panic(e);
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+    }
+
+    private static void cleanup() {
+        File dir = new File(PATH).getParentFile();
+        String prefix = new File(PATH).getName() + ".";
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
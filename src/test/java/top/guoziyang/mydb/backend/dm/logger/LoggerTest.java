@@ -1,9 +1,21 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
 public class LoggerTest {
     @Test
     public void testLogger() {
@@ -45,4 +57,203 @@ public class LoggerTest {
 
         assert new File("/tmp/logger_test.log").delete();
     }
+
+    @Test
+    public void testRecordTooLarge() {
+        // 超过写缓冲区，或者一整段放不下的记录被拒绝，之后的日志照常写入
+        Logger lg = Logger.create("/tmp/logger_large_test", LoggerImpl.MIN_SEGMENT_SIZE);
+        for(int size : new int[] {1 << 20, (int)LoggerImpl.MIN_SEGMENT_SIZE}) {
+            try {
+                lg.log(new byte[size]);
+                assert false;
+            } catch(RuntimeException e) {
+                assert e == Error.DataTooLargeException;
+            }
+        }
+        lg.log("small".getBytes());
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_large_test");
+        lg.rewind();
+        assert "small".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+        assert new File("/tmp/logger_large_test.log").delete();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        Logger lg0 = Logger.create("/tmp/logger_group_test");
+        int workers = 16, logs = 200;
+        CountDownLatch cdl = new CountDownLatch(workers);
+        for(int i = 0; i < workers; i ++) {
+            int id = i;
+            new Thread(() -> {
+                for(int j = 0; j < logs; j ++) {
+                    lg0.log((id + "-" + j).getBytes());
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        lg0.close();
+
+        Logger lg = Logger.open("/tmp/logger_group_test");
+        lg.rewind();
+        Set<String> seen = new HashSet<>();
+        byte[] log;
+        while((log = lg.next()) != null) {
+            seen.add(new String(log));
+        }
+        assert seen.size() == workers * logs;
+        lg.close();
+
+        assert new File("/tmp/logger_group_test.log").delete();
+    }
+
+    @Test
+    public void testLegacyMigration() throws Exception {
+        // 按旧格式手工构造日志：[XChecksum] [Size] [Checksum] [Data] ...
+        int xChecksum = 0;
+        byte[] body = new byte[0];
+        for(int i = 0; i < 3; i ++) {
+            byte[] data = ("old-" + i).getBytes();
+            int checksum = 0;
+            for(byte b : data) checksum = checksum * 13331 + b;
+            byte[] log = Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(checksum), data);
+            for(byte b : log) xChecksum = xChecksum * 13331 + b;
+            body = Bytes.concat(body, log);
+        }
+        Files.write(Paths.get("/tmp/logger_legacy_test.log"), Bytes.concat(Parser.int2Byte(xChecksum), body));
+
+        // 迁移之后继续追加
+        Logger lg = Logger.open("/tmp/logger_legacy_test");
+        lg.log("new".getBytes());
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_legacy_test");
+        lg.rewind();
+        for(int i = 0; i < 3; i ++) {
+            assert ("old-" + i).equals(new String(lg.next()));
+        }
+        assert "new".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+
+        assert new File("/tmp/logger_legacy_test.log").delete();
+    }
+
+    @Test
+    public void testSegmentRecycle() {
+        long segmentSize = LoggerImpl.MIN_SEGMENT_SIZE;
+        Logger lg = Logger.create("/tmp/logger_segment_test", segmentSize);
+        byte[] big = new byte[10000];
+        int logs = 30;
+        long recycleAt = 0;
+        for(int i = 0; i < logs; i ++) {
+            big[0] = (byte)i;
+            if(i == 20) {
+                recycleAt = lg.tail();
+            }
+            lg.log(big);
+        }
+        lg.recycle(recycleAt);
+        lg.close();
+
+        File[] files = new File("/tmp").listFiles((d, n) -> n.startsWith("logger_segment_test.log"));
+        long spares = Arrays.stream(files).filter(f -> f.getName().endsWith(".spare")).count();
+        assert spares == 2;
+
+        // 回收的段之后的日志都还在，迭代跨越多个段
+        lg = Logger.open("/tmp/logger_segment_test");
+        lg.rewind();
+        byte[] log = lg.next();
+        int first = log[0];
+        assert first > 0 && first <= 20;
+        int count = 1;
+        while((log = lg.next()) != null) {
+            assert log[0] == first + count;
+            count ++;
+        }
+        assert first + count == logs;
+
+        // 继续追加时复用备用段
+        for(int i = 0; i < 10; i ++) {
+            lg.log(big);
+        }
+        lg.close();
+        files = new File("/tmp").listFiles((d, n) -> n.startsWith("logger_segment_test.log"));
+        assert Arrays.stream(files).filter(f -> f.getName().endsWith(".spare")).count() < spares;
+
+        for(File f : files) {
+            assert f.delete();
+        }
+    }
+
+    @Test
+    public void testFooterCheck() throws Exception {
+        long segmentSize = LoggerImpl.MIN_SEGMENT_SIZE;
+        Logger lg = Logger.create("/tmp/logger_footer_test", segmentSize);
+        byte[] big = new byte[10000];
+        for(int i = 0; i < 20; i ++) {
+            big[0] = (byte)i;
+            lg.log(big);
+        }
+        lg.close();
+
+        // 打开时校验写满的段，段中的记录或者 Footer 被改动之后校验不通过
+        LoggerImpl li = (LoggerImpl)Logger.open("/tmp/logger_footer_test");
+        assert li.checkFooter(0) && li.checkFooter(1);
+        File seg = new File("/tmp/logger_footer_test.log");
+        for(long offset : new long[] {100, segmentSize - 8}) {
+            try(RandomAccessFile raf = new RandomAccessFile(seg, "rw")) {
+                raf.seek(offset);
+                int b = raf.read();
+                raf.seek(offset);
+                raf.write(b ^ 0xFF);
+                assert !li.checkFooter(0) && li.checkFooter(1);
+                raf.seek(offset);
+                raf.write(b);
+            }
+        }
+        assert li.checkFooter(0);
+        li.close();
+
+        File[] files = new File("/tmp").listFiles((d, n) -> n.startsWith("logger_footer_test.log"));
+        assert files.length == 4;
+        for(File f : files) {
+            assert f.delete();
+        }
+    }
+
+    @Test
+    public void testLogReader() {
+        Logger lg = Logger.create("/tmp/logger_reader_test", LoggerImpl.MIN_SEGMENT_SIZE);
+        int logs = 500;
+        for(int i = 0; i < logs; i ++) {
+            byte[] data = new byte[100 + i * 7 % 900];
+            Arrays.fill(data, (byte)i);
+            lg.log(data);
+        }
+
+        // 读取器读到的记录与 next() 拷贝出来的一致，并且跨越多个段
+        LogReader reader = lg.reader();
+        lg.rewind();
+        int count = 0;
+        while(reader.next()) {
+            byte[] log = lg.next();
+            assert log.length == reader.length();
+            for(int i = 0; i < log.length; i ++) {
+                assert log[i] == reader.data()[reader.offset() + i];
+            }
+            count ++;
+        }
+        assert lg.next() == null;
+        assert count == logs;
+        lg.close();
+
+        for(File f : new File("/tmp").listFiles((d, n) -> n.startsWith("logger_reader_test.log"))) {
+            assert f.delete();
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package top.guoziyang.mydb.backend.dm.pageCache;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
@@ -54,5 +56,13 @@ public class MockPageCache implements PageCache {
 
     @Override
     public void flushPage(Page pg) {}
+
+    @Override
+    public List<Page> copyDirtyPages() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public void flushPages(List<Page> pages) {}
     
 }
@@ -0,0 +1,127 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 页面随机读取的基准测试，不随单元测试运行，mvn test-compile 之后手动执行：
+ *      java -cp target/classes:target/test-classes:<依赖> top.guoziyang.mydb.backend.dm.pageCache.PageCacheBenchmark 256 200000 8
+ * 参数：数据文件大小（MB，默认 256）、每个线程的读取次数（默认 200000）、并发读取的线程数（默认 8）
+ *
+ * 先写入指定大小的数据文件，再分别以 FileChannel 和 mmap 模式打开，页面缓存只有 CACHE_PAGES 个页面，
+ * 随机读取几乎都是缓存缺失，先预热一轮，再统计 1 个线程和多个线程时每秒读取的页面数。文件刚写入，基本都在操作系统的页缓存中，
+ * 比较的是两种模式读取路径本身的开销。
+ *
+ * 最后在 FileChannel 模式下，由 1、8、32 个线程随机读取，同时一个线程不断修改随机页面，
+ * 被驱逐的脏页面不断写回，统计缓存缺失时每秒读取的页面数，看读取会不会排在写回后面。
+ */
+public class PageCacheBenchmark {
+
+    private static final String PATH = "/tmp/PageCacheBenchmark";
+    private static final int CACHE_PAGES = 1024;
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 256) << 20;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        cleanup();
+        int pages = (int)(size / PageCache.PAGE_SIZE);
+        PageCache pc = PageCache.create(PATH, (long)CACHE_PAGES * PageCache.PAGE_SIZE);
+        for(int i = 1; i <= pages; i ++) {
+            byte[] data = new byte[PageCache.PAGE_SIZE];
+            data[0] = (byte)i;
+            pc.newPage(data);
+        }
+        pc.close();
+
+        // 先完整预热一轮再计时
+        for(int round = 0; round < 2; round ++) {
+            for(boolean mmap : new boolean[] {false, true}) {
+                for(int n : new int[] {1, threads}) {
+                    // 每次重新打开，缓存从空开始
+                    pc = PageCache.open(PATH, (long)CACHE_PAGES * PageCache.PAGE_SIZE, mmap);
+                    double rate = randomReads(pc, pages, n, reads);
+                    pc.close();
+                    if(round == 1) {
+                        System.out.printf("%s, %d threads: %.0f reads/s%n", mmap ? "mmap" : "FileChannel", n, rate);
+                    }
+                }
+            }
+        }
+
+        for(int round = 0; round < 2; round ++) {
+            for(int n : new int[] {1, 8, 32}) {
+                PageCache cache = PageCache.open(PATH, (long)CACHE_PAGES * PageCache.PAGE_SIZE);
+                AtomicBoolean stop = new AtomicBoolean();
+                Thread writer = new Thread(() -> dirty(cache, pages, stop));
+                writer.start();
+                double rate = randomReads(cache, pages, n, reads);
+                stop.set(true);
+                writer.join();
+                cache.close();
+                if(round == 1) {
+                    System.out.printf("FileChannel with write-backs, %d threads: %.0f reads/s%n", n, rate);
+                }
+            }
+        }
+
+        cleanup();
+    }
+
+    // 不断修改随机页面的第二个字节，页面被驱逐时需要写回
+    private static void dirty(PageCache pc, int pages, AtomicBoolean stop) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            while(!stop.get()) {
+                Page pg = pc.getPage(random.nextInt(pages) + 1);
+                pg.getData()[1] ++;
+                pg.setDirty(true);
+                pg.release();
+            }
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static double randomReads(PageCache pc, int pages, int threads, int reads) throws InterruptedException {
+        CountDownLatch cdl = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for(int t = 0; t < threads; t ++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    for(int i = 0; i < reads; i ++) {
+                        int pgno = random.nextInt(pages) + 1;
+                        Page pg = pc.getPage(pgno);
+                        if(pg.getData()[0] != (byte)pgno) {
+                            throw new AssertionError("bad page " + pgno);
+                        }
+                        pg.release();
+                    }
+                } catch(Exception e) {
+                    Panic.panic(e);
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        return (double)threads * reads * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static void cleanup() {
+        File dir = new File(PATH).getParentFile();
+        String prefix = new File(PATH).getName() + ".";
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
@@ -43,6 +43,34 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testPageCacheMmap() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_mmap_test0", PageCache.PAGE_SIZE * 50, true);
+        for(int i = 0 ; i < 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            int pgno = pc.newPage(tmp);
+            Page pg = pc.getPage(pgno);
+            pg.getData()[1] = (byte)i;
+            pg.setDirty(true);
+            pg.release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_mmap_test0.db").length() == PageCache.PAGE_SIZE * 100;
+
+        pc = PageCache.open("/tmp/pcacher_mmap_test0", PageCache.PAGE_SIZE * 50, true);
+        assert pc.getPageNumber() == 100;
+        for(int i = 1; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i-1;
+            assert pg.getData()[1] == (byte)i-1;
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("/tmp/pcacher_mmap_test0.db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
@@ -0,0 +1,116 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.tm.MockTransactionManager;
+
+/**
+ * B+ 树点查询和范围扫描的基准测试，不随单元测试运行，mvn test-compile 之后手动执行：
+ *      java -Xmx4g -cp target/classes:target/test-classes:<依赖> top.guoziyang.mydb.backend.im.BPlusTreeBenchmark 10000000 1000000 100000 1024 8
+ * 参数：key 数（默认 10M）、点查询次数（默认 1M）、范围扫描次数（默认 100K，每次 SCAN 个 key）、页面缓存大小（MB，默认 1024）、
+ *      并发查询的线程数（默认 8）
+ *
+ * 用 bulkLoader 批量建树，同时统计逐个 insert 建同样大小的树需要的时间（最多 INSERTS 个 key，按比例折算），之后在单线程中随机点查询和范围扫描，先预热一轮再计时；
+ * 最后由多个线程一起完成同样次数的点查询，统计只读负载下的吞吐量。
+ */
+public class BPlusTreeBenchmark {
+
+    private static final String PATH = "/tmp/BPlusTreeBenchmark";
+    private static final int SCAN = 100;
+    private static final int INSERTS = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int scans = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        long mem = (args.length > 3 ? Long.parseLong(args[3]) : 1024) << 20;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+
+        cleanup();
+        DataManager dm = DataManager.create(PATH, mem, new MockTransactionManager());
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+
+        int inserts = Math.min(keys, INSERTS);
+        long start = System.nanoTime();
+        for(int i = 0; i < inserts; i ++) {
+            tree.insert(i, i + 1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("insert %d keys: %.1f s, about %.1f s for %d keys%n", inserts, seconds, seconds * keys / inserts, keys);
+
+        start = System.nanoTime();
+        BulkLoader loader = tree.bulkLoader();
+        for(int i = 0; i < keys; i ++) {
+            loader.add(i, i + 1);
+        }
+        loader.finish();
+        System.out.printf("bulk load %d keys: %.1f s%n", keys, (System.nanoTime() - start) / 1e9);
+
+        for(int round = 0; round < 2; round ++) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            start = System.nanoTime();
+            lookup(tree, keys, lookups);
+            long lookupNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i = 0; i < scans; i ++) {
+                long key = random.nextInt(keys - SCAN);
+                if(tree.searchRange(key, key + SCAN - 1).size() != SCAN) {
+                    throw new AssertionError("bad scan " + key);
+                }
+            }
+            long scanNanos = System.nanoTime() - start;
+            if(round == 1) {
+                System.out.printf("point lookup: %.2f us/op, %.0f ops/s%n", lookupNanos / 1e3 / lookups, lookups * 1e9 / lookupNanos);
+                System.out.printf("range scan of %d: %.2f us/op, %.0f ops/s%n", SCAN, scanNanos / 1e3 / scans, scans * 1e9 / scanNanos);
+            }
+        }
+
+        CountDownLatch cdl = new CountDownLatch(threads);
+        start = System.nanoTime();
+        for(int t = 0; t < threads; t ++) {
+            new Thread(() -> {
+                try {
+                    lookup(tree, keys, lookups / threads);
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        long nanos = System.nanoTime() - start;
+        System.out.printf("point lookup, %d threads: %.0f ops/s%n", threads, (long)lookups / threads * threads * 1e9 / nanos);
+
+        tree.close();
+        dm.close();
+        cleanup();
+        System.exit(0);
+    }
+
+    private static void lookup(BPlusTree tree, int keys, int lookups) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for(int i = 0; i < lookups; i ++) {
+            long key = random.nextInt(keys);
+            List<Long> uids = tree.search(key);
+            if(uids.size() != 1 || uids.get(0) != key + 1) {
+                throw new AssertionError("bad lookup " + key);
+            }
+        }
+    }
+
+    private static void cleanup() {
+        File dir = new File(PATH).getParentFile();
+        String prefix = new File(PATH).getName() + ".";
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
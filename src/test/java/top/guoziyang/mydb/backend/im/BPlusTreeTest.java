@@ -1,7 +1,15 @@
 package top.guoziyang.mydb.backend.im;
 
+import static org.junit.Assert.assertThrows;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -33,4 +41,185 @@ public class BPlusTreeTest {
         assert new File("/tmp/TestTreeSingle.db").delete();
         assert new File("/tmp/TestTreeSingle.log").delete();
     }
+
+    @Test
+    public void testTreeDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeDelete", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 每个 key 两个条目，跨越多个叶子节点
+        int lim = 2000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i / 2, i);
+        }
+        for(int i = 0; i < lim; i += 2) {
+            assert tree.delete(i / 2, i);
+        }
+        assert !tree.delete(0, 0);
+        assert !tree.delete(lim, 1);
+
+        List<Long> uids = tree.searchRange(0, Long.MAX_VALUE);
+        assert uids.size() == lim / 2;
+        for(int i = 0; i < uids.size(); i ++) {
+            assert uids.get(i) == i * 2 + 1;
+        }
+        // 删除之后仍然可以插入
+        tree.insert(0, 0);
+        assert tree.search(0).size() == 2;
+
+        assert new File("/tmp/TestTreeDelete.db").delete();
+        assert new File("/tmp/TestTreeDelete.log").delete();
+    }
+
+    @Test
+    public void testInnerCache() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestInnerCache", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 乱序插入和查询交替进行，查询缓存的内部节点随后被插入分裂修改
+        int lim = 20000;
+        List<Long> keys = new ArrayList<>();
+        for(long i = 0; i < lim; i ++) {
+            keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(1));
+        for(long key : keys) {
+            tree.insert(key, key + 1);
+            List<Long> uids = tree.search(key);
+            assert uids.size() == 1 && uids.get(0) == key + 1;
+        }
+        for(long key = 0; key < lim; key ++) {
+            assert tree.search(key).get(0) == key + 1;
+        }
+        assert !tree.inners.isEmpty();
+
+        // 缓存的快照和节点中的内容一致
+        for(Map.Entry<Long, InnerNode> e : tree.inners.entrySet()) {
+            Node node = Node.loadNode(tree, e.getKey());
+            try {
+                InnerNode in = e.getValue();
+                assert !Node.getRawIfLeaf(node.raw);
+                assert in.sibling == Node.getRawSibling(node.raw);
+                assert in.keys.length == Node.getRawNoKeys(node.raw);
+                for(int i = 0; i < in.keys.length; i ++) {
+                    assert in.keys[i] == Node.getRawKthKey(node.raw, i);
+                    assert in.sons[i] == Node.getRawKthSon(node.raw, i);
+                }
+            } finally {
+                node.release();
+            }
+        }
+
+        assert new File("/tmp/TestInnerCache.db").delete();
+        assert new File("/tmp/TestInnerCache.log").delete();
+    }
+
+    @Test
+    public void testConcurrentReadWrite() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestConcurrentReadWrite", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 写者插入偶数 key，读者不加锁地查询已经插入的 key，不能漏掉或读错
+        int lim = 10000;
+        AtomicInteger inserted = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            try {
+                for(int i = 0; i < lim; i ++) {
+                    tree.insert(i * 2, i * 2 + 1);
+                    inserted.set(i + 1);
+                }
+            } catch(Exception e) {
+                failed.set(true);
+            }
+        });
+        List<Thread> readers = new ArrayList<>();
+        for(int r = 0; r < 4; r ++) {
+            readers.add(new Thread(() -> {
+                Random random = new Random();
+                try {
+                    while(inserted.get() < lim && !failed.get()) {
+                        int n = inserted.get();
+                        if(n == 0) {
+                            continue;
+                        }
+                        long key = random.nextInt(n) * 2;
+                        List<Long> uids = tree.search(key);
+                        if(uids.size() != 1 || uids.get(0) != key + 1 || !tree.search(key + 1).isEmpty()) {
+                            failed.set(true);
+                        }
+                    }
+                } catch(Exception e) {
+                    failed.set(true);
+                }
+            }));
+        }
+        writer.start();
+        for(Thread t : readers) {
+            t.start();
+        }
+        writer.join();
+        for(Thread t : readers) {
+            t.join();
+        }
+        assert !failed.get();
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim;
+
+        assert new File("/tmp/TestConcurrentReadWrite.db").delete();
+        assert new File("/tmp/TestConcurrentReadWrite.log").delete();
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestBulkLoad", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        tree.insert(-1, 1);
+
+        BulkLoader unsorted = tree.bulkLoader();
+        unsorted.add(2, 1);
+        assertThrows(RuntimeException.class, ()->unsorted.add(1, 1));
+
+        // 批量建树替换原来的内容，跨越多批叶子和多层内部节点
+        int lim = 200000;
+        BulkLoader loader = tree.bulkLoader();
+        for(int i = 0; i < lim; i ++) {
+            loader.add(i * 2, i + 1);
+        }
+        assert loader.finish() == lim;
+        assert tree.search(-1).isEmpty();
+        for(int i = 0; i < lim; i += 7) {
+            List<Long> uids = tree.search(i * 2);
+            assert uids.size() == 1 && uids.get(0) == i + 1;
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim;
+
+        // 装满的节点之后仍然可以插入和删除
+        for(int i = 0; i < 2000; i ++) {
+            tree.insert(i * 2 + 1, lim + i + 1);
+        }
+        assert tree.delete(0, 1);
+        assert tree.searchRange(0, 3999).size() == 3999;
+
+        // 根节点的切换已经写入 bootDataItem
+        tree.close();
+        tree = BPlusTree.load(root, dm);
+        assert tree.search(1).get(0) == lim + 1;
+        assert tree.search(lim * 2 - 2).get(0) == lim;
+        tree.close();
+
+        assert new File("/tmp/TestBulkLoad.db").delete();
+        assert new File("/tmp/TestBulkLoad.log").delete();
+    }
 }
@@ -5,6 +5,8 @@ import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -75,4 +77,117 @@ public class ExecutorTest {
         new File(path + ".log").delete();
         new File(path + ".xid").delete();
     }
+
+    @Test
+    public void testUpdateVersionChain() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor writer = new Executor(tbm);
+        Executor reader = new Executor(tbm);
+        writer.execute("create table chain_table id int32, v int32 (index id)".getBytes());
+        writer.execute("insert into chain_table values 1 0".getBytes());
+
+        reader.execute("begin isolation level repeatable read".getBytes());
+        assertEquals("[1, 0]\n", new String(reader.execute("select * from chain_table where id = 1".getBytes())));
+        // 非索引字段的更新挂在版本链上，读取时沿版本链找到可见的版本
+        for(int i = 1; i <= 5; i ++) {
+            writer.execute(("update chain_table set v = " + i + " where id = 1").getBytes());
+        }
+        writer.execute("begin".getBytes());
+        writer.execute("update chain_table set v = 100 where id = 1".getBytes());
+        writer.execute("abort".getBytes());
+        assertEquals("[1, 0]\n", new String(reader.execute("select * from chain_table where id = 1".getBytes())));
+        reader.execute("commit".getBytes());
+        assertEquals("[1, 5]\n", new String(reader.execute("select * from chain_table where id = 1".getBytes())));
+
+        // 索引字段的更新仍然是删除 + 插入
+        writer.execute("update chain_table set id = 2 where id = 1".getBytes());
+        assertEquals("", new String(reader.execute("select * from chain_table where id = 1".getBytes())));
+        assertEquals("[2, 5]\n", new String(reader.execute("select * from chain_table where id = 2".getBytes())));
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testVacuum() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor writer = new Executor(tbm);
+        Executor reader = new Executor(tbm);
+        writer.execute("create table vacuum_table id int32, v int32 (index id)".getBytes());
+        for(int i = 1; i <= 50; i ++) {
+            writer.execute(("insert into vacuum_table values " + i + " 0").getBytes());
+        }
+        for(int j = 1; j <= 5; j ++) {
+            writer.execute(("update vacuum_table set v = " + j + " where id < 11").getBytes());
+        }
+
+        // 快照中还能看到旧版本时不能回收
+        reader.execute("begin isolation level repeatable read".getBytes());
+        reader.execute("select * from vacuum_table where id = 1".getBytes());
+        writer.execute("delete from vacuum_table where id < 11".getBytes());
+        writer.execute("delete from vacuum_table where id > 40".getBytes());
+        assertEquals(0, tbm.vacuum());
+        assertEquals("[1, 5]\n", new String(reader.execute("select * from vacuum_table where id = 1".getBytes())));
+        reader.execute("commit".getBytes());
+
+        // 清理之后，持有旧 UID 的事务结束之前不能压缩
+        reader.execute("begin".getBytes());
+        assertEquals(0, tbm.vacuum());
+        reader.execute("commit".getBytes());
+        assert tbm.vacuum() > 0;
+
+        // 回收的空间被新插入的数据复用，被删除的行的索引条目已经删除
+        for(int i = 0; i < 20; i ++) {
+            writer.execute("insert into vacuum_table values 100 100".getBytes());
+        }
+        assertEquals("", new String(reader.execute("select * from vacuum_table where id = 41".getBytes())));
+        assertEquals("", new String(reader.execute("select * from vacuum_table where id = 5".getBytes())));
+        StringBuilder expect = new StringBuilder();
+        for(int i = 11; i <= 40; i ++) {
+            expect.append("[").append(i).append(", 0]\n");
+        }
+        assertEquals(expect.toString(), new String(reader.execute("select * from vacuum_table where id < 100".getBytes())));
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testVacuumAbortedUpdate() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table aborted_table id int32, v int32 (index id)".getBytes());
+
+        // 两个版本的大小：插入，更新，删除，回收
+        exe.execute("insert into aborted_table values 1 0".getBytes());
+        exe.execute("update aborted_table set v = 1 where id = 1".getBytes());
+        exe.execute("delete from aborted_table where id = 1".getBytes());
+        int twoVersions = tbm.vacuum();
+        assert twoVersions > 0;
+
+        // 回滚的更新留下的版本在下一次更新之后也要能回收
+        exe.execute("insert into aborted_table values 2 0".getBytes());
+        exe.execute("begin".getBytes());
+        exe.execute("update aborted_table set v = 1 where id = 2".getBytes());
+        exe.execute("abort".getBytes());
+        exe.execute("update aborted_table set v = 2 where id = 2".getBytes());
+        assertEquals("[2, 2]\n", new String(exe.execute("select * from aborted_table where id = 2".getBytes())));
+        exe.execute("delete from aborted_table where id = 2".getBytes());
+        assertEquals(twoVersions / 2 * 3, tbm.vacuum());
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
 }
@@ -0,0 +1,39 @@
+package top.guoziyang.mydb.backend.tm;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * begin / commit 吞吐量的基准测试，对比 FileChannel 和 mmap 两种实现，不随单元测试运行，mvn test-compile 之后手动执行：
+ *      java -cp target/classes:target/test-classes top.guoziyang.mydb.backend.tm.TransactionManagerBenchmark 16 2000
+ * 参数：线程数（默认 16）、每个线程的事务数（默认 2000）
+ */
+public class TransactionManagerBenchmark {
+
+    private static final String PATH = "/tmp/TransactionManagerBenchmark";
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        for(boolean mmap : new boolean[] {false, true}) {
+            new File(PATH + TransactionManagerImpl.XID_SUFFIX).delete();
+            TransactionManager tm = TransactionManager.create(PATH, mmap);
+            CountDownLatch cdl = new CountDownLatch(threads);
+            long start = System.nanoTime();
+            for(int i = 0; i < threads; i ++) {
+                new Thread(() -> {
+                    for(int j = 0; j < perThread; j ++) {
+                        tm.commit(tm.begin());
+                    }
+                    cdl.countDown();
+                }).start();
+            }
+            cdl.await();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            tm.close();
+            System.out.printf("%-11s %d threads: %.0f begin+commit/s%n",
+                mmap ? "mmap" : "FileChannel", threads, threads * perThread / seconds);
+        }
+        new File(PATH + TransactionManagerImpl.XID_SUFFIX).delete();
+    }
+}
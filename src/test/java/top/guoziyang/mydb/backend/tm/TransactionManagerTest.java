@@ -1,6 +1,8 @@
 package top.guoziyang.mydb.backend.tm;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -10,6 +12,8 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.Test;
 
+import top.guoziyang.mydb.backend.utils.Parser;
+
 public class TransactionManagerTest {
 
     static Random random = new SecureRandom();
@@ -90,4 +94,230 @@ public class TransactionManagerTest {
         }
         cdl.countDown();
     }
+
+    @Test
+    public void testStatusPages() throws Exception {
+        // 直接写一个跨越多页状态表的XID文件，状态按 xid % 3 分布
+        String path = "/tmp/tranmger_pages_test";
+        int count = TransactionManagerImpl.XIDS_PER_PAGE * 2 + 100;
+        byte[] raw = new byte[TransactionManagerImpl.LEN_XID_HEADER_LENGTH + count];
+        System.arraycopy(Parser.long2Byte(count), 0, raw, 0, TransactionManagerImpl.LEN_XID_HEADER_LENGTH);
+        for(int xid = 1; xid <= count; xid ++) {
+            raw[TransactionManagerImpl.LEN_XID_HEADER_LENGTH + xid - 1] = (byte)(xid % 3);
+        }
+        Files.write(Paths.get(path + TransactionManagerImpl.XID_SUFFIX), raw);
+
+        TransactionManager tm = TransactionManager.open(path);
+        for(long xid = count; xid >= 1; xid --) {
+            switch((int)(xid % 3)) {
+                case 0: assert tm.isActive(xid); break;
+                case 1: assert tm.isCommitted(xid); break;
+                case 2: assert tm.isAborted(xid); break;
+            }
+        }
+        long xid = tm.begin();
+        assert xid == count + 1 && tm.isActive(xid);
+        tm.commit(xid);
+        tm.abort(3);
+        assert tm.isCommitted(xid) && tm.isAborted(3);
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        assert tm.isCommitted(xid) && tm.isAborted(3) && tm.isCommitted(count - 1);
+        tm.close();
+        assert new File(path + TransactionManagerImpl.XID_SUFFIX).delete();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        String path = "/tmp/tranmger_group_test";
+        TransactionManager tm = TransactionManager.create(path);
+        int threads = 16, perThread = 200;
+        List<Long> committed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(threads);
+        for(int i = 0; i < threads; i ++) {
+            new Thread(() -> {
+                for(int j = 0; j < perThread; j ++) {
+                    long xid = tm.begin();
+                    tm.commit(xid);
+                    committed.add(xid);
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        assert new HashSet<>(committed).size() == threads * perThread;
+        long active = tm.begin();
+        tm.close();
+
+        // 模拟崩溃：重新打开之后已提交的事务保持提交，新事务不会复用之前分配过的事务ID
+        TransactionManager reopened = TransactionManager.open(path);
+        for(long xid : committed) {
+            assert reopened.isCommitted(xid);
+        }
+        assert reopened.isActive(active);
+        assert reopened.begin() > active;
+        reopened.close();
+        assert new File(path + TransactionManagerImpl.XID_SUFFIX).delete();
+    }
+
+    @Test
+    public void testMmap() {
+        String path = "/tmp/tranmger_mmap_test";
+        TransactionManager tm = TransactionManager.create(path, true);
+        List<Long> committed = new ArrayList<>(), aborted = new ArrayList<>();
+        for(int i = 0; i < 10000; i ++) {
+            long xid = tm.begin();
+            if(i % 10 == 0) {
+                continue;
+            }
+            if(i % 3 == 0) {
+                tm.abort(xid);
+                aborted.add(xid);
+            } else {
+                tm.commit(xid);
+                committed.add(xid);
+            }
+        }
+        long last = tm.begin();
+        tm.close();
+
+        // 两种模式的文件格式相同
+        for(boolean mmap : new boolean[] {false, true}) {
+            TransactionManager reopened = TransactionManager.open(path, mmap);
+            committed.forEach(xid -> { assert reopened.isCommitted(xid); });
+            aborted.forEach(xid -> { assert reopened.isAborted(xid); });
+            assert reopened.isActive(last) && reopened.isActive(1);
+            reopened.close();
+        }
+        assert new File(path + TransactionManagerImpl.XID_SUFFIX).delete();
+    }
+
+    @Test
+    public void testSwitchToMmap() throws Exception {
+        // FileChannel 模式创建的文件只预留了 XID_BATCH 个事务ID，不是整块映射的大小
+        String path = "/tmp/tranmger_switch_test";
+        File f = new File(path + TransactionManagerImpl.XID_SUFFIX);
+        TransactionManager tm = TransactionManager.create(path);
+        long committed = tm.begin(), aborted = tm.begin(), active = tm.begin();
+        tm.commit(committed);
+        tm.close();
+
+        tm = TransactionManager.open(path, true);
+        tm.abort(aborted);
+        // 映射没有越过头部覆盖的范围
+        long header = Parser.parseLong(Arrays.copyOf(Files.readAllBytes(f.toPath()), TransactionManagerImpl.LEN_XID_HEADER_LENGTH));
+        assert f.length() == TransactionManagerImpl.LEN_XID_HEADER_LENGTH + header;
+        long xid = tm.begin();
+        tm.commit(xid);
+        tm.close();
+
+        for(boolean mmap : new boolean[] {false, true}) {
+            TransactionManager reopened = TransactionManager.open(path, mmap);
+            assert reopened.isCommitted(committed) && reopened.isAborted(aborted);
+            assert reopened.isActive(active) && reopened.isCommitted(xid);
+            reopened.close();
+        }
+        assert f.delete();
+    }
+
+    @Test
+    public void testFreeze() throws Exception {
+        // 两整页多一点的事务，xid % 101 == 0 的回滚，最后几个保持 active
+        String path = "/tmp/tranmger_freeze_test";
+        int count = TransactionManagerImpl.XIDS_PER_PAGE * 2 + 100;
+        byte[] raw = new byte[TransactionManagerImpl.LEN_XID_HEADER_LENGTH + count];
+        System.arraycopy(Parser.long2Byte(count), 0, raw, 0, TransactionManagerImpl.LEN_XID_HEADER_LENGTH);
+        for(int xid = 1; xid <= count - 10; xid ++) {
+            raw[TransactionManagerImpl.LEN_XID_HEADER_LENGTH + xid - 1] = (byte)(xid % 101 == 0 ? 2 : 1);
+        }
+        File f = new File(path + TransactionManagerImpl.XID_SUFFIX);
+        Files.write(f.toPath(), raw);
+
+        for(boolean mmap : new boolean[] {false, true}) {
+            TransactionManager tm = TransactionManager.open(path, mmap);
+            tm.freeze(count - 10);
+            long xid = tm.begin();
+            tm.commit(xid);
+            tm.abort(count - 5);
+            for(long x = 1; x <= count - 10; x ++) {
+                assert x % 101 == 0 ? tm.isAborted(x) : tm.isCommitted(x);
+            }
+            assert tm.isActive(count - 1) && tm.isAborted(count - 5) && tm.isCommitted(xid);
+            tm.close();
+            if(!mmap) {
+                // 冻结之后文件只保留回滚的事务ID和最后一页之后的状态
+                assert f.length() < raw.length / 4;
+            }
+        }
+
+        TransactionManager tm = TransactionManager.open(path);
+        assert tm.isAborted(101) && tm.isCommitted(102) && tm.isActive(count - 1) && tm.isAborted(count - 5);
+        tm.close();
+        assert f.delete();
+    }
+
+    @Test
+    public void testFreezeWhileCommitting() throws Exception {
+        // 冻结扫描状态和复制文件时其他线程照常开启、提交和回滚事务，这些状态要补到新文件中
+        String path = "/tmp/tranmger_freeze_concurrent_test";
+        // 冻结点之前的事务都已提交，之后是一大段 active 的事务，复制它们需要一段时间
+        int frozen = TransactionManagerImpl.XIDS_PER_PAGE * 64;
+        int count = frozen * 8;
+        byte[] raw = new byte[TransactionManagerImpl.LEN_XID_HEADER_LENGTH + count];
+        System.arraycopy(Parser.long2Byte(count), 0, raw, 0, TransactionManagerImpl.LEN_XID_HEADER_LENGTH);
+        Arrays.fill(raw, TransactionManagerImpl.LEN_XID_HEADER_LENGTH, TransactionManagerImpl.LEN_XID_HEADER_LENGTH + frozen, (byte)1);
+        Files.write(Paths.get(path + TransactionManagerImpl.XID_SUFFIX), raw);
+
+        TransactionManager tm = TransactionManager.open(path);
+        Map<Long, Byte> statuses = new ConcurrentHashMap<>();
+        CountDownLatch started = new CountDownLatch(1);
+        Thread freezer = new Thread(() -> {
+            try {
+                started.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            tm.freeze(frozen + 1);
+        });
+        freezer.start();
+        int workers = 4;
+        CountDownLatch done = new CountDownLatch(workers);
+        for(int w = 0; w < workers; w ++) {
+            long first = frozen + 1 + w;
+            new Thread(() -> {
+                // 结束冻结点之后的 active 事务，冻结开始之后至少再做一批
+                for(int i = 0; freezer.isAlive() || i < 300; i ++) {
+                    long xid = first + (long)i * workers;
+                    byte status = (byte)(i % 3);
+                    if(status == 1) {
+                        tm.commit(xid);
+                    } else if(status == 2) {
+                        tm.abort(xid);
+                    }
+                    statuses.put(xid, status);
+                    started.countDown();
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+
+        checkStatuses(tm, frozen, statuses);
+        tm.close();
+        for(boolean mmap : new boolean[] {false, true}) {
+            TransactionManager reopened = TransactionManager.open(path, mmap);
+            checkStatuses(reopened, frozen, statuses);
+            reopened.close();
+        }
+        assert new File(path + TransactionManagerImpl.XID_SUFFIX).length() < raw.length;
+        assert new File(path + TransactionManagerImpl.XID_SUFFIX).delete();
+    }
+
+    private void checkStatuses(TransactionManager tm, int frozen, Map<Long, Byte> statuses) {
+        assert tm.isCommitted(1) && tm.isCommitted(frozen);
+        statuses.forEach((xid, status) -> {
+            assert status == 0 ? tm.isActive(xid) : status == 1 ? tm.isCommitted(xid) : tm.isAborted(xid);
+        });
+    }
 }
@@ -0,0 +1,71 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * LockTable 的竞争基准测试，不随单元测试运行，mvn test-compile 之后手动执行：
+ *      java -cp target/classes:target/test-classes:<依赖> top.guoziyang.mydb.backend.vm.LockTableBenchmark 64 20000 5000
+ * 参数：最大线程数（默认 64）、每个线程的事务数（默认 20000）、等待链长度（默认 5000）
+ *
+ * 两个场景，和 LockTableTest 的两个场景对应：
+ *      1、多个线程各自的事务反复加锁、释放，互不冲突，统计 1、8、最大线程数时每秒的加锁次数；
+ *      2、每个事务持有一个 UID 并等待下一个事务的 UID，形成一条很长的等待链，每次加入等待都要做死锁检测，
+ *         统计建立等待链的时间，最后让链尾等待链头，检测出死锁。
+ */
+public class LockTableBenchmark {
+
+    private static final int LOCKS_PER_TRANSACTION = 8;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int chain = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+
+        for(int threads : new int[] {1, 8, maxThreads}) {
+            LockTable lt = new LockTable();
+            AtomicLong xids = new AtomicLong();
+            CountDownLatch cdl = new CountDownLatch(threads);
+            long start = System.nanoTime();
+            for(int i = 0; i < threads; i ++) {
+                new Thread(() -> {
+                    try {
+                        for(int j = 0; j < perThread; j ++) {
+                            long xid = xids.incrementAndGet();
+                            for(int k = 0; k < LOCKS_PER_TRANSACTION; k ++) {
+                                lt.add(xid, xid * LOCKS_PER_TRANSACTION + k);
+                            }
+                            lt.remove(xid);
+                        }
+                    } catch(Exception e) {
+                        Panic.panic(e);
+                    }
+                    cdl.countDown();
+                }).start();
+            }
+            cdl.await();
+            long nanos = System.nanoTime() - start;
+            long locks = (long)threads * perThread * LOCKS_PER_TRANSACTION;
+            System.out.printf("disjoint, %d threads: %.0f locks/s%n", threads, locks * 1e9 / nanos);
+        }
+
+        LockTable lt = new LockTable();
+        for(long i = 1; i <= chain; i ++) {
+            lt.add(i, i);
+        }
+        long start = System.nanoTime();
+        for(long i = 1; i < chain; i ++) {
+            lt.add(i, i + 1);
+        }
+        long nanos = System.nanoTime() - start;
+        boolean deadlock = false;
+        try {
+            lt.add(chain, 1);
+        } catch(Exception e) {
+            deadlock = true;
+        }
+        System.out.printf("wait chain of %d: %.1f ms, deadlock detected: %b%n", chain, nanos / 1e6, deadlock);
+    }
+}
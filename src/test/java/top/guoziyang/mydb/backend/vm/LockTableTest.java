@@ -1,8 +1,12 @@
 package top.guoziyang.mydb.backend.vm;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.CompletableFuture;
 
 import org.junit.Test;
 
@@ -39,14 +43,7 @@ public class LockTableTest {
         LockTable lt = new LockTable();
         for(long i = 1; i <= 100; i ++) {
             try {
-                Lock o = lt.add(i, i);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                assertNull(lt.add(i, i));
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -54,14 +51,7 @@ public class LockTableTest {
 
         for(long i = 1; i <= 99; i ++) {
             try {
-                Lock o = lt.add(i, i+1);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                assertNotNull(lt.add(i, i+1));
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -76,4 +66,37 @@ public class LockTableTest {
             Panic.panic(e);
         }
     }
+
+    @Test
+    public void testSharedAndTimeout() throws Exception {
+        LockTable lt = new LockTable();
+        assertNull(lt.add(1, 1, LockTable.SHARED));
+        assertNull(lt.add(2, 1, LockTable.SHARED));
+
+        // 排他等待共享持有者，排在它后面的共享请求也要等待
+        CompletableFuture<Void> x = lt.add(3, 1, LockTable.EXCLUSIVE);
+        assertNotNull(x);
+        CompletableFuture<Void> s = lt.add(4, 1, LockTable.SHARED);
+        assertNotNull(s);
+
+        // 两个共享持有者都要升级，形成死锁
+        CompletableFuture<Void> u = lt.add(1, 1, LockTable.EXCLUSIVE);
+        assertNotNull(u);
+        assertThrows(RuntimeException.class, ()->lt.add(2, 1, LockTable.EXCLUSIVE));
+
+        // 等待超时后撤销，不影响其他等待者
+        Exception e = assertThrows(RuntimeException.class, ()->lt.await(3, 1, x, 10));
+        assertTrue(e.getMessage().contains("timeout"));
+        lt.remove(3);
+
+        // 2 释放后 1 升级为排他，1 释放后 4 获得共享
+        lt.remove(2);
+        lt.await(1, 1, u, 1000);
+        assertFalse(s.isDone());
+        Thread t = new Thread(()->lt.remove(1));
+        t.start();
+        lt.await(4, 1, s, 1000);
+        t.join();
+        assertNull(lt.add(5, 1, LockTable.SHARED));
+    }
 }
@@ -0,0 +1,69 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.RandomUtil;
+
+/**
+ * 并发会话下 VM 的吞吐量基准测试，不随单元测试运行，mvn test-compile 之后手动执行：
+ *      java -cp target/classes:target/test-classes:<依赖> top.guoziyang.mydb.backend.vm.VersionManagerBenchmark 64 2000
+ * 参数：最大会话数（默认 64）、每个会话的事务数（默认 2000）
+ *
+ * 每个会话反复开启可重复读事务，读取 READS 条记录后提交，分别统计 1、8、最大会话数时每秒的读取次数。
+ */
+public class VersionManagerBenchmark {
+
+    private static final String PATH = "/tmp/VersionManagerBenchmark";
+    private static final int ROWS = 1024;
+    private static final int READS = 100;
+
+    public static void main(String[] args) throws Exception {
+        int maxSessions = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int perSession = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        new File(PATH + ".xid").delete();
+        new File(PATH + ".db").delete();
+        new File(PATH + ".log").delete();
+        TransactionManager tm = TransactionManager.create(PATH);
+        DataManager dm = DataManager.create(PATH, 64L << 20, tm);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+        long[] uids = new long[ROWS];
+        long xid = vm.begin(0);
+        for(int i = 0; i < ROWS; i ++) {
+            uids[i] = vm.insert(xid, RandomUtil.randomBytes(64));
+        }
+        vm.commit(xid);
+
+        for(int sessions : new int[] {1, 8, maxSessions}) {
+            CountDownLatch cdl = new CountDownLatch(sessions);
+            long start = System.nanoTime();
+            for(int i = 0; i < sessions; i ++) {
+                new Thread(() -> {
+                    try {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for(int j = 0; j < perSession; j ++) {
+                            Transaction t = vm.beginTransaction(1);
+                            for(int k = 0; k < READS; k ++) {
+                                vm.read(t, uids[random.nextInt(ROWS)]);
+                            }
+                            vm.commit(t);
+                        }
+                    } catch(Exception e) {
+                        Panic.panic(e);
+                    }
+                    cdl.countDown();
+                }).start();
+            }
+            cdl.await();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%2d sessions: %.0f txn/s, %.0f reads/s%n", sessions,
+                sessions * perSession / seconds, (double)sessions * perSession * READS / seconds);
+        }
+        System.exit(0);
+    }
+}